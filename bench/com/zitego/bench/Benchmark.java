@@ -0,0 +1,168 @@
+package com.zitego.bench;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A small harness for timing an operation from a number of threads at once. Each run warms up
+ * for a while, then measures several rounds of a fixed length and reports the mean throughput
+ * and its standard deviation across rounds along with the mean time per operation.
+ *
+ * @author John Glorioso
+ * @version $Id$
+ */
+public abstract class Benchmark
+{
+    /** How long (in milliseconds) to warm up before measuring. */
+    public static long WARMUP = 2000l;
+    /** How long (in milliseconds) each measured round lasts. */
+    public static long ROUND = 2000l;
+    /** The number of measured rounds. */
+    public static int ROUNDS = 5;
+
+    /**
+     * Sets up anything the operation needs. Called once before the threads are started.
+     *
+     * @throws Exception if an error occurs.
+     */
+    public void setUp() throws Exception { }
+
+    /**
+     * Performs one operation.
+     *
+     * @throws Exception if an error occurs.
+     */
+    public abstract void op() throws Exception;
+
+    /**
+     * Cleans up after the benchmark. Called once after all threads have stopped.
+     *
+     * @throws Exception if an error occurs.
+     */
+    public void tearDown() throws Exception { }
+
+    /**
+     * Runs the given benchmark with the given number of threads and prints the results.
+     *
+     * @param name The name to print.
+     * @param bench The benchmark.
+     * @param threads The number of threads.
+     * @throws Exception if an error occurs.
+     */
+    public static void run(String name, final Benchmark bench, int threads) throws Exception
+    {
+        bench.setUp();
+        try
+        {
+            measure(bench, threads, WARMUP);
+            double[] rates = new double[ROUNDS];
+            long ops = 0;
+            long errors = 0;
+            long elapsed = 0;
+            for (int i=0; i<ROUNDS; i++)
+            {
+                long[] result = measure(bench, threads, ROUND);
+                ops += result[0];
+                errors += result[1];
+                elapsed += result[2];
+                rates[i] = (double)result[0] * 1000000000d / (double)result[2];
+            }
+
+            double mean = 0;
+            for (int i=0; i<ROUNDS; i++)
+            {
+                mean += rates[i];
+            }
+            mean /= ROUNDS;
+            double variance = 0;
+            for (int i=0; i<ROUNDS; i++)
+            {
+                variance += (rates[i] - mean) * (rates[i] - mean);
+            }
+            double stddev = Math.sqrt( variance / Math.max(ROUNDS - 1, 1) );
+            double nsPerOp = (ops > 0 ? (double)threads * elapsed / (double)ops : 0);
+
+            System.out.println
+            (
+                String.format("%-48s %3d threads %14.0f ops/s +- %5.1f%% %12.0f ns/op %8d errors",
+                              name, threads, mean, (mean > 0 ? stddev * 100d / mean : 0), nsPerOp, errors)
+            );
+        }
+        finally
+        {
+            bench.tearDown();
+        }
+    }
+
+    /**
+     * Runs the operation from the given number of threads for the given amount of time. Returns
+     * the number of operations completed, the number that failed and the nanoseconds it actually
+     * took, which can run past the given time for slow operations.
+     *
+     * @param bench The benchmark.
+     * @param threads The number of threads.
+     * @param millis How long to run.
+     * @return long[]
+     * @throws Exception if an error occurs.
+     */
+    protected static long[] measure(final Benchmark bench, int threads, long millis) throws Exception
+    {
+        final AtomicLong ops = new AtomicLong();
+        final AtomicLong errors = new AtomicLong();
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+        final long[] deadline = new long[1];
+
+        for (int i=0; i<threads; i++)
+        {
+            Thread t = new Thread
+            (
+                new Runnable()
+                {
+                    public void run()
+                    {
+                        long count = 0;
+                        long failed = 0;
+                        try
+                        {
+                            start.await();
+                            long end = deadline[0];
+                            // Only check the clock every 64 operations so timing does not dominate fast operations.
+                            while ( (count & 63) != 0 || System.nanoTime() < end )
+                            {
+                                try
+                                {
+                                    bench.op();
+                                    count++;
+                                }
+                                catch (Exception e)
+                                {
+                                    if (failed++ == 0) e.printStackTrace(System.err);
+                                }
+                            }
+                        }
+                        catch (InterruptedException ie)
+                        {
+                            Thread.currentThread().interrupt();
+                        }
+                        finally
+                        {
+                            ops.addAndGet(count);
+                            errors.addAndGet(failed);
+                            done.countDown();
+                        }
+                    }
+                },
+                "Benchmark-" + i
+            );
+            t.setDaemon(true);
+            t.start();
+        }
+
+        long begin = System.nanoTime();
+        deadline[0] = begin + millis * 1000000l;
+        start.countDown();
+        done.await();
+        return new long[] { ops.get(), errors.get(), System.nanoTime() - begin };
+    }
+}
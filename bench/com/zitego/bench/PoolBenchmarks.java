@@ -0,0 +1,403 @@
+package com.zitego.bench;
+
+import com.zitego.pool.ObjectPool;
+import com.zitego.pool.ObjectPoolConfig;
+import com.zitego.pool.ObjectPoolFactory;
+import com.zitego.sql.ConnectionFactory;
+import com.zitego.sql.DBConfig;
+import com.zitego.sql.DBHandle;
+import com.zitego.sql.MysqlDBHandle;
+import com.zitego.sql.PreparedStatementSupport;
+import com.zitego.sql.QueryCache;
+import java.util.ArrayList;
+import java.util.List;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+
+/**
+ * Benchmarks ObjectPool borrow and return with each engine, blocking and not blocking, from 1 up
+ * to a maximum number of threads, and the connection path through the jdbc:zitego:pool: Driver
+ * with both the built in pool and DBCP. Objects and connections come from in memory stubs.
+ * The prepare benchmarks prepare and close a statement on each connection, with and without
+ * the statement cache, the insert benchmarks insert rows one at a time and in a batch, and the
+ * query benchmarks run a lookup through DBHandle.cachedQuery with and without a QueryCache. Each
+ * prepare and execute costs ROUND_TRIP_MICROS as a stand in for a round trip to the database.
+ * The stress benchmarks run STRESS_THREADS handles at once against a pool of POOL_SIZE, so nearly
+ * every connect has to wait in line.
+ * <p>
+ * Usage: PoolBenchmarks [max threads] [round millis] [rounds]<br>
+ * Thread counts double from 1 up to the maximum, which defaults to twice the number of processors.
+ *
+ * @author John Glorioso
+ * @version $Id$
+ */
+public class PoolBenchmarks
+{
+    /** The pool size used by every benchmark. */
+    public static final int POOL_SIZE = 8;
+    /** How long each statement prepare or execute takes in the prepare and batch benchmarks. */
+    public static final long ROUND_TRIP_MICROS = 50;
+    /** The number of threads in the stress benchmarks. */
+    public static final int STRESS_THREADS = 1024;
+
+    public static void main(String[] args) throws Exception
+    {
+        int maxThreads = Runtime.getRuntime().availableProcessors() * 2;
+        if (args.length > 0) maxThreads = Integer.parseInt(args[0]);
+        if (args.length > 1) Benchmark.ROUND = Benchmark.WARMUP = Long.parseLong(args[1]);
+        if (args.length > 2) Benchmark.ROUNDS = Integer.parseInt(args[2]);
+
+        System.out.println
+        (
+            "java " + System.getProperty("java.version") + ", " + Runtime.getRuntime().availableProcessors() +
+            " processors, pool size " + POOL_SIZE + ", " + Benchmark.ROUNDS + " rounds of " + Benchmark.ROUND + " ms"
+        );
+
+        String[] engines = new String[] { "standard", "concurrent" };
+        for (int e=0; e<engines.length; e++)
+        {
+            for (int threads=1; threads<=maxThreads; threads*=2)
+            {
+                Benchmark.run( "ObjectPool " + engines[e] + " non-blocking", new PoolBenchmark(engines[e], false), threads );
+            }
+            for (int threads=1; threads<=maxThreads; threads*=2)
+            {
+                Benchmark.run( "ObjectPool " + engines[e] + " blocking", new PoolBenchmark(engines[e], true), threads );
+            }
+        }
+
+        for (int e=0; e<engines.length; e++)
+        {
+            for (int threads=1; threads<=maxThreads; threads*=2)
+            {
+                Benchmark.run( "Driver " + engines[e] + " pool", new ConnectionBenchmark(engines[e], false), threads );
+            }
+        }
+        for (int threads=1; threads<=maxThreads; threads*=2)
+        {
+            Benchmark.run( "Driver DBCP pool", new ConnectionBenchmark(null, true), threads );
+        }
+
+        StubDriver.roundTripNanos = ROUND_TRIP_MICROS * 1000l;
+        for (int threads=1; threads<=maxThreads; threads*=2)
+        {
+            Benchmark.run( "Prepare uncached", new PrepareBenchmark(0), threads );
+        }
+        for (int threads=1; threads<=maxThreads; threads*=2)
+        {
+            Benchmark.run( "Prepare statementcache=16", new PrepareBenchmark(16), threads );
+        }
+        Benchmark.run( "Insert " + BatchBenchmark.ROWS + " rows one at a time", new BatchBenchmark(false, false), 1 );
+        Benchmark.run( "Insert " + BatchBenchmark.ROWS + " rows in a batch", new BatchBenchmark(true, false), 1 );
+        Benchmark.run( "Insert " + BatchBenchmark.ROWS + " rows multi-row", new BatchBenchmark(true, true), 1 );
+        for (int threads=1; threads<=maxThreads; threads*=2)
+        {
+            Benchmark.run( "Query uncached", new QueryBenchmark(false), threads );
+        }
+        for (int threads=1; threads<=maxThreads; threads*=2)
+        {
+            Benchmark.run( "Query cached", new QueryBenchmark(true), threads );
+        }
+        for (int e=0; e<engines.length; e++)
+        {
+            Benchmark.run( "Handle stress " + engines[e] + " pool", new StressBenchmark(engines[e]), STRESS_THREADS );
+        }
+        StubDriver.roundTripNanos = 0;
+
+        System.exit(0);
+    }
+
+    /**
+     * Borrows an object and returns it right away.
+     */
+    static class PoolBenchmark extends Benchmark
+    {
+        private String _engine;
+        private boolean _block;
+        private ObjectPool _pool;
+
+        PoolBenchmark(String engine, boolean block)
+        {
+            _engine = engine;
+            _block = block;
+        }
+
+        public void setUp() throws Exception
+        {
+            _pool = ObjectPoolFactory.getObjectPool
+            (
+                new StubPoolManager(),
+                ObjectPoolConfig.parse
+                (
+                    "engine=" + _engine + ",min=" + POOL_SIZE + ",max=" + POOL_SIZE + ",increment=1,block=" + _block +
+                    ",alertthreshold=101"
+                )
+            );
+        }
+
+        public void op() throws Exception
+        {
+            _pool.returnObject( _pool.getObject() );
+        }
+
+        public void tearDown()
+        {
+            _pool.destroy();
+        }
+    }
+
+    /**
+     * Gets a connection through DriverManager with a jdbc:zitego:pool: url and closes it.
+     */
+    static class ConnectionBenchmark extends Benchmark
+    {
+        private String _engine;
+        private boolean _dbcp;
+        private String _url;
+
+        ConnectionBenchmark(String engine, boolean dbcp)
+        {
+            _engine = engine;
+            _dbcp = dbcp;
+        }
+
+        public void setUp() throws Exception
+        {
+            Class.forName("com.zitego.sql.Driver");
+            String name = "bench" + (_dbcp ? "dbcp" : _engine);
+            String config = "driver=com.zitego.bench.StubDriver,url=jdbc:stub:" + name + ",username=bench,password=bench," +
+                            "min=" + POOL_SIZE + ",max=" + POOL_SIZE + ",increment=1,block=true,alertthreshold=101";
+            if (_dbcp) ConnectionFactory.getInstance().createDBCPPool(name, config, null, null);
+            else ConnectionFactory.getInstance().createPool(name, config + ",engine=" + _engine, null);
+            _url = "jdbc:zitego:pool:" + name;
+        }
+
+        public void op() throws Exception
+        {
+            DriverManager.getConnection(_url).close();
+        }
+    }
+
+    /**
+     * Gets a connection, prepares and closes one of a few statements, then closes the connection.
+     */
+    static class PrepareBenchmark extends Benchmark
+    {
+        private static final String[] SQL = new String[]
+        {
+            "SELECT * FROM account WHERE account_id = ?", "SELECT * FROM user WHERE user_id = ?",
+            "UPDATE user SET last_login = ? WHERE user_id = ?", "SELECT COUNT(*) FROM session WHERE user_id = ?"
+        };
+        private int _cacheSize;
+        private String _url;
+        private int _next = 0;
+
+        PrepareBenchmark(int cacheSize)
+        {
+            _cacheSize = cacheSize;
+        }
+
+        public void setUp() throws Exception
+        {
+            Class.forName("com.zitego.sql.Driver");
+            String name = "benchprepare" + _cacheSize;
+            String config = "driver=com.zitego.bench.StubDriver,url=jdbc:stub:" + name + ",username=bench,password=bench," +
+                            "min=" + POOL_SIZE + ",max=" + POOL_SIZE + ",increment=1,block=true,alertthreshold=101," +
+                            "engine=concurrent,statementcache=" + _cacheSize;
+            ConnectionFactory.getInstance().createPool(name, config, null);
+            _url = "jdbc:zitego:pool:" + name;
+        }
+
+        public void op() throws Exception
+        {
+            Connection conn = DriverManager.getConnection(_url);
+            try
+            {
+                PreparedStatement pst = conn.prepareStatement( SQL[_next++ & 3] );
+                pst.setLong(1, 1l);
+                pst.close();
+            }
+            finally
+            {
+                conn.close();
+            }
+        }
+    }
+
+    /**
+     * Inserts ROWS rows through a DBHandle, either one executeUpdate at a time or with executeBatch,
+     * optionally rewritten as multi-row inserts.
+     */
+    static class BatchBenchmark extends Benchmark
+    {
+        static final int ROWS = 1000;
+        private static final String SQL = "INSERT INTO import (account_id, name, created) VALUES (?, ?, ?)";
+        private boolean _batch;
+        private boolean _rewrite;
+        private DBHandle _db;
+        private List<PreparedStatementSupport> _rows;
+
+        BatchBenchmark(boolean batch, boolean rewrite)
+        {
+            _batch = batch;
+            _rewrite = rewrite;
+        }
+
+        public void setUp() throws Exception
+        {
+            Class.forName("com.zitego.sql.Driver");
+            String name = "benchbatch" + _batch + _rewrite;
+            ConnectionFactory.getInstance().createPool
+            (
+                name, "driver=com.zitego.bench.StubDriver,url=jdbc:stub:" + name + ",username=bench,password=bench," +
+                "min=1,max=1,increment=1,block=true,alertthreshold=101,engine=concurrent,statementcache=16", null
+            );
+            DBConfig config = new DBConfig("jdbc:zitego:pool:" + name, new com.zitego.sql.Driver(), "", "", DBConfig.MYSQL);
+            config.setRewriteBatchedInserts(_rewrite);
+            _db = new MysqlDBHandle(config);
+            _rows = new ArrayList<PreparedStatementSupport>();
+            java.util.Date now = new java.util.Date();
+            for (int i=0; i<ROWS; i++)
+            {
+                PreparedStatementSupport row = new PreparedStatementSupport();
+                row.setSql(SQL);
+                row.add( (long)i );
+                row.add("row " + i);
+                row.add(now);
+                _rows.add(row);
+            }
+        }
+
+        public void op() throws Exception
+        {
+            _db.connect();
+            try
+            {
+                if (_batch)
+                {
+                    _db.executeBatch(_rows);
+                }
+                else
+                {
+                    for (int i=0; i<ROWS; i++)
+                    {
+                        java.sql.PreparedStatement pst = _rows.get(i).bindValues(_db);
+                        pst.executeUpdate();
+                        pst.close();
+                    }
+                }
+            }
+            finally
+            {
+                _db.disconnect();
+            }
+        }
+    }
+
+    /**
+     * Looks up one of 100 rows by id on its own handle, through a QueryCache or not.
+     */
+    static class QueryBenchmark extends Benchmark
+    {
+        private boolean _cached;
+        private DBConfig _config;
+        private ThreadLocal<DBHandle> _db = new ThreadLocal<DBHandle>();
+        private java.util.concurrent.atomic.AtomicLong _next = new java.util.concurrent.atomic.AtomicLong();
+
+        QueryBenchmark(boolean cached)
+        {
+            _cached = cached;
+        }
+
+        public void setUp() throws Exception
+        {
+            Class.forName("com.zitego.sql.Driver");
+            String name = "benchquery" + _cached;
+            ConnectionFactory.getInstance().createPool
+            (
+                name, "driver=com.zitego.bench.StubDriver,url=jdbc:stub:" + name + ",username=bench,password=bench," +
+                "min=4,max=64,increment=4,block=true,alertthreshold=101,engine=concurrent,statementcache=16", null
+            );
+            _config = new DBConfig("jdbc:zitego:pool:" + name, new com.zitego.sql.Driver(), "", "", DBConfig.MYSQL);
+            if (_cached) _config.setQueryCache( new QueryCache(60000, 1024 * 1024) );
+            StubDriver.resultRows = 1;
+        }
+
+        public void op() throws Exception
+        {
+            DBHandle db = _db.get();
+            if (db == null)
+            {
+                db = new MysqlDBHandle(_config);
+                _db.set(db);
+            }
+            PreparedStatementSupport query = new PreparedStatementSupport();
+            query.setSql("SELECT id, name FROM status_type WHERE id = ?");
+            query.add( _next.incrementAndGet() % 100 );
+            db.connect();
+            try
+            {
+                db.cachedQuery(query, "status_type");
+            }
+            finally
+            {
+                db.disconnect();
+            }
+        }
+
+        public void tearDown()
+        {
+            StubDriver.resultRows = 0;
+        }
+    }
+
+    /**
+     * Connects a handle of its own, runs one statement and disconnects.
+     */
+    static class StressBenchmark extends Benchmark
+    {
+        private String _engine;
+        private DBConfig _config;
+        private ThreadLocal<DBHandle> _db = new ThreadLocal<DBHandle>();
+
+        StressBenchmark(String engine)
+        {
+            _engine = engine;
+        }
+
+        public void setUp() throws Exception
+        {
+            Class.forName("com.zitego.sql.Driver");
+            String name = "benchstress" + _engine;
+            ConnectionFactory.getInstance().createPool
+            (
+                name, "driver=com.zitego.bench.StubDriver,url=jdbc:stub:" + name + ",username=bench,password=bench," +
+                "min=" + POOL_SIZE + ",max=" + POOL_SIZE + ",increment=1,block=true,alertthreshold=101,engine=" + _engine +
+                ",statementcache=16", null
+            );
+            _config = new DBConfig("jdbc:zitego:pool:" + name, new com.zitego.sql.Driver(), "", "", DBConfig.MYSQL);
+        }
+
+        public void op() throws Exception
+        {
+            DBHandle db = _db.get();
+            if (db == null)
+            {
+                db = new MysqlDBHandle(_config);
+                _db.set(db);
+            }
+            db.connect();
+            try
+            {
+                java.sql.PreparedStatement pst = db.prepareStatement("UPDATE session SET last_seen = NOW() WHERE session_id = 1");
+                pst.executeUpdate();
+                pst.close();
+            }
+            finally
+            {
+                db.disconnect();
+            }
+        }
+    }
+}
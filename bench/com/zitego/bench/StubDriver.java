@@ -0,0 +1,243 @@
+package com.zitego.bench;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.DriverPropertyInfo;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Logger;
+
+/**
+ * An in memory JDBC driver for urls starting with jdbc:stub: whose connections do nothing, so that
+ * benchmarks measure the pooling around the connections and not a database.
+ *
+ * @author John Glorioso
+ * @version $Id$
+ */
+public class StubDriver implements java.sql.Driver
+{
+    /** How long preparing or executing a statement takes, to stand in for the round trip to the database. */
+    public static volatile long roundTripNanos = 0;
+    /** The number of statements prepared. */
+    public static final AtomicLong PREPARES = new AtomicLong();
+    /** The number of times a statement was executed. */
+    public static final AtomicLong EXECUTES = new AtomicLong();
+    /** The number of times a connection was validated with isValid. */
+    public static final AtomicLong VALIDATES = new AtomicLong();
+    /** The number of rows every query returns. */
+    public static volatile int resultRows = 0;
+
+    static
+    {
+        try
+        {
+            DriverManager.registerDriver( new StubDriver() );
+        }
+        catch (SQLException e)
+        {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public boolean acceptsURL(String url)
+    {
+        return (url != null && url.startsWith("jdbc:stub:"));
+    }
+
+    public Connection connect(String url, Properties info) throws SQLException
+    {
+        if ( !acceptsURL(url) ) return null;
+        return (Connection)Proxy.newProxyInstance
+        (
+            StubDriver.class.getClassLoader(), new Class<?>[] { Connection.class }, new StubConnection()
+        );
+    }
+
+    public DriverPropertyInfo[] getPropertyInfo(String url, Properties info)
+    {
+        return new DriverPropertyInfo[0];
+    }
+
+    public int getMajorVersion()
+    {
+        return 1;
+    }
+
+    public int getMinorVersion()
+    {
+        return 0;
+    }
+
+    public boolean jdbcCompliant()
+    {
+        return false;
+    }
+
+    public Logger getParentLogger() throws SQLFeatureNotSupportedException
+    {
+        throw new SQLFeatureNotSupportedException();
+    }
+
+    /**
+     * Answers every Connection call with a default value. Only closed state, auto commit and
+     * object identity are tracked. Prepared statements are stubs as well.
+     */
+    static class StubConnection implements InvocationHandler
+    {
+        private boolean _closed = false;
+        private boolean _autoCommit = true;
+
+        public Object invoke(Object proxy, Method method, Object[] args)
+        {
+            String name = method.getName();
+            if ( "close".equals(name) ) _closed = true;
+            else if ( "isClosed".equals(name) ) return Boolean.valueOf(_closed);
+            else if ( "isValid".equals(name) )
+            {
+                VALIDATES.incrementAndGet();
+                roundTrip();
+                return Boolean.valueOf(!_closed);
+            }
+            else if ( "setAutoCommit".equals(name) ) _autoCommit = ( (Boolean)args[0] ).booleanValue();
+            else if ( "getAutoCommit".equals(name) ) return Boolean.valueOf(_autoCommit);
+            else if ( "equals".equals(name) ) return Boolean.valueOf(proxy == args[0]);
+            else if ( "hashCode".equals(name) ) return Integer.valueOf( System.identityHashCode(proxy) );
+            else if ( "toString".equals(name) ) return "StubConnection@" + Integer.toHexString( System.identityHashCode(proxy) );
+            else if ( "prepareStatement".equals(name) ) return prepare();
+
+            return defaultValue(method);
+        }
+    }
+
+    static PreparedStatement prepare()
+    {
+        PREPARES.incrementAndGet();
+        roundTrip();
+        return (PreparedStatement)Proxy.newProxyInstance
+        (
+            StubDriver.class.getClassLoader(), new Class<?>[] { PreparedStatement.class }, new StubStatement()
+        );
+    }
+
+    static void roundTrip()
+    {
+        if (roundTripNanos > 0) LockSupport.parkNanos(roundTripNanos);
+    }
+
+    static Object defaultValue(Method method)
+    {
+        Class<?> type = method.getReturnType();
+        if (type == Boolean.TYPE) return Boolean.FALSE;
+        else if (type == Integer.TYPE) return Integer.valueOf(0);
+        else if (type == Long.TYPE) return Long.valueOf(0l);
+        return null;
+    }
+
+    /**
+     * Answers every PreparedStatement call with a default value. Only closed state, batched rows and
+     * object identity are tracked. Every update and batch reports one row per execution.
+     */
+    static class StubStatement implements InvocationHandler
+    {
+        private boolean _closed = false;
+        private int _batch = 0;
+
+        public Object invoke(Object proxy, Method method, Object[] args)
+        {
+            String name = method.getName();
+            if ( "close".equals(name) ) _closed = true;
+            else if ( "addBatch".equals(name) ) _batch++;
+            else if ( "clearBatch".equals(name) ) _batch = 0;
+            else if ( "executeBatch".equals(name) )
+            {
+                EXECUTES.incrementAndGet();
+                roundTrip();
+                int[] counts = new int[_batch];
+                java.util.Arrays.fill(counts, 1);
+                _batch = 0;
+                return counts;
+            }
+            else if ( "executeUpdate".equals(name) )
+            {
+                EXECUTES.incrementAndGet();
+                roundTrip();
+                return Integer.valueOf(1);
+            }
+            else if ( "executeQuery".equals(name) )
+            {
+                EXECUTES.incrementAndGet();
+                roundTrip();
+                return Proxy.newProxyInstance
+                (
+                    StubDriver.class.getClassLoader(), new Class<?>[] { ResultSet.class }, new StubResultSet(resultRows)
+                );
+            }
+            else if ( "isClosed".equals(name) ) return Boolean.valueOf(_closed);
+            else if ( "isPoolable".equals(name) ) return Boolean.TRUE;
+            else if ( "equals".equals(name) ) return Boolean.valueOf(proxy == args[0]);
+            else if ( "hashCode".equals(name) ) return Integer.valueOf( System.identityHashCode(proxy) );
+            else if ( "toString".equals(name) ) return "StubStatement@" + Integer.toHexString( System.identityHashCode(proxy) );
+
+            return defaultValue(method);
+        }
+    }
+
+    /**
+     * Answers every ResultSet call with a default value after the given number of rows. Only the
+     * current row, closed state and object identity are tracked. There is one column, id, whose
+     * value is the row number.
+     */
+    static class StubResultSet implements InvocationHandler
+    {
+        static final ResultSetMetaData META_DATA = (ResultSetMetaData)Proxy.newProxyInstance
+        (
+            StubDriver.class.getClassLoader(), new Class<?>[] { ResultSetMetaData.class },
+            new InvocationHandler()
+            {
+                public Object invoke(Object proxy, Method method, Object[] args)
+                {
+                    String name = method.getName();
+                    if ( "getColumnCount".equals(name) ) return Integer.valueOf(1);
+                    else if ( "getColumnLabel".equals(name) || "getColumnName".equals(name) ) return "id";
+                    else if ( "getColumnType".equals(name) ) return Integer.valueOf(java.sql.Types.INTEGER);
+                    else if ( "isSigned".equals(name) ) return Boolean.TRUE;
+                    return defaultValue(method);
+                }
+            }
+        );
+
+        private int _rows;
+        private int _row = 0;
+        private boolean _closed = false;
+
+        StubResultSet(int rows)
+        {
+            _rows = rows;
+        }
+
+        public Object invoke(Object proxy, Method method, Object[] args)
+        {
+            String name = method.getName();
+            if ( "next".equals(name) ) return Boolean.valueOf(!_closed && ++_row <= _rows);
+            else if ( "getRow".equals(name) ) return Integer.valueOf(_row <= _rows ? _row : 0);
+            else if ( "getObject".equals(name) ) return Integer.valueOf(_row);
+            else if ( "getMetaData".equals(name) ) return META_DATA;
+            else if ( "close".equals(name) ) _closed = true;
+            else if ( "isClosed".equals(name) ) return Boolean.valueOf(_closed);
+            else if ( "equals".equals(name) ) return Boolean.valueOf(proxy == args[0]);
+            else if ( "hashCode".equals(name) ) return Integer.valueOf( System.identityHashCode(proxy) );
+            else if ( "toString".equals(name) ) return "StubResultSet@" + Integer.toHexString( System.identityHashCode(proxy) );
+
+            return defaultValue(method);
+        }
+    }
+}
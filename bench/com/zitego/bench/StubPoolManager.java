@@ -0,0 +1,43 @@
+package com.zitego.bench;
+
+import com.zitego.pool.ObjectPoolManager;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An in memory ObjectPoolManager that creates plain objects, so that benchmarks measure the pool
+ * and not the objects in it.
+ *
+ * @author John Glorioso
+ * @version $Id$
+ */
+public class StubPoolManager implements ObjectPoolManager
+{
+    /** The number of objects created. */
+    protected AtomicInteger _created = new AtomicInteger();
+
+    public Object createPoolObject() throws Exception
+    {
+        return "object-" + _created.incrementAndGet();
+    }
+
+    public boolean validate(Object o)
+    {
+        return true;
+    }
+
+    public void expire(Object o) { }
+
+    public void debug(String msg) { }
+
+    public void debug(String msg, int level) { }
+
+    /**
+     * Returns the number of objects created.
+     *
+     * @return int
+     */
+    public int getCreatedCount()
+    {
+        return _created.get();
+    }
+}
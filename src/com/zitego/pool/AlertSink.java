@@ -0,0 +1,20 @@
+package com.zitego.pool;
+
+/**
+ * A destination for object pool alerts. Alerts are handed to a sink by PoolAlerter on its own
+ * thread, so a sink may block (sending email for example) without slowing the pool down.
+ *
+ * @author John Glorioso
+ * @version $Id$
+ */
+public interface AlertSink
+{
+    /**
+     * Sends an alert.
+     *
+     * @param subject The subject of the alert.
+     * @param msg The alert message.
+     * @throws Exception if the alert cannot be sent.
+     */
+    public void send(String subject, String msg) throws Exception;
+}
@@ -0,0 +1,741 @@
+package com.zitego.pool;
+
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.io.*;
+
+/**
+ * An object pool that borrows and returns objects without holding a pool wide lock. Free
+ * objects are kept on a lock free stack so that the most recently returned object is handed
+ * out first, and room in the pool is reserved with a compare and set before a new object is
+ * created so that a slow create never stalls other borrowers. Callers that wait for a maxed out
+ * pool get in line and a returned object is handed directly to the one that has waited longest.
+ * <p>
+ * Maintenance only looks at objects that are due. Free objects that have been idle the longest
+ * are always at the bottom of the stack, and objects in use are grouped by when they were
+ * borrowed, so expiration stops at the first object that has not yet expired.
+ * <p>
+ * The ObjectPoolManager create, validate and expire contract and the alerting behavior are
+ * the same as in ObjectPool. This pool is used when the pool configuration specifies
+ * engine=concurrent.
+ *
+ * @author John Glorioso
+ * @version $Id$
+ */
+public class ConcurrentObjectPool extends ObjectPool
+{
+    /** The free objects. The head is the most recently returned object. */
+    protected ConcurrentLinkedDeque<ObjectPoolItem> _idle;
+    /** The objects that are in use mapped to the time they were borrowed. */
+    protected ConcurrentHashMap<ObjectPoolItem, Long> _borrowed;
+    /** The pool items hashed by the actual objects. */
+    protected ConcurrentHashMap<Object, ObjectPoolItem> _items;
+    /** The number of objects in the pool, including those being created. */
+    protected AtomicInteger _size;
+    /** The number of free objects. */
+    protected AtomicInteger _idleCount;
+    /** The number of objects in use. */
+    protected AtomicInteger _inUseCount;
+    /** The callers waiting for an object, oldest first. */
+    protected ConcurrentLinkedDeque<Waiter> _waitQueue;
+    /** The number of objects that have been expired. */
+    protected AtomicLong _expired;
+    /** The objects in use grouped by the time they were borrowed divided by the bucket width. Only used if
+      * maxUseTime is set. */
+    protected ConcurrentSkipListMap<Long, Set<ObjectPoolItem>> _borrowBuckets;
+    /** The span of time (in milliseconds) that each borrow bucket covers. */
+    protected long _bucketWidth;
+
+    /**
+     * Creates a concurrent object pool with the given configuration and manager.
+     *
+     * @param mgr The pool manager.
+     * @param config The configuration.
+     * @throws Exception if an error occurs creating the pool.
+     */
+    public ConcurrentObjectPool(ObjectPoolManager mgr, ObjectPoolConfig config) throws Exception
+    {
+        _manager = mgr;
+        _config = (config == null ? new ObjectPoolConfig() : config);
+
+        _idle = new ConcurrentLinkedDeque<ObjectPoolItem>();
+        _borrowed = new ConcurrentHashMap<ObjectPoolItem, Long>();
+        _items = new ConcurrentHashMap<Object, ObjectPoolItem>();
+        _size = new AtomicInteger();
+        _idleCount = new AtomicInteger();
+        _inUseCount = new AtomicInteger();
+        _waitQueue = new ConcurrentLinkedDeque<Waiter>();
+        _expired = new AtomicLong();
+        if (_config.maxUseTime >= 0)
+        {
+            _borrowBuckets = new ConcurrentSkipListMap<Long, Set<ObjectPoolItem>>();
+            _bucketWidth = Math.max(_config.maxUseTime*1000l/4l, 1000l);
+        }
+
+        initialize();
+        startMaintenance();
+    }
+
+    public void destroy()
+    {
+        _manager.debug("Destroy object pool", 1);
+
+        _config.maxObjects = 0;
+        _config.minObjects = 0;
+
+        //Everyone out of the pool!
+        flush();
+
+        //You too, I don't care if you are in use!
+        Iterator<ObjectPoolItem> i = _borrowed.keySet().iterator();
+        while ( i.hasNext() )
+        {
+            ObjectPoolItem o = i.next();
+            Long borrowed = _borrowed.remove(o);
+            if (borrowed != null)
+            {
+                removeFromBucket(o, borrowed);
+                _inUseCount.decrementAndGet();
+                expireObject(o);
+            }
+        }
+
+        stopMaintenance();
+    }
+
+    protected void initialize() throws Exception
+    {
+        startFiller();
+        if (_filler != null)
+        {
+            _filler.fillAndWait(_config.minObjects);
+            _manager.debug("Pool contains " + _idleCount.get() + " items", 1);
+            return;
+        }
+
+        int reserved = reserve(_config.minObjects);
+        for (int i=0; i<reserved; i++)
+        {
+            try
+            {
+                pushIdle( createObject() );
+            }
+            catch (Exception e)
+            {
+                _size.addAndGet(i - reserved);
+                throw e;
+            }
+        }
+        _manager.debug("Pool contains " + _idleCount.get() + " items", 1);
+    }
+
+    /**
+     * Creates a new instance of the Object that this pool manages. Room for the object must
+     * already have been reserved with reserve(int).
+     *
+     * @throws Exception if an error occurs creating the object.
+     */
+    protected ObjectPoolItem createObject() throws Exception
+    {
+        _manager.debug("Create pool object", 1);
+
+        long start = System.nanoTime();
+        Object o = null;
+        try
+        {
+            o = _manager.createPoolObject();
+        }
+        catch (Exception e)
+        {
+            _metrics.createFailed();
+            throw e;
+        }
+        _metrics.created(System.nanoTime() - start);
+        ObjectPoolItem item = new ObjectPoolItem(o);
+        _items.put(o, item);
+
+        return item;
+    }
+
+    /**
+     * Expires the given item. The item must already have been removed from the free list or the
+     * in use map by the caller.
+     *
+     * @param item The item to expire.
+     */
+    protected void expireObject(ObjectPoolItem item)
+    {
+        _manager.expire(item.item);
+        _items.remove(item.item);
+        _size.decrementAndGet();
+        _expired.incrementAndGet();
+        // Room was just made in the pool.
+        if ( !_waitQueue.isEmpty() ) serveWaiters();
+    }
+
+    public ObjectPoolItem getItem() throws Exception
+    {
+        if (_config.block) return getItem(_config.maxWait, TimeUnit.MILLISECONDS);
+
+        if (_config.debug && _config.debugLevel > 0)
+        {
+            _manager.debug
+            (
+                "[" + Thread.currentThread() + "] GetObject, InUse: " + _inUseCount.get() + ", free = " + _idleCount.get(), 1
+            );
+        }
+
+        long start = System.nanoTime();
+        ObjectPoolItem object = null;
+        try
+        {
+            object = takeObject();
+
+            // We've expanded the pool as far as it will go and there still are no available connections.
+            if (object == null)
+            {
+                _metrics.exhausted();
+                throw new Exception("Maximum number of objects in pool has been reached, none available");
+            }
+            _metrics.borrowed(System.nanoTime() - start, false);
+            return object;
+        }
+        finally
+        {
+            if (object != null) object.usecount++;
+            requestSpares();
+        }
+    }
+
+    public ObjectPoolItem getItem(long timeout, TimeUnit unit) throws Exception
+    {
+        if (_config.debug && _config.debugLevel > 0)
+        {
+            _manager.debug
+            (
+                "[" + Thread.currentThread() + "] GetObject, InUse: " + _inUseCount.get() + ", free = " + _idleCount.get(), 1
+            );
+        }
+
+        long start = System.nanoTime();
+        ObjectPoolItem object = null;
+        try
+        {
+            // Only go to the pool directly if nobody is waiting, otherwise get in line.
+            if ( _waitQueue.isEmpty() ) object = takeObject();
+            boolean waited = (object == null);
+            if (waited) object = awaitObject(timeout, unit);
+            _metrics.borrowed(System.nanoTime() - start, waited);
+            return object;
+        }
+        finally
+        {
+            if (object != null) object.usecount++;
+            requestSpares();
+        }
+    }
+
+    protected ObjectPoolItem takeObject() throws Exception
+    {
+        while (true)
+        {
+            ObjectPoolItem object = _idle.pollFirst();
+            if (object != null)
+            {
+                _idleCount.decrementAndGet();
+                if ( validateObject(object) ) return borrow(object);
+
+                _manager.debug("[" + object.item + "] object failed validation", 1);
+                expireObject(object);
+            }
+            //If we are not expanding the pool, then quit
+            else if ( !expand() )
+            {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Gets in line for an object and waits up to the given amount of time for one to be handed over.
+     * A negative timeout waits forever.
+     *
+     * @param timeout The longest time to wait.
+     * @param unit The unit of the timeout.
+     * @return ObjectPoolItem
+     * @throws PoolTimeoutException if no object became available in time.
+     * @throws InterruptedException if the thread is interrupted while waiting.
+     */
+    protected ObjectPoolItem awaitObject(long timeout, TimeUnit unit) throws InterruptedException
+    {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        boolean first = true;
+        while (true)
+        {
+            // If the object we were handed fails validation we keep our place at the front of the line.
+            Waiter waiter = new Waiter();
+            if (first) _waitQueue.offerLast(waiter);
+            else _waitQueue.offerFirst(waiter);
+            first = false;
+
+            // An object may have been returned or room made before we got in line.
+            serveWaiters();
+
+            ObjectPoolItem object = null;
+            try
+            {
+                long left = -1l;
+                if (timeout >= 0) left = Math.max( deadline - System.nanoTime(), 0l );
+                object = waiter.await(left);
+            }
+            catch (InterruptedException ie)
+            {
+                if ( waiter.cancel() ) _waitQueue.remove(waiter);
+                else release( waiter.getItem() );
+                throw ie;
+            }
+
+            if (object == null)
+            {
+                // We may have been handed an object just as we gave up.
+                if ( waiter.cancel() )
+                {
+                    _waitQueue.remove(waiter);
+                    _metrics.timedOut();
+                    throw new PoolTimeoutException
+                    (
+                        "Timed out after " + timeout + " " + unit.toString().toLowerCase() + " waiting for an object, " +
+                        _waitQueue.size() + " still waiting"
+                    );
+                }
+                object = waiter.getItem();
+            }
+
+            if ( validateObject(object) ) return borrow(object);
+
+            _manager.debug("[" + object.item + "] object failed validation", 1);
+            expireObject(object);
+        }
+    }
+
+    /**
+     * Hands the given free item to the caller that has waited the longest, or puts it on the free list
+     * if nobody is waiting.
+     *
+     * @param item The item.
+     */
+    protected void release(ObjectPoolItem item)
+    {
+        while (item != null)
+        {
+            Waiter waiter = null;
+            while ( (waiter = _waitQueue.pollFirst()) != null )
+            {
+                if ( waiter.offer(item) ) return;
+            }
+
+            pushIdle(item);
+
+            // A caller may have gotten in line after we looked, so look again now that the item is free.
+            item = null;
+            if ( !_waitQueue.isEmpty() && (item = _idle.pollFirst()) != null ) _idleCount.decrementAndGet();
+        }
+    }
+
+    /**
+     * Hands free objects to the callers waiting in line, creating new ones if there is room in the pool.
+     */
+    protected void serveWaiters()
+    {
+        while ( !_waitQueue.isEmpty() )
+        {
+            ObjectPoolItem object = _idle.pollFirst();
+            if (object != null)
+            {
+                _idleCount.decrementAndGet();
+            }
+            else
+            {
+                if (reserve(1) == 0) return;
+                try
+                {
+                    object = createObject();
+                }
+                catch (Exception e)
+                {
+                    _size.decrementAndGet();
+                    _manager.debug("Could not create object for waiting caller: " + e, 1);
+                    return;
+                }
+            }
+            release(object);
+        }
+    }
+
+    /**
+     * Marks the given item as in use and returns it.
+     *
+     * @param item The item.
+     * @return ObjectPoolItem
+     */
+    protected ObjectPoolItem borrow(ObjectPoolItem item)
+    {
+        Long now = Long.valueOf( System.currentTimeMillis() );
+        _borrowed.put(item, now);
+        _inUseCount.incrementAndGet();
+        if (_borrowBuckets != null) addToBucket(item, now);
+        markBorrowed(item);
+        return item;
+    }
+
+    /**
+     * Reserves room for up to the given number of new objects without going over the maximum
+     * number of objects. Returns the number of objects that were reserved.
+     *
+     * @param count The number of objects wanted.
+     * @return int
+     */
+    protected int reserve(int count)
+    {
+        while (count > 0)
+        {
+            int size = _size.get();
+            int available = _config.maxObjects - size;
+            if (available <= 0) return 0;
+            int take = (count < available ? count : available);
+            if ( _size.compareAndSet(size, size+take) ) return take;
+        }
+        return 0;
+    }
+
+    /**
+     * Pushes the given item on to the top of the free list.
+     *
+     * @param item The item.
+     */
+    protected void pushIdle(ObjectPoolItem item)
+    {
+        item.lastReturned = System.currentTimeMillis();
+        _idle.offerFirst(item);
+        _idleCount.incrementAndGet();
+    }
+
+    protected boolean createSpare() throws Exception
+    {
+        if (reserve(1) == 0) return false;
+        try
+        {
+            release( createObject() );
+        }
+        catch (Exception e)
+        {
+            _size.decrementAndGet();
+            throw e;
+        }
+        return true;
+    }
+
+    protected ObjectPoolItem replace(ObjectPoolItem object) throws Exception
+    {
+        if (object != null) expireObject(object);
+
+        if (reserve(1) == 0) return null;
+        try
+        {
+            return createObject();
+        }
+        catch (Exception e)
+        {
+            _size.decrementAndGet();
+            throw e;
+        }
+    }
+
+    protected boolean expand() throws Exception
+    {
+        // Default increment to 1 if not set to a valid value.
+        int increment = 1;
+        if (_config.increment >= 1) increment = _config.increment;
+
+        // With a filler, only the object needed now is created by the caller and the rest are
+        // created in parallel in the background.
+        int background = 0;
+        if (_filler != null && increment > 1)
+        {
+            background = increment - 1;
+            increment = 1;
+        }
+
+        int reserved = reserve(increment);
+        if (reserved == 0) return false;
+        _metrics.expanded();
+
+        _manager.debug("Enter Expand, InUse: " + _inUseCount.get() + ", free = " + _idleCount.get(), 1);
+
+        if ( _config.alertOnExpand && reserveAlert() )
+        {
+            if (_config.debug) printInUse( new PrintWriter(System.err) );
+
+            StringWriter msgWriter = new StringWriter();
+            printInUse( new PrintWriter(msgWriter) );
+            StringBuffer msg = new StringBuffer("Object pool is being expanded!\n\n").append( msgWriter.toString() );
+            alert( msg.toString() );
+        }
+
+        int created = 0;
+        try
+        {
+            for (; created<reserved; created++)
+            {
+                pushIdle( createObject() );
+            }
+        }
+        finally
+        {
+            // Give back any room we reserved but did not fill.
+            if (created < reserved) _size.addAndGet(created - reserved);
+        }
+        if (background > 0) _filler.fill(background);
+
+        _manager.debug("Exit Expand, InUse: " + _inUseCount.get() + ", free = " + _idleCount.get(), 1);
+
+        return true;
+    }
+
+    protected ObjectPoolItem findItem(Object obj)
+    {
+        return _items.get(obj);
+    }
+
+    public void returnItem(ObjectPoolItem item)
+    {
+        if (_config.debug && _config.debugLevel > 0)
+        {
+            _manager.debug
+            (
+                "[" + Thread.currentThread() + "], Enter ReturnObject InUse: " + _inUseCount.get() +
+                ", free = " + _idleCount.get()
+            );
+        }
+        if (item != null)
+        {
+            // Only return the object to the free pool if it is successfully removed from the inuse pool
+            Long borrowed = _borrowed.remove(item);
+            if (borrowed != null)
+            {
+                removeFromBucket(item, borrowed);
+                _inUseCount.decrementAndGet();
+                _metrics.returned( System.currentTimeMillis() - borrowed.longValue() );
+
+                // If shrinking is turned on and we are above the minimum then do not return the object,
+                // instead discard it.
+                if (_config.allowShrinking && _config.shrinkDelay == 0l && _idleCount.get() >= getPoolMin())
+                {
+                    _manager.debug("[" + Thread.currentThread() + "], not returning object " + item.item + " to allow pool to shrink", 1);
+                    expireObject(item);
+                }
+                else
+                {
+                    release(item);
+                }
+            }
+            else
+            {
+                _manager.debug("[" + Thread.currentThread() + "], ReturnObject object not found in inuse hash, obj = " + item.item, 1);
+            }
+        }
+    }
+
+    protected void shrink()
+    {
+        if (!_config.allowShrinking) return;
+
+        shrinkFree( getPoolMin() );
+
+        _manager.debug("AfterShrink, InUse: " + _inUseCount.get() + ", free = " + _idleCount.get(), 1);
+    }
+
+    protected void shrinkFree(int keep)
+    {
+        while (_idleCount.get() > keep)
+        {
+            // Take from the bottom of the stack as those are the objects that have been idle the longest.
+            ObjectPoolItem item = _idle.pollLast();
+            if (item == null) break;
+            _idleCount.decrementAndGet();
+            _manager.debug("[" + Thread.currentThread() + "], removing object " + item.item + " to shrink pool", 1);
+            expireObject(item);
+        }
+    }
+
+    public void flush()
+    {
+        ObjectPoolItem o = null;
+        while ( (o = _idle.pollFirst()) != null )
+        {
+            _idleCount.decrementAndGet();
+            expireObject(o);
+        }
+    }
+
+    public void close() throws PoolInUseException
+    {
+        flush();
+        int size = _inUseCount.get();
+        if (size > 0) throw new PoolInUseException("There are " + size + " Objects in use");
+    }
+
+    /**
+     * Adds the given item to the bucket for the time it was borrowed.
+     *
+     * @param item The item.
+     * @param borrowed The time it was borrowed.
+     */
+    protected void addToBucket(ObjectPoolItem item, Long borrowed)
+    {
+        Long key = Long.valueOf(borrowed.longValue() / _bucketWidth);
+        Set<ObjectPoolItem> bucket = _borrowBuckets.get(key);
+        if (bucket == null)
+        {
+            bucket = Collections.newSetFromMap( new ConcurrentHashMap<ObjectPoolItem, Boolean>() );
+            Set<ObjectPoolItem> existing = _borrowBuckets.putIfAbsent(key, bucket);
+            if (existing != null) bucket = existing;
+        }
+        bucket.add(item);
+    }
+
+    /**
+     * Removes the given item from the bucket for the time it was borrowed.
+     *
+     * @param item The item.
+     * @param borrowed The time it was borrowed.
+     */
+    protected void removeFromBucket(ObjectPoolItem item, Long borrowed)
+    {
+        if (_borrowBuckets == null) return;
+        Set<ObjectPoolItem> bucket = _borrowBuckets.get( Long.valueOf(borrowed.longValue() / _bucketWidth) );
+        if (bucket != null) bucket.remove(item);
+    }
+
+    protected void inUseClean() throws Exception
+    {
+        if (_config.maxUseTime < 0 || _borrowBuckets == null) return;
+
+        long now = System.currentTimeMillis();
+        long current = now / _bucketWidth;
+        // Only buckets that start before the cutoff can contain objects that have been in use too long.
+        long cutoff = (now - _config.maxUseTime*1000l) / _bucketWidth;
+        Iterator<Map.Entry<Long, Set<ObjectPoolItem>>> buckets = _borrowBuckets.headMap( Long.valueOf(cutoff), true ).entrySet().iterator();
+        while ( buckets.hasNext() )
+        {
+            Map.Entry<Long, Set<ObjectPoolItem>> bucket = buckets.next();
+            Iterator<ObjectPoolItem> i = bucket.getValue().iterator();
+            while ( i.hasNext() )
+            {
+                ObjectPoolItem o = i.next();
+                Long borrowed = _borrowed.get(o);
+                if (borrowed == null)
+                {
+                    i.remove();
+                }
+                else if ( (now - borrowed.longValue()) / 1000l > _config.maxUseTime && _borrowed.remove(o, borrowed) )
+                {
+                    _manager.debug("[" + o.item + "] object has expired", 1);
+                    // The object has expired, re-create it in the background
+                    i.remove();
+                    _inUseCount.decrementAndGet();
+                    expireObject(o);
+                    fillInBackground(1);
+                }
+            }
+
+            // Leave the most recent buckets alone as they may still be added to.
+            if ( bucket.getValue().isEmpty() && bucket.getKey().longValue() < current-1 ) buckets.remove();
+        }
+
+        _manager.debug("AfterinUseClean, InUse: " + _inUseCount.get() + ", free = " + _idleCount.get(), 1);
+    }
+
+    protected void clean() throws Exception
+    {
+        if (_config.expirationTime < 0) return;
+
+        long now = System.currentTimeMillis();
+        // The objects idle the longest are at the bottom of the stack, so stop at the first that is not expired.
+        while (true)
+        {
+            ObjectPoolItem o = _idle.peekLast();
+            if ( o == null || (now - o.lastReturned) / 1000l <= _config.expirationTime ) break;
+            if ( _idle.removeLastOccurrence(o) )
+            {
+                _idleCount.decrementAndGet();
+
+                // It may have been borrowed and returned since we looked at it.
+                if ( (now - o.lastReturned) / 1000l <= _config.expirationTime )
+                {
+                    release(o);
+                    break;
+                }
+
+                _manager.debug("[" + o.item + "] object has expired", 1);
+                // The object has expired, re-create it in the background.
+                expireObject(o);
+                fillInBackground(1);
+            }
+        }
+
+        _manager.debug("AfterClean, InUse: " + _inUseCount.get() + ", free = " + _idleCount.get(), 1);
+    }
+
+    protected int getInUseCount()
+    {
+        return _inUseCount.get();
+    }
+
+    protected int getFreeCount()
+    {
+        return _idleCount.get();
+    }
+
+    public void printInUse(PrintWriter out)
+    {
+        out.println("******************" + new java.util.Date() + "**********************");
+        long now = System.currentTimeMillis();
+        Iterator<Map.Entry<ObjectPoolItem, Long>> i = _borrowed.entrySet().iterator();
+        while ( i.hasNext() )
+        {
+            Map.Entry<ObjectPoolItem, Long> entry = i.next();
+            long time = entry.getValue().longValue();
+            out.println( "------> (" + ( (now-time)/1000l ) + " s) " + entry.getKey().toString() );
+        }
+        out.println("*******************************************************");
+        out.flush();
+    }
+
+    protected Map<ObjectPoolItem, Long> getInUseTimes()
+    {
+        return new HashMap<ObjectPoolItem, Long>(_borrowed);
+    }
+
+    public ObjectPoolState getState()
+    {
+        ObjectPoolState state = new ObjectPoolState();
+        state.poolConfig = _config;
+        state.objectsAvailable = _idleCount.get();
+        state.objectsInUse = _inUseCount.get();
+        state.objectsExpired = _expired.get();
+        state.inUseHash = new Hashtable<ObjectPoolItem, Long>(_borrowed);
+        state.metrics = _metrics;
+        return state;
+    }
+}
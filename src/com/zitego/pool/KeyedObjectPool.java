@@ -0,0 +1,487 @@
+package com.zitego.pool;
+
+import java.util.ArrayList;
+import java.util.Hashtable;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An object pool that keeps a separate pool of objects for each key, such as a pool of sessions
+ * for each host. The pool for a key is created the first time the key is used, using the manager
+ * that the KeyedObjectPoolManager returns for the key.
+ * <p>
+ * maxObjects, minObjects and the rest of the configuration apply to each key, and can be changed
+ * for a single key with setKeyConfig(Object, String). maxTotal limits the number of objects across
+ * all keys. When that limit is reached, the objects of the least recently used key that has none
+ * in use are destroyed to make room. If keyIdleTime is set, keys that have had no objects in use
+ * for that long are destroyed in the background.
+ * <p>
+ * For example:<br>
+ * <pre>
+ *  KeyedObjectPool pool = new KeyedObjectPool
+ *  (
+ *      new KeyedObjectPoolManager()
+ *      {
+ *          public ObjectPoolManager getPoolManager(Object host) { return new FTPSessionManager( (String)host ); }
+ *      },
+ *      ObjectPoolConfig.parse("min=0,max=5,increment=1,block=true,maxWait=5000,maxtotal=50,keyidletime=300")
+ *  );
+ *  Object session = pool.getObject("ftp.zitego.com");
+ *  ...
+ *  pool.returnObject("ftp.zitego.com", session);
+ * </pre>
+ *
+ * @author John Glorioso
+ * @version $Id$
+ */
+public class KeyedObjectPool
+{
+    /** The factory of managers for each key. */
+    protected KeyedObjectPoolManager _factory;
+    /** The configuration for each key. */
+    protected ObjectPoolConfig _config;
+    /** The configurations for keys that do not use the default configuration. */
+    protected Hashtable<Object, ObjectPoolConfig> _keyConfigs;
+    /** The keys in least recently used order. */
+    protected LinkedHashMap<Object, KeyEntry> _keys;
+    /** The entry that each object out of the pool was borrowed from. */
+    protected IdentityHashMap<Object, KeyEntry> _borrowed;
+    /** The room left for objects across all keys. Null if there is no limit. */
+    protected Semaphore _room;
+    /** The task that destroys idle keys. */
+    protected ScheduledFuture<?> _evictTask;
+
+    /**
+     * Creates a keyed object pool with the given manager factory and configuration.
+     *
+     * @param KeyedObjectPoolManager The factory of managers for each key.
+     * @param ObjectPoolConfig The configuration.
+     */
+    public KeyedObjectPool(KeyedObjectPoolManager factory, ObjectPoolConfig config)
+    {
+        _factory = factory;
+        _config = (config == null ? new ObjectPoolConfig() : config);
+        _keyConfigs = new Hashtable<Object, ObjectPoolConfig>();
+        _keys = new LinkedHashMap<Object, KeyEntry>(16, 0.75f, true);
+        _borrowed = new IdentityHashMap<Object, KeyEntry>();
+        if (_config.maxTotal >= 0) _room = new Semaphore(_config.maxTotal);
+
+        if (_config.keyIdleTime >= 0)
+        {
+            //Time passed in is seconds, so check at half the interval
+            _evictTask = PoolMaintenance.getInstance().schedule
+            (
+                new Runnable()
+                {
+                    public void run()
+                    {
+                        try
+                        {
+                            evictIdleKeys();
+                        }
+                        catch (Throwable t)
+                        {
+                            t.printStackTrace(System.err);
+                        }
+                    }
+                },
+                _config.keyIdleTime*1000l/2l
+            );
+        }
+    }
+
+    /**
+     * Sets the configuration for the given key. Any values not in the config string are inherited from
+     * the pool configuration. This takes effect the next time the key's pool is created.
+     *
+     * @param Object The key.
+     * @param String The config string.
+     */
+    public void setKeyConfig(Object key, String config)
+    {
+        _keyConfigs.put( key, ObjectPoolConfig.parse(_config, config) );
+    }
+
+    /**
+     * Returns an object for the given key.
+     *
+     * @param Object The key.
+     * @return Object
+     * @throws PoolTimeoutException if the key's pool blocks and no object became available in time.
+     * @throws Exception if a new object needs to be created and an error occurs creating it or there is no
+     *                   room for it across all keys.
+     */
+    public Object getObject(Object key) throws Exception
+    {
+        KeyEntry entry = acquire(key);
+        try
+        {
+            return borrowed( entry, entry.getPool().getObject() );
+        }
+        catch (Exception e)
+        {
+            release(entry);
+            throw e;
+        }
+    }
+
+    /**
+     * Returns an object for the given key, waiting up to the given amount of time for one if the
+     * key's pool is maxed out. A negative timeout waits forever.
+     *
+     * @param Object The key.
+     * @param long The longest time to wait.
+     * @param TimeUnit The unit of the timeout.
+     * @return Object
+     * @throws PoolTimeoutException if no object became available in time.
+     * @throws Exception if a new object needs to be created and an error occurs creating it or there is no
+     *                   room for it across all keys.
+     */
+    public Object getObject(Object key, long timeout, TimeUnit unit) throws Exception
+    {
+        KeyEntry entry = acquire(key);
+        try
+        {
+            return borrowed( entry, entry.getPool().getObject(timeout, unit) );
+        }
+        catch (Exception e)
+        {
+            release(entry);
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the given object to the pool it was borrowed from. Objects that were not borrowed from
+     * this pool, or were already returned, are ignored.
+     *
+     * @param Object The key.
+     * @param Object The object.
+     */
+    public void returnObject(Object key, Object obj)
+    {
+        KeyEntry entry = null;
+        boolean removed = false;
+        synchronized (this)
+        {
+            entry = _borrowed.remove(obj);
+            if (entry == null) return;
+            removed = (_keys.get(entry.key) != entry);
+        }
+        ObjectPool pool = entry.pool;
+        // If the key was removed while the object was in use, the object has already been expired.
+        if (!removed && pool != null) pool.returnObject(obj);
+        release(entry);
+    }
+
+    /**
+     * Destroys the pool for the given key, including objects that are in use.
+     *
+     * @param Object The key.
+     */
+    public void removeKey(Object key)
+    {
+        KeyEntry entry = null;
+        synchronized (this)
+        {
+            entry = _keys.remove(key);
+        }
+        if (entry != null) entry.destroy();
+    }
+
+    /**
+     * Destroys the pools for all keys.
+     */
+    public void destroy()
+    {
+        if (_evictTask != null) _evictTask.cancel(false);
+
+        List<KeyEntry> entries = null;
+        synchronized (this)
+        {
+            entries = new ArrayList<KeyEntry>( _keys.values() );
+            _keys.clear();
+            _borrowed.clear();
+        }
+        for (int i=0; i<entries.size(); i++)
+        {
+            entries.get(i).destroy();
+        }
+    }
+
+    /**
+     * Returns the keys that currently have a pool, least recently used first.
+     *
+     * @return List
+     */
+    public synchronized List<Object> getKeys()
+    {
+        return new ArrayList<Object>( _keys.keySet() );
+    }
+
+    /**
+     * Returns the state of the pool for the given key, or null if the key does not have a pool.
+     *
+     * @param Object The key.
+     * @return ObjectPoolState
+     */
+    public ObjectPoolState getState(Object key)
+    {
+        KeyEntry entry = null;
+        synchronized (this)
+        {
+            entry = _keys.get(key);
+        }
+        ObjectPool pool = (entry != null ? entry.pool : null);
+        return (pool != null ? pool.getState() : null);
+    }
+
+    /**
+     * Returns the number of objects that can still be created across all keys, or -1 if there is
+     * no limit.
+     *
+     * @return int
+     */
+    public int getRoomLeft()
+    {
+        return (_room != null ? _room.availablePermits() : -1);
+    }
+
+    /**
+     * Returns the entry for the given key, creating it if need be, and marks that an object is
+     * being borrowed from it so that it will not be removed.
+     *
+     * @param Object The key.
+     * @return KeyEntry
+     */
+    protected synchronized KeyEntry acquire(Object key)
+    {
+        KeyEntry entry = _keys.get(key);
+        if (entry == null)
+        {
+            entry = new KeyEntry(key);
+            _keys.put(key, entry);
+        }
+        entry.borrowers++;
+        return entry;
+    }
+
+    /**
+     * Records the entry that the given object was borrowed from so that it goes back to the same pool
+     * even if the key is removed and used again while the object is out.
+     *
+     * @param KeyEntry The entry.
+     * @param Object The object.
+     * @return Object
+     */
+    protected synchronized Object borrowed(KeyEntry entry, Object obj)
+    {
+        _borrowed.put(obj, entry);
+        return obj;
+    }
+
+    /**
+     * Marks that an object borrowed from the given entry is no longer in use.
+     *
+     * @param KeyEntry The entry.
+     */
+    protected synchronized void release(KeyEntry entry)
+    {
+        entry.borrowers--;
+        entry.lastUsed = System.currentTimeMillis();
+    }
+
+    /**
+     * Reserves room for a new object for the given key, destroying the objects of the least recently
+     * used keys with none in use if that is what it takes.
+     *
+     * @param Object The key the object is for.
+     * @throws Exception if there is no room.
+     */
+    protected void reserveObject(Object key) throws Exception
+    {
+        if (_room == null) return;
+        while ( !_room.tryAcquire() )
+        {
+            if ( !evictLeastRecentlyUsed(key) )
+            {
+                throw new Exception("Maximum number of objects across all keys has been reached, none available");
+            }
+        }
+    }
+
+    /**
+     * Gives back the room held by an object that was expired or could not be created.
+     */
+    protected void releaseObject()
+    {
+        if (_room != null) _room.release();
+    }
+
+    /**
+     * Destroys the pool of the least recently used key, other than the given one, that has free objects
+     * and none in use. Returns false if there is no such key.
+     *
+     * @param Object The key to leave alone.
+     * @return boolean
+     */
+    protected boolean evictLeastRecentlyUsed(Object except)
+    {
+        KeyEntry victim = null;
+        synchronized (this)
+        {
+            for (Iterator<KeyEntry> i=_keys.values().iterator(); i.hasNext() && victim == null;)
+            {
+                KeyEntry entry = i.next();
+                ObjectPool pool = entry.pool;
+                if (entry.borrowers == 0 && pool != null && !entry.key.equals(except) && pool.getState().objectsAvailable > 0)
+                {
+                    i.remove();
+                    victim = entry;
+                }
+            }
+        }
+        if (victim == null) return false;
+
+        victim.destroy();
+        return true;
+    }
+
+    /**
+     * Destroys the pools of keys that have had no objects in use for keyIdleTime seconds.
+     */
+    protected void evictIdleKeys()
+    {
+        long now = System.currentTimeMillis();
+        List<KeyEntry> idle = new ArrayList<KeyEntry>();
+        synchronized (this)
+        {
+            for (Iterator<KeyEntry> i=_keys.values().iterator(); i.hasNext();)
+            {
+                KeyEntry entry = i.next();
+                if (entry.borrowers == 0 && (now - entry.lastUsed) / 1000l >= _config.keyIdleTime)
+                {
+                    i.remove();
+                    idle.add(entry);
+                }
+            }
+        }
+        for (int i=0; i<idle.size(); i++)
+        {
+            idle.get(i).destroy();
+        }
+    }
+
+    /**
+     * The pool for a single key along with the number of objects borrowed from it.
+     */
+    protected class KeyEntry
+    {
+        /** The key. */
+        public Object key;
+        /** The pool. Null until the first object is borrowed. */
+        public volatile ObjectPool pool;
+        /** The number of objects borrowed and not yet returned. Guarded by the KeyedObjectPool. */
+        public int borrowers = 0;
+        /** The last time an object was returned. Guarded by the KeyedObjectPool. */
+        public long lastUsed = System.currentTimeMillis();
+
+        KeyEntry(Object key)
+        {
+            this.key = key;
+        }
+
+        /**
+         * Returns the pool for this key, creating it if need be.
+         *
+         * @return ObjectPool
+         * @throws Exception if the pool cannot be created.
+         */
+        public synchronized ObjectPool getPool() throws Exception
+        {
+            if (pool == null)
+            {
+                ObjectPoolConfig config = _keyConfigs.get(key);
+                if (config == null) config = _config;
+                pool = ObjectPoolFactory.getObjectPool
+                (
+                    new KeyedPoolManager( KeyedObjectPool.this, key, _factory.getPoolManager(key) ), config.getCopy()
+                );
+            }
+            return pool;
+        }
+
+        /**
+         * Destroys the pool for this key.
+         */
+        public synchronized void destroy()
+        {
+            if (pool != null) pool.destroy();
+            pool = null;
+        }
+    }
+}
+
+/**
+ * Wraps the manager for a key of a KeyedObjectPool so that every object created or expired is
+ * counted against the limit across all keys.
+ */
+class KeyedPoolManager implements ObjectPoolManager
+{
+    protected KeyedObjectPool _pool;
+    protected Object _key;
+    protected ObjectPoolManager _manager;
+
+    KeyedPoolManager(KeyedObjectPool pool, Object key, ObjectPoolManager manager)
+    {
+        _pool = pool;
+        _key = key;
+        _manager = manager;
+    }
+
+    public Object createPoolObject() throws Exception
+    {
+        _pool.reserveObject(_key);
+        try
+        {
+            return _manager.createPoolObject();
+        }
+        catch (Exception e)
+        {
+            _pool.releaseObject();
+            throw e;
+        }
+    }
+
+    public boolean validate(Object o)
+    {
+        return _manager.validate(o);
+    }
+
+    public void expire(Object o)
+    {
+        try
+        {
+            _manager.expire(o);
+        }
+        finally
+        {
+            _pool.releaseObject();
+        }
+    }
+
+    public void debug(String msg)
+    {
+        _manager.debug(msg);
+    }
+
+    public void debug(String msg, int level)
+    {
+        _manager.debug(msg, level);
+    }
+}
@@ -0,0 +1,21 @@
+package com.zitego.pool;
+
+/**
+ * A factory of ObjectPoolManagers for a KeyedObjectPool. A KeyedObjectPool keeps a separate
+ * pool of objects for each key (a host for example) and asks this factory for the manager that
+ * creates, validates and expires the objects for a key the first time the key is used.
+ *
+ * @author John Glorioso
+ * @version $Id$
+ */
+public interface KeyedObjectPoolManager
+{
+    /**
+     * Returns the manager for the objects pooled under the given key.
+     *
+     * @param Object The key.
+     * @return ObjectPoolManager
+     * @throws Exception if a manager cannot be created for the key.
+     */
+    ObjectPoolManager getPoolManager(Object key) throws Exception;
+}
@@ -1,10 +1,31 @@
 package com.zitego.pool;
 
-import com.zitego.util.TextUtils;
-import com.zitego.mail.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Enumeration;
+import java.util.HashMap;
 import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
 import java.util.Date;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
 import java.io.*;
 
 /**
@@ -22,20 +43,40 @@ public class ObjectPool
     protected Hashtable _free;
     /** The actual objects. */
     protected Hashtable _objects;
+    /** The callers waiting for an object, oldest first. */
+    protected LinkedList<Waiter> _waiters;
+    /**
+     * Guards the free and in use pools, the pending count and the waiters. Objects are never created or
+     * validated while it is held. This is a lock rather than the object monitor so that a virtual thread
+     * waiting for it does not pin its carrier thread.
+     */
+    protected final ReentrantLock _lock = new ReentrantLock();
     /** The object manager for this pool. */
     protected ObjectPoolManager _manager;
     /** The configuration for this pool. */
     protected ObjectPoolConfig _config;
-    /** A thread that will expire connections that have been idle for the specified time limit. */
-    protected ExpireThread _expireThread;
-    /** A thread that will expire connections that have been in use for the specified time limit. */
-    protected MaxUseThread _maxUseThread;
-    /** A thread that will shrink the pool to its configured limits. */
-    protected ShrinkThread _shrinkThread;
+    /** The tasks scheduled with the shared PoolMaintenance to expire, max use clean and shrink this pool. */
+    protected List<ScheduledFuture<?>> _maintenanceTasks;
+    /** Creates objects in the background to pre-warm the pool and keep spare objects available. */
+    protected PoolFiller _filler;
+    /** Re-creates expired objects in the background for pools without a filler. Started when first needed. */
+    protected PoolFiller _replacer;
+    /** The number of objects being created outside of the pool lock. */
+    protected int _pending = 0;
     /** The number of objects that have been expired. */
     protected long _expiredObjects = 0;
     /** The last time an alert was sent. */
-    protected long _lastAlert = -1;
+    protected AtomicLong _lastAlert = new AtomicLong(-1l);
+    /** Where alerts are sent. Null if alerts cannot be delivered. */
+    protected AlertSink _alertSink;
+    /** The number of borrows that waited, timed out or failed as of the last alert check. */
+    protected long _lastSaturatedCount = 0;
+    /** Statistics about how this pool is being used. */
+    protected PoolMetrics _metrics = new PoolMetrics();
+    /** Estimates the size the pool should be from demand. Null if the pool is not adaptive. */
+    protected PoolSizer _sizer;
+    /** The size the pool is adapting toward, or -1 if the pool is not adaptive. */
+    protected volatile int _targetSize = -1;
 
     /**
      * Empty constructor for extending classes. Does nothing. Any initialization is expected to be
@@ -68,31 +109,106 @@ public class ObjectPool
         _inUse = new Hashtable();
         _free = new Hashtable();
         _objects = new Hashtable();
+        _waiters = new LinkedList<Waiter>();
 
         initialize();
+        startMaintenance();
+    }
+
+    /**
+     * Schedules the tasks that expire, max use clean and shrink the pool as dictated by the
+     * configuration, along with the task that checks the alert threshold. The tasks are run by the
+     * PoolMaintenance service that is shared by all pools.
+     */
+    protected void startMaintenance()
+    {
+        PoolMaintenance maintenance = PoolMaintenance.getInstance();
+        _maintenanceTasks = new ArrayList<ScheduledFuture<?>>();
+
+        // Schedule the alert check if the threshold can be reached.
+        if (_config.alertThreshold <= 100)
+        {
+            if (_alertSink == null) _alertSink = createAlertSink();
+            _maintenanceTasks.add
+            (
+                maintenance.schedule( new MaintenanceTask(this, MaintenanceTask.ALERT), _config.alertCheckInterval*1000l )
+            );
+        }
 
-        // Start cleaner thread if we are supposed to.
+        // Schedule the cleaner if we are supposed to.
         if (_config.expirationTime >= 0)
         {
-            _manager.debug("Initialize expiration Thread", 1);
+            _manager.debug("Schedule expiration", 1);
             //Time passed in is seconds, so check at half the interval
-            _expireThread = new ExpireThread( this, (long)(((double)_config.expirationTime)*1000l/2d) );
+            _maintenanceTasks.add
+            (
+                maintenance.schedule( new MaintenanceTask(this, MaintenanceTask.CLEAN), _config.expirationTime*1000l/2l )
+            );
         }
 
-        // Start maxUseCleaner thread if we are supposed to.
+        // Schedule the maxUseCleaner if we are supposed to.
         if (_config.maxUseTime >= 0)
         {
-            _manager.debug("Initialize maxUse Thread", 1);
+            _manager.debug("Schedule maxUse", 1);
+            //Time passed in is seconds, so check at half the interval
+            _maintenanceTasks.add
+            (
+                maintenance.schedule( new MaintenanceTask(this, MaintenanceTask.IN_USE_CLEAN), _config.maxUseTime*1000l/2l )
+            );
+        }
+
+        // Schedule adaptive sizing if we are supposed to.
+        if (_config.adaptive)
+        {
+            _manager.debug("Schedule adaptive sizing", 1);
+            _sizer = new PoolSizer(_config.adaptiveWindow*1000l);
+            //Time passed in is seconds, so check several times per window
+            _maintenanceTasks.add
+            (
+                maintenance.schedule( new MaintenanceTask(this, MaintenanceTask.ADAPT), _config.adaptiveWindow*1000l/6l )
+            );
+        }
+
+        // Schedule the leak check if we are supposed to.
+        if (_config.leakThreshold >= 0)
+        {
+            _manager.debug("Schedule leak check", 1);
             //Time passed in is seconds, so check at half the interval
-            _maxUseThread = new MaxUseThread( this, (long)(((double)_config.maxUseTime)*1000l/2d) );
+            _maintenanceTasks.add
+            (
+                maintenance.schedule( new MaintenanceTask(this, MaintenanceTask.LEAK_CHECK), _config.leakThreshold*1000l/2l )
+            );
         }
 
-        // Start the shrink thread if we are supposed to.
+        // Schedule the shrinker if we are supposed to.
         if (_config.allowShrinking && _config.shrinkDelay > 0)
         {
-            _manager.debug("Initialize shrink delay Thread", 1);
+            _manager.debug("Schedule shrink delay", 1);
             //Time passed in is seconds, so check at the interval
-            _shrinkThread = new ShrinkThread( this, (long)(_config.shrinkDelay*1000l) );
+            _maintenanceTasks.add
+            (
+                maintenance.schedule( new MaintenanceTask(this, MaintenanceTask.SHRINK), _config.shrinkDelay*1000l )
+            );
+        }
+    }
+
+    /**
+     * Cancels any maintenance tasks scheduled by startMaintenance() and stops the filler.
+     */
+    protected void stopMaintenance()
+    {
+        if (_maintenanceTasks != null)
+        {
+            for (int i=0; i<_maintenanceTasks.size(); i++)
+            {
+                _maintenanceTasks.get(i).cancel(false);
+            }
+            _maintenanceTasks.clear();
+        }
+        if (_filler != null) _filler.halt();
+        synchronized (this)
+        {
+            if (_replacer != null) _replacer.halt();
         }
     }
 
@@ -109,25 +225,38 @@ public class ObjectPool
         _config.maxObjects = 0;
         _config.minObjects = 0;
 
-        //Everyone out of the pool!
-        Enumeration e = _free.keys();
-        while ( e.hasMoreElements() )
+        List<ObjectPoolItem> removed = new ArrayList<ObjectPoolItem>();
+        _lock.lock();
+        try
         {
-            ObjectPoolItem o = (ObjectPoolItem)e.nextElement();
-            _free.remove(o);
-            expireObject(o);
+            //Everyone out of the pool!
+            Enumeration e = _free.keys();
+            while ( e.hasMoreElements() )
+            {
+                removed.add( (ObjectPoolItem)e.nextElement() );
+            }
+            _free.clear();
+
+            //You too, I don't care if you are in use!
+            e = _inUse.keys();
+            while ( e.hasMoreElements() )
+            {
+                removed.add( (ObjectPoolItem)e.nextElement() );
+            }
+            _inUse.clear();
+        }
+        finally
+        {
+            _lock.unlock();
         }
 
-        //You too, I don't care if you are in use!
-        e = _inUse.keys();
-        while ( e.hasMoreElements() )
+        //Only taking them out of the pool is done under the lock
+        for (int i=0; i<removed.size(); i++)
         {
-            ObjectPoolItem o = (ObjectPoolItem)e.nextElement();
-            _inUse.remove(o);
-            expireObject(o);
+            expireObject( removed.get(i) );
         }
 
-        _expireThread.destroy();
+        stopMaintenance();
     }
 
     /**
@@ -137,12 +266,109 @@ public class ObjectPool
      */
     protected void initialize() throws Exception
     {
+        startFiller();
+
         // Populate the pool with an initial number of objects based on the configration.
-        for (int i=0; i<_config.minObjects; i++)
+        if (_filler != null)
+        {
+            _filler.fillAndWait(_config.minObjects);
+        }
+        else
+        {
+            for (int i=0; i<_config.minObjects; i++)
+            {
+                _free.put( createObject(), new Long(System.currentTimeMillis()) );
+            }
+        }
+        _manager.debug("Pool contains " + getFreeCount() + " items", 1);
+    }
+
+    /**
+     * Starts the filler that creates objects in the background if the configuration calls for
+     * spare objects or more than one create thread.
+     */
+    protected void startFiller()
+    {
+        if (_config.spareObjects > 0 || _config.createThreads > 1)
         {
-            _free.put( createObject(), new Long(System.currentTimeMillis()) );
+            _manager.debug("Initialize filler with " + _config.createThreads + " create threads", 1);
+            _filler = new PoolFiller( this, Math.max(_config.createThreads, 1) );
         }
-        _manager.debug("Pool contains " + _free.size() + " items", 1);
+    }
+
+    /**
+     * Creates one new object outside of the pool lock and adds it to the free pool. Returns false
+     * if the pool is already at its maximum size.
+     *
+     * @return boolean
+     * @throws Exception if an error occurs creating the object.
+     */
+    protected boolean createSpare() throws Exception
+    {
+        _lock.lock();
+        try
+        {
+            if (_free.size() + _inUse.size() + _pending >= _config.maxObjects) return false;
+            _pending++;
+        }
+        finally
+        {
+            _lock.unlock();
+        }
+
+        ObjectPoolItem object = null;
+        try
+        {
+            object = createObject();
+        }
+        finally
+        {
+            _lock.lock();
+            try
+            {
+                _pending--;
+                if (object != null)
+                {
+                    _free.put( object, Long.valueOf(System.currentTimeMillis()) );
+                    if ( !_waiters.isEmpty() ) serveWaiters();
+                }
+            }
+            finally
+            {
+                _lock.unlock();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Creates the given number of objects in the background with the filler, or with a single threaded
+     * replacer started for pools that do not have one. Maintenance uses this since it runs on the threads
+     * that PoolMaintenance shares between all pools, which must never wait on an object being created.
+     *
+     * @param int The number of objects to create.
+     */
+    protected void fillInBackground(int count)
+    {
+        if (count <= 0) return;
+        if (_filler != null)
+        {
+            _filler.fill(count);
+            return;
+        }
+        synchronized (this)
+        {
+            if (_replacer == null) _replacer = new PoolFiller(this, 1);
+            _replacer.fill(count);
+        }
+    }
+
+    /**
+     * Asks the filler to top the free pool up to the configured number of spare objects.
+     */
+    protected void requestSpares()
+    {
+        if (_filler != null && _config.spareObjects > 0) _filler.topUp( getFreeCount(), _config.spareObjects );
     }
 
     /**
@@ -154,7 +380,18 @@ public class ObjectPool
     {
         _manager.debug("Create pool object", 1);
 
-        Object o = _manager.createPoolObject();
+        long start = System.nanoTime();
+        Object o = null;
+        try
+        {
+            o = _manager.createPoolObject();
+        }
+        catch (Exception e)
+        {
+            _metrics.createFailed();
+            throw e;
+        }
+        _metrics.created(System.nanoTime() - start);
         ObjectPoolItem item = new ObjectPoolItem(o);
         _objects.put(o, item);
 
@@ -162,7 +399,9 @@ public class ObjectPool
     }
 
     /**
-     * Verify that the passed ObjectPoolItem can still be used.
+     * Verify that the passed ObjectPoolItem can still be used. The manager is not asked to validate
+     * items that were returned within the validation idle time or validated within the validation
+     * interval.
      *
      * @param PbjectPoolItem The item to validate.
      */
@@ -173,10 +412,19 @@ public class ObjectPool
             _manager.debug("[" + item.item + "] item has reached usecount", 1);
             return false;
         }
-        else
+
+        long now = System.currentTimeMillis();
+        if ( now - item.lastReturned < _config.validationIdleTime || now - item.lastValidated < _config.validationInterval )
         {
-            return _manager.validate(item.item);
+            return true;
         }
+        else if ( !_manager.validate(item.item) )
+        {
+            _metrics.validationFailed();
+            return false;
+        }
+        item.lastValidated = now;
+        return true;
     }
 
     /**
@@ -191,434 +439,1077 @@ public class ObjectPool
             _manager.expire(item.item);
             _objects.remove(item.item);
             _free.remove(item);
-            _expiredObjects++;
+            _lock.lock();
+            try
+            {
+                _expiredObjects++;
+            }
+            finally
+            {
+                _lock.unlock();
+            }
         }
     }
 
     /**
-     * Returns a validated instance of an Object that this ObjectPool manages.
+     * Returns a validated instance of an Object that this ObjectPool manages. If the pool is
+     * configured to block, then this waits in line for up to maxWait milliseconds (forever if
+     * maxWait is negative) for an object to be returned.
      *
+     * @throws PoolTimeoutException if the pool blocks and no object became available in time.
      * @throws Exception if a new object needs to be created and an error occurs creating it.
      */
-    synchronized public Object getObject() throws Exception
+    public Object getObject() throws Exception
     {
-        if (_config.debug && _config.debugLevel > 0)
-        {
-            _manager.debug("[" + Thread.currentThread() + "] GetObject, InUse: " + _inUse.size() + ", free = " + _free.size(), 1);
-        }
-
-        long now = System.currentTimeMillis();
-        ObjectPoolItem object = null;
-        try
-        {
-            //If the pool has no available objects, then try to expand it.
-            //Retrieve next available object from the pool.
-            //Validate the object.
-            //Remove the object from the free pool.
-            //Put the object in the in use pool.
-            boolean keepTrying = true;
-            // This while loop allows us to expand the loop and try again if possible
-            while (keepTrying)
-            {
-                if (_free.size() > 0)
-                {
-                    // Iterate over available pool items, returning the first valid item.
-                    Enumeration objects = _free.keys();
-                    while ( objects.hasMoreElements() )
-                    {
-                        object = (ObjectPoolItem)objects.nextElement();
-                        if (object != null && object.item != null)
-                        {
-                            if ( validateObject(object) )
-                            {
-                                _free.remove(object);
-                                _inUse.put( object, new Long(now) );
-                                if (_config.enableTracing) object.trace();
-                                return object.item;
-                            }
-                            else
-                            {
-                                _manager.debug("[" + object.item + "] object failed validation", 1);
-
-                                // The object failed validation, replace it with a new one.
-                                object = replace(object);
-                                if ( object != null && validateObject(object) )
-                                {
-                                    _inUse.put( object, new Long(now) );
-                                    if (_config.enableTracing) object.trace();
-                                    return object.item;
-                                }
-                                else
-                                {
-                                    // If we fail validation on the new object, stop trying.
-                                    object = null;
-                                }
-                            }
-                        }
-                    }
-                }
-
-                //If we are not expanding the pool, then quit
-                if ( !expand() )
-                {
-                    if (_config.block) wait();
-                    else keepTrying = false;
-                }
-            }
-
-            // We've expanded the pool as far as it will go and there still are no available connections.
-            throw new Exception("Maximum number of objects in pool has been reached, none available");
-        }
-        finally
-        {
-            if (object != null) object.usecount++;
-            checkAlert();
-        }
+        return getItem().item;
     }
 
     /**
-     * Replace the specified pool object with a new pool object. The specified object
-     * is removed from the free pool and a new object is created and added to it.
+     * Returns a validated instance of an Object that this ObjectPool manages, waiting up to the given
+     * amount of time for one if the pool is maxed out. A negative timeout waits forever.
      *
-     * @param OBjectPoolItem The object to replace.
-     * @return ObjectPoolItem
+     * @param timeout The longest time to wait.
+     * @param unit The unit of the timeout.
+     * @return Object
+     * @throws PoolTimeoutException if no object became available in time.
+     * @throws InterruptedException if the thread is interrupted while waiting.
+     * @throws Exception if a new object needs to be created and an error occurs creating it.
      */
-    protected synchronized ObjectPoolItem replace(ObjectPoolItem object) throws Exception
+    public Object getObject(long timeout, TimeUnit unit) throws Exception
     {
-        if (object != null) expireObject(object);
-
-        object = null;
-        if (_inUse.size() + _free.size() < _config.maxObjects) object = createObject();
-
-        return object;
+        return getItem(timeout, unit).item;
     }
 
     /**
-     * Expands the pool by the increment specified in the config, or 1 if <= 0 was specified.
-     * The pool will only be expanded up to the maximum number of objects. Returns true only
-     * if the pool was successfully expanded.
+     * Returns the pool item holding a validated instance of an Object that this ObjectPool manages.
+     * This is the same as getObject(), but the item can be given back with returnItem(ObjectPoolItem)
+     * without the pool having to look the object up.
      *
-     * @return boolean
+     * @return ObjectPoolItem
+     * @throws PoolTimeoutException if the pool blocks and no object became available in time.
+     * @throws Exception if a new object needs to be created and an error occurs creating it.
      */
-    protected synchronized boolean expand() throws Exception
+    public ObjectPoolItem getItem() throws Exception
     {
-        _manager.debug("Enter Expand, InUse: " + _inUse.size() + ", free = " + _free.size(), 1);
+        if (_config.block) return getItem(_config.maxWait, TimeUnit.MILLISECONDS);
 
-        long now = System.currentTimeMillis();
-
-        if (_config.alertOnExpand )
+        long start = System.nanoTime();
+        if (_config.debug && _config.debugLevel > 0)
         {
-            if (_config.debug) printInUse( new PrintWriter(System.err) );
-
-            StringWriter msgWriter = new StringWriter();
-            printInUse( new PrintWriter(msgWriter) );
-            StringBuffer msg = new StringBuffer("Object pool is being expanded!\n\n").append( msgWriter.toString() );
-            alert( msg.toString() );
+            _manager.debug("[" + Thread.currentThread() + "] GetObject, InUse: " + _inUse.size() + ", free = " + _free.size(), 1);
         }
 
-        // Default increment to 1 if not set to a valid value.
-        long increment = 1;
-        if (_config.increment >= 1) increment = _config.increment;
-
-        int i = 0;
-        for (; i<increment && _free.size()+_inUse.size() < _config.maxObjects; i++)
+        ObjectPoolItem object = null;
+        try
         {
-            _free.put( createObject(), new Long(now) );
+            object = takeObject();
+        }
+        finally
+        {
+            if (object != null) object.usecount++;
+            requestSpares();
         }
 
-        _manager.debug("Exit Expand, InUse: " + _inUse.size() + ", free = " + _free.size(), 1);
-
-        if (i > 0) return true;
-
-        return false;
+        // We've expanded the pool as far as it will go and there still are no available connections.
+        if (object == null)
+        {
+            _metrics.exhausted();
+            throw new Exception("Maximum number of objects in pool has been reached, none available");
+        }
+        _metrics.borrowed(System.nanoTime() - start, false);
+        return object;
     }
 
     /**
-     * Returns the given Object to the ObjectPool when done with it.
+     * Returns a validated instance of an Object that this ObjectPool manages, waiting up to the given
+     * amount of time for one if the pool is maxed out. Callers that have to wait are served in the order
+     * they arrived and a returned object is handed directly to the caller that has waited the longest.
+     * A negative timeout waits forever.
      *
-     * @param Object The Object to return.
+     * @param timeout The longest time to wait.
+     * @param unit The unit of the timeout.
+     * @return ObjectPoolItem
+     * @throws PoolTimeoutException if no object became available in time.
+     * @throws InterruptedException if the thread is interrupted while waiting.
+     * @throws Exception if a new object needs to be created and an error occurs creating it.
      */
-    synchronized public void returnObject(Object obj)
+    public ObjectPoolItem getItem(long timeout, TimeUnit unit) throws Exception
     {
-        if (_config.debug && _config.debugLevel > 0)
-        {
-            _manager.debug
-            (
-                "[" + Thread.currentThread() + "], Enter ReturnObject InUse: " + _inUse.size() +
-                ", free = " + _free.size()
-            );
-        }
-        if (obj != null)
+        long start = System.nanoTime();
+        boolean waited = false;
+        while (true)
         {
-            ObjectPoolItem item = (ObjectPoolItem)_objects.get(obj);
-            if (item != null)
+            ObjectPoolItem object = null;
+            int slots = 0;
+            Waiter waiter = null;
+            _lock.lock();
+            try
             {
-                // Only return the object to the free pool if it is successfully removed from the inuse pool
-                if (_inUse.remove(item)!= null)
+                if (_config.debug && _config.debugLevel > 0)
                 {
-                    int poolMin = _config.minObjects;
-                    if (_config.shrinkFloor > poolMin) poolMin = _config.shrinkFloor;
+                    _manager.debug
+                    (
+                        "[" + Thread.currentThread() + "] GetObject, InUse: " + _inUse.size() + ", free = " + _free.size() +
+                        ", waiting = " + _waiters.size(), 1
+                    );
+                }
 
-                    // If shrinking is turned on and we are above the minimum then do not return the object,
-                    // instead discard it.
-                    if (_config.allowShrinking && _config.shrinkDelay == 0l && _free.size() >= poolMin)
-                    {
-                        _manager.debug("[" + Thread.currentThread() + "], not returning object " + obj + " to allow pool to shrink", 1);
-                        expireObject(item);
-                    }
-                    else
-                    {
-                        // Shrinking is not turned on, or we are at or below the minimum, return the object.
-                        _free.put( item, new Long(System.currentTimeMillis()) );
-                    }
+                // Only go to the pool directly if nobody is waiting, otherwise get in line. A caller that was
+                // handed an object that failed validation has already waited its turn.
+                if (waited || _waiters.isEmpty())
+                {
+                    object = claimFree();
+                    if (object == null) slots = reserveSlots();
                 }
-                else
+                if (object == null && slots == 0)
                 {
-                    _manager.debug("[" + Thread.currentThread() + "], ReturnObject object not found in inuse hash, obj = " + obj, 1);
+                    waiter = new Waiter();
+                    _waiters.addLast(waiter);
                 }
             }
-        }
-        if (_config.debug && _config.debugLevel > 0)
-        {
-            _manager.debug
-            (
-                "[" + Thread.currentThread() + "], Exit ReturnObject InUse: " + _inUse.size() +
-                ", free = " + _free.size()
-            );
-        }
+            finally
+            {
+                _lock.unlock();
+            }
+            requestSpares();
+
+            if (waiter != null)
+            {
+                waited = true;
+                long nanos = -1l;
+                if (timeout >= 0) nanos = Math.max( 0l, unit.toNanos(timeout) - (System.nanoTime() - start) );
+                object = awaitItem(waiter, nanos, timeout, unit);
+                if (object == null) slots = 1;
+            }
+
+            if (slots > 0) object = createReserved(slots);
+            else if ( !checkOut(object) ) continue;
 
-        if (_config.block) notifyAll();
+            object.usecount++;
+            _metrics.borrowed(System.nanoTime() - start, waited);
+            return object;
+        }
     }
 
     /**
-     * Shrinks the pool to it's configured limits.
+     * Waits in line with the given waiter for up to the given number of nanoseconds, forever if negative.
+     * Returns the object the waiter was handed, which still has to be validated, or null if the waiter was
+     * handed a reserved slot to create an object in instead. The waiter gives up its place in line if the
+     * time runs out or the thread is interrupted.
+     *
+     * @param Waiter The waiter, already in line.
+     * @param long The nanoseconds to wait.
+     * @param long The timeout the caller asked for, for the error message.
+     * @param TimeUnit The unit of that timeout.
+     * @return ObjectPoolItem
+     * @throws PoolTimeoutException if the time runs out.
+     * @throws InterruptedException if the thread is interrupted while waiting.
      */
-    protected synchronized void shrink()
+    protected ObjectPoolItem awaitItem(Waiter waiter, long nanos, long timeout, TimeUnit unit) throws Exception
     {
-        if (!_config.allowShrinking) return;
-
-        if (_config.debug && _config.debugLevel > 0)
+        ObjectPoolItem object = null;
+        try
         {
-            _manager.debug
-            (
-                "[" + Thread.currentThread() + ", " + this + "] Shrink, InUse: " + _inUse.size() +
-                ", free = " + _free.size()
-            );
+            object = waiter.await(nanos);
         }
-
-        int poolMin = _config.minObjects;
-        if (_config.shrinkFloor > poolMin) poolMin = _config.shrinkFloor;
-
-        while (_free.size() > poolMin)
+        catch (InterruptedException ie)
         {
-            ObjectPoolItem item = null;
-            Enumeration objects = _free.keys();
-            if ( objects.hasMoreElements() )
+            _lock.lock();
+            try
             {
-                item = (ObjectPoolItem)objects.nextElement();
-                if (_free.remove(item) == null) item = null;
+                if ( waiter.cancel() ) _waiters.remove(waiter);
+                else if ( waiter.hasSlot() ) releaseSlot();
+                else returnItem( waiter.getItem() );
             }
-
-            if (item != null)
+            finally
             {
-                _manager.debug("[" + Thread.currentThread() + "], removing object " + item.item + " to shrink pool", 1);
-                expireObject(item);
+                _lock.unlock();
             }
+            throw ie;
         }
 
-        _manager.debug("AfterShrink, InUse: " + _inUse.size() + ", free = " + _free.size(), 1);
-    }
-
-    /**
-     * Expire all Objects in the free list.
+        if (object == null && !waiter.hasSlot())
+        {
+            _lock.lock();
+            try
+            {
+                // We may have been handed an object just as we gave up.
+                if ( waiter.cancel() )
+                {
+                    _waiters.remove(waiter);
+                    _metrics.timedOut();
+                    throw new PoolTimeoutException
+                    (
+                        "Timed out after " + timeout + " " + unit.toString().toLowerCase() + " waiting for an object, " +
+                        _waiters.size() + " still waiting"
+                    );
+                }
+                object = waiter.getItem();
+            }
+            finally
+            {
+                _lock.unlock();
+            }
+        }
+        return object;
+    }
+
+    /**
+     * Takes a validated object out of the free pool, expanding the pool if none are free, and marks it
+     * as in use. Returns null if the pool has been expanded as far as it will go and no objects are free.
+     * The pool lock is only held to claim a free object or reserve room for a new one. The object is
+     * validated or created after the lock is released.
+     *
+     * @return ObjectPoolItem
+     * @throws Exception if a new object needs to be created and an error occurs creating it.
+     */
+    protected ObjectPoolItem takeObject() throws Exception
+    {
+        while (true)
+        {
+            ObjectPoolItem object = null;
+            int slots = 0;
+            _lock.lock();
+            try
+            {
+                object = claimFree();
+                if (object == null) slots = reserveSlots();
+            }
+            finally
+            {
+                _lock.unlock();
+            }
+
+            if (object != null)
+            {
+                if ( checkOut(object) ) return object;
+            }
+            else if (slots > 0)
+            {
+                return createReserved(slots);
+            }
+            else
+            {
+                //If we are not expanding the pool, then quit
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Moves an object from the free pool to the in use pool and returns it, or returns null if none are
+     * free. The object is not validated. The caller must hold the pool lock.
+     *
+     * @return ObjectPoolItem
+     */
+    protected ObjectPoolItem claimFree()
+    {
+        Enumeration objects = _free.keys();
+        while ( objects.hasMoreElements() )
+        {
+            ObjectPoolItem object = (ObjectPoolItem)objects.nextElement();
+            if (object != null && object.item != null && _free.remove(object) != null)
+            {
+                _inUse.put( object, Long.valueOf(System.currentTimeMillis()) );
+                return object;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Validates an object claimed with claimFree() outside of the pool lock. An object that is no longer
+     * valid is taken back out of the in use pool and expired, and false is returned.
+     *
+     * @param ObjectPoolItem The claimed object.
+     * @return boolean
+     */
+    protected boolean checkOut(ObjectPoolItem object)
+    {
+        if ( validateObject(object) )
+        {
+            markBorrowed(object);
+            return true;
+        }
+
+        _manager.debug("[" + object.item + "] object failed validation", 1);
+        _lock.lock();
+        try
+        {
+            _inUse.remove(object);
+            // The object's place in the pool is free now, so a waiter may create a new one in it.
+            if ( !_waiters.isEmpty() ) serveWaiters();
+        }
+        finally
+        {
+            _lock.unlock();
+        }
+        expireObject(object);
+        return false;
+    }
+
+    /**
+     * Hands free objects to the callers waiting in line, oldest first. If none are free but the pool has
+     * room, the callers are handed reserved slots to create new objects in themselves, so nothing is
+     * created while the pool lock is held. The callers validate what they are handed. The caller must
+     * hold the pool lock.
+     */
+    protected void serveWaiters()
+    {
+        while ( !_waiters.isEmpty() )
+        {
+            ObjectPoolItem object = claimFree();
+            if (object == null)
+            {
+                int slots = reserveSlots();
+                while ( slots > 0 && !_waiters.isEmpty() )
+                {
+                    if ( _waiters.removeFirst().offerSlot() ) slots--;
+                }
+                _pending -= slots;
+                return;
+            }
+
+            boolean handed = false;
+            while ( !handed && !_waiters.isEmpty() )
+            {
+                handed = _waiters.removeFirst().offer(object);
+            }
+
+            if (!handed)
+            {
+                _inUse.remove(object);
+                _free.put( object, Long.valueOf(System.currentTimeMillis()) );
+            }
+        }
+    }
+
+    /**
+     * Reserves room in the pool for the increment specified in the config, or 1 if <= 0 was specified,
+     * and returns the number of objects reserved. The pool will only be expanded up to the maximum number
+     * of objects, so this returns 0 if it is already full. The reserved objects are counted as pending
+     * until createReserved() creates them outside of the pool lock. With a filler, only one object is
+     * reserved and the rest of the increment is created in parallel in the background. The caller must
+     * hold the pool lock.
+     *
+     * @return int
+     */
+    protected int reserveSlots()
+    {
+        int room = _config.maxObjects - _free.size() - _inUse.size() - _pending;
+        if (room <= 0) return 0;
+
+        _manager.debug("Expand, InUse: " + _inUse.size() + ", free = " + _free.size() + ", pending = " + _pending, 1);
+
+        if ( _config.alertOnExpand && reserveAlert() )
+        {
+            if (_config.debug) printInUse( new PrintWriter(System.err) );
+
+            StringWriter msgWriter = new StringWriter();
+            printInUse( new PrintWriter(msgWriter) );
+            StringBuffer msg = new StringBuffer("Object pool is being expanded!\n\n").append( msgWriter.toString() );
+            alert( msg.toString() );
+        }
+
+        // Default increment to 1 if not set to a valid value.
+        int increment = 1;
+        if (_config.increment >= 1) increment = _config.increment;
+
+        if (_filler != null && increment > 1)
+        {
+            _filler.fill(increment - 1);
+            increment = 1;
+        }
+
+        int slots = Math.min(increment, room);
+        _pending += slots;
+        _metrics.expanded();
+        return slots;
+    }
+
+    /**
+     * Gives back one slot reserved with reserveSlots() without creating an object in it. The caller must
+     * hold the pool lock.
+     */
+    protected void releaseSlot()
+    {
+        _pending--;
+        if ( !_waiters.isEmpty() ) serveWaiters();
+    }
+
+    /**
+     * Creates objects in the given number of slots reserved with reserveSlots(), outside of the pool lock,
+     * then takes the lock again to add them to the pool and wake any waiters. The first object is marked
+     * as in use and returned, the rest are added to the free pool. Slots that could not be filled are
+     * given back.
+     *
+     * @param int The number of reserved slots.
+     * @return ObjectPoolItem
+     * @throws Exception if an error occurs creating the first object.
+     */
+    protected ObjectPoolItem createReserved(int slots) throws Exception
+    {
+        ObjectPoolItem object = null;
+        List<ObjectPoolItem> spares = new ArrayList<ObjectPoolItem>();
+        try
+        {
+            object = createObject();
+            for (int i=1; i<slots; i++)
+            {
+                spares.add( createObject() );
+            }
+        }
+        catch (Exception e)
+        {
+            // Only the object the caller needs is worth failing over.
+            if (object == null) throw e;
+            e.printStackTrace(System.err);
+        }
+        finally
+        {
+            _lock.lock();
+            try
+            {
+                _pending -= slots;
+                long now = System.currentTimeMillis();
+                if (object != null) _inUse.put( object, Long.valueOf(now) );
+                for (int i=0; i<spares.size(); i++)
+                {
+                    _free.put( spares.get(i), Long.valueOf(now) );
+                }
+                if ( !_waiters.isEmpty() ) serveWaiters();
+            }
+            finally
+            {
+                _lock.unlock();
+            }
+        }
+
+        markBorrowed(object);
+        return object;
+    }
+
+    /**
+     * Returns the given Object to the ObjectPool when done with it.
+     *
+     * @param Object The Object to return.
+     */
+    public void returnObject(Object obj)
+    {
+        if (obj == null) return;
+        ObjectPoolItem item = findItem(obj);
+        if (item != null) returnItem(item);
+    }
+
+    /**
+     * Returns the pool item for the given Object, or null if the Object is not from this pool.
+     *
+     * @param Object The Object.
+     * @return ObjectPoolItem
+     */
+    protected ObjectPoolItem findItem(Object obj)
+    {
+        return (ObjectPoolItem)_objects.get(obj);
+    }
+
+    /**
+     * Returns the given pool item, as returned by getItem(), to the ObjectPool when done with it.
+     *
+     * @param ObjectPoolItem The item to return.
+     */
+    public void returnItem(ObjectPoolItem item)
+    {
+        _lock.lock();
+        try
+        {
+            if (_config.debug && _config.debugLevel > 0)
+            {
+                _manager.debug
+                (
+                    "[" + Thread.currentThread() + "], Enter ReturnObject InUse: " + _inUse.size() +
+                    ", free = " + _free.size()
+                );
+            }
+            if (item != null)
+            {
+                // Only return the object to the free pool if it is successfully removed from the inuse pool
+                Long borrowed = (Long)_inUse.remove(item);
+                if (borrowed != null)
+                {
+                    _metrics.returned( System.currentTimeMillis() - borrowed.longValue() );
+
+                    // If shrinking is turned on and we are above the minimum then do not return the object,
+                    // instead discard it.
+                    if (_config.allowShrinking && _config.shrinkDelay == 0l && _free.size() >= getPoolMin())
+                    {
+                        _manager.debug("[" + Thread.currentThread() + "], not returning object " + item.item + " to allow pool to shrink", 1);
+                        expireObject(item);
+                    }
+                    else
+                    {
+                        // Shrinking is not turned on, or we are at or below the minimum, return the object.
+                        item.lastReturned = System.currentTimeMillis();
+                        _free.put( item, new Long(item.lastReturned) );
+                    }
+                }
+                else
+                {
+                    _manager.debug("[" + Thread.currentThread() + "], ReturnObject object not found in inuse hash, obj = " + item.item, 1);
+                }
+            }
+            if (_config.debug && _config.debugLevel > 0)
+            {
+                _manager.debug
+                (
+                    "[" + Thread.currentThread() + "], Exit ReturnObject InUse: " + _inUse.size() +
+                    ", free = " + _free.size()
+                );
+            }
+
+            if ( !_waiters.isEmpty() ) serveWaiters();
+        }
+        finally
+        {
+            _lock.unlock();
+        }
+    }
+
+    /**
+     * Shrinks the pool to it's configured limits. The objects are removed from the free pool under the
+     * pool lock, but expired outside of it.
+     */
+    protected void shrink()
+    {
+        if (!_config.allowShrinking) return;
+
+        if (_config.debug && _config.debugLevel > 0)
+        {
+            _manager.debug
+            (
+                "[" + Thread.currentThread() + ", " + this + "] Shrink, InUse: " + _inUse.size() +
+                ", free = " + _free.size()
+            );
+        }
+
+        shrinkFree( getPoolMin() );
+
+        _manager.debug("AfterShrink, InUse: " + _inUse.size() + ", free = " + _free.size(), 1);
+    }
+
+    /**
+     * Expires free objects until no more than the given number are left. Only removing the objects
+     * from the free pool is done under the pool lock, expiring them is not.
+     *
+     * @param int The number of free objects to keep.
+     */
+    protected void shrinkFree(int keep)
+    {
+        List<ObjectPoolItem> removed = new ArrayList<ObjectPoolItem>();
+        _lock.lock();
+        try
+        {
+            Enumeration objects = _free.keys();
+            while ( _free.size() > keep && objects.hasMoreElements() )
+            {
+                ObjectPoolItem item = (ObjectPoolItem)objects.nextElement();
+                if (_free.remove(item) != null) removed.add(item);
+            }
+        }
+        finally
+        {
+            _lock.unlock();
+        }
+
+        for (int i=0; i<removed.size(); i++)
+        {
+            ObjectPoolItem item = removed.get(i);
+            _manager.debug("[" + Thread.currentThread() + "], removing object " + item.item + " to shrink pool", 1);
+            expireObject(item);
+        }
+    }
+
+    /**
+     * Returns the size the pool may shrink to. This is the larger of the minimum objects and
+     * the shrink floor.
+     *
+     * @return int
+     */
+    protected int getPoolMin()
+    {
+        int poolMin = _config.minObjects;
+        if (_config.shrinkFloor > poolMin) poolMin = _config.shrinkFloor;
+        return poolMin;
+    }
+
+    /**
+     * Grows or shrinks the pool toward the size that the observed demand calls for. Growing is done
+     * all at once in the background, while shrinking expires at most one increment of free
+     * objects each time so that a short lull does not empty the pool. This is run periodically by
+     * PoolMaintenance when the pool is adaptive.
+     */
+    protected void adapt()
+    {
+        if (_sizer == null) return;
+
+        int step = (_config.increment >= 1 ? _config.increment : 1);
+        int inUse = getInUseCount();
+        int free = getFreeCount();
+        int total = inUse + free;
+        int target = _sizer.update( System.currentTimeMillis(), _metrics, inUse, total, step );
+        target = Math.max( Math.min(target, _config.maxObjects), getPoolMin() );
+        _targetSize = target;
+
+        if (_config.debug && _config.debugLevel > 0)
+        {
+            _manager.debug("[" + Thread.currentThread() + ", " + this + "] Adapt, InUse: " + inUse + ", free = " + free + ", target = " + target);
+        }
+
+        if (total < target)
+        {
+            fillInBackground(target - total);
+        }
+        else if (total > target && free > 0)
+        {
+            shrinkFree( Math.max(free - Math.min(total - target, step), 0) );
+        }
+    }
+
+    /**
+     * Returns the size the pool is adapting toward, or -1 if the pool is not adaptive.
+     *
+     * @return int
+     */
+    public int getTargetSize()
+    {
+        return _targetSize;
+    }
+
+    /**
+     * Expire all Objects in the free list.
+     */
+    public void flush()
+    {
+        _lock.lock();
+        try
+        {
+            Enumeration e = _free.keys();
+            while ( e.hasMoreElements() )
+            {
+                ObjectPoolItem o = (ObjectPoolItem)e.nextElement();
+                _free.remove( o );
+                expireObject( o );
+            }
+        }
+        finally
+        {
+            _lock.unlock();
+        }
+    }
+
+    /**
+     * Clean the ObjectPool.
+     */
+    public void close() throws PoolInUseException
+    {
+        _lock.lock();
+        try
+        {
+            flush();
+            int size = _inUse.size();
+            if (size > 0) throw new PoolInUseException("There are " + size + " Objects in use");
+        }
+        finally
+        {
+            _lock.unlock();
+        }
+    }
+
+    /**
+     * Go through the list of in use Objects and expire() all that have
+     * exceeded their expiration time, and replace them with new objects. Only
+     * finding the objects is done under the pool lock, expiring them is not,
+     * and the replacements are created in the background.
+     */
+    protected void inUseClean() throws Exception
+    {
+        if (_config.debug && _config.debugLevel > 0)
+        {
+            _manager.debug
+            (
+                "[" + Thread.currentThread() + ", " + this + "] inUseClean, InUse: " + _inUse.size() +
+                ", free = " + _free.size()
+            );
+        }
+        if (_config.maxUseTime < 0) return;
+
+        long now = System.currentTimeMillis();
+        List<ObjectPoolItem> expired = new ArrayList<ObjectPoolItem>();
+        _lock.lock();
+        try
+        {
+            // Find expired in use objects
+            Enumeration e2 = _inUse.keys();
+            while ( e2.hasMoreElements() )
+            {
+                ObjectPoolItem o = (ObjectPoolItem)e2.nextElement();
+                if ( (now - ((Long)_inUse.get(o)).longValue()) / 1000l > _config.maxUseTime )
+                {
+                    _inUse.remove(o);
+                    expired.add(o);
+                }
+            }
+        }
+        finally
+        {
+            _lock.unlock();
+        }
+
+        for (int i=0; i<expired.size(); i++)
+        {
+            ObjectPoolItem o = expired.get(i);
+            _manager.debug("[" + o.item + "] object has expired", 1);
+            expireObject(o);
+        }
+        // The connections have expired, re-create them
+        fillInBackground( expired.size() );
+
+        _manager.debug("AfterinUseClean, InUse: " + _inUse.size() + ", free = " + _free.size(), 1);
+    }
+
+    /**
+     * Goes through the list of free Objects and expires all that have
+     * exceeded their expiration time, and replace them with new objects. Only
+     * finding the objects is done under the pool lock, expiring them is not,
+     * and the replacements are created in the background.
+     */
+    protected void clean() throws Exception
+    {
+        if (_config.debug && _config.debugLevel > 0)
+        {
+            _manager.debug
+            (
+                "[" + Thread.currentThread() + ", " + this + "] Clean, InUse: " + _inUse.size() +
+                ", free = " + _free.size()
+            );
+        }
+        if (_config.expirationTime < 0) return;
+
+        long now = System.currentTimeMillis();
+        List<ObjectPoolItem> expired = new ArrayList<ObjectPoolItem>();
+        _lock.lock();
+        try
+        {
+            // Find expired free objects
+            Enumeration e = _free.keys();
+            while ( e.hasMoreElements() )
+            {
+                ObjectPoolItem o = (ObjectPoolItem)e.nextElement();
+                if ( (now - ((Long)_free.get(o)).longValue()) / 1000l > _config.expirationTime )
+                {
+                    _free.remove(o);
+                    expired.add(o);
+                }
+            }
+        }
+        finally
+        {
+            _lock.unlock();
+        }
+
+        for (int i=0; i<expired.size(); i++)
+        {
+            ObjectPoolItem o = expired.get(i);
+            _manager.debug("[" + o.item + "] object has expired", 1);
+            expireObject(o);
+        }
+        // The connections have expired, re-create them.
+        fillInBackground( expired.size() );
+
+        _manager.debug("AfterClean, InUse: " + _inUse.size() + ", free = " + _free.size(), 1);
+    }
+
+    /**
+     * Checks whether the pool has reached the alert threshold and, if so, queues an alert unless one
+     * was sent within the alert interval. This is run periodically by PoolMaintenance rather than on
+     * every borrow. Since it only samples the pool, the pool is also considered to have reached the
+     * threshold if any borrows had to wait, timed out or failed since the last check.
+     */
+    protected void checkAlert()
+    {
+        long saturated = _metrics.getWaitCount() + _metrics.getTimeoutCount() + _metrics.getExhaustedCount();
+        boolean maxedOut = (saturated > _lastSaturatedCount);
+        _lastSaturatedCount = saturated;
+
+        double percentInUse = ( (double)getInUseCount() ) / ( (double)_config.maxObjects );
+        if (maxedOut) percentInUse = 1d;
+        if (percentInUse*100 < _config.alertThreshold || !reserveAlert() ) return;
+
+        if (_config.debug) printInUse( new PrintWriter(System.err) );
+
+        StringBuffer msg = new StringBuffer()
+            .append("Object Pool has reached it's threshold: ").append( (percentInUse*100) )
+            .append("% of max available objects are in use");
+
+        StringWriter msgWriter = new StringWriter();
+        printInUse( new PrintWriter(msgWriter) );
+        msg.append( msgWriter.toString() );
+
+        String alertError = alert( msg.toString() );
+
+        if (alertError != null)
+        {
+            System.err.println("********** Alert cannot be sent (" + alertError + "): " + msg);
+        }
+    }
+
+    /**
+     * Returns the number of objects that are currently in use.
+     *
+     * @return int
+     */
+    protected int getInUseCount()
+    {
+        return _inUse.size();
+    }
+
+    /**
+     * Returns the number of objects that are currently free.
+     *
+     * @return int
+     */
+    protected int getFreeCount()
+    {
+        return _free.size();
+    }
+
+    /**
+     * Returns whether an alert may be sent now and, if so, marks that one was. Only one alert is
+     * allowed per alert interval.
+     *
+     * @return boolean
      */
-    synchronized public void flush()
+    protected boolean reserveAlert()
     {
-        Enumeration e = _free.keys();
-        while ( e.hasMoreElements() )
-        {
-            ObjectPoolItem o = (ObjectPoolItem)e.nextElement();
-            _free.remove( o );
-            expireObject( o );
-        }
+        long now = System.currentTimeMillis();
+        long last = _lastAlert.get();
+        if (last > 0 && now - last < _config.alertInterval*1000) return false;
+        return _lastAlert.compareAndSet(last, now);
     }
 
     /**
-     * Clean the ObjectPool.
+     * Creates the sink that alerts are sent to based on the configuration. Returns null if no alert
+     * admin or no way to send mail was configured.
+     *
+     * @return AlertSink
      */
-    synchronized public void close() throws PoolInUseException
+    protected AlertSink createAlertSink()
     {
-        flush();
-        int size = _inUse.size();
-        if (size > 0) throw new PoolInUseException("There are " + size + " Objects in use");
+        if (_config.alertAdmin == null) return null;
+        else if (_config.mailServer != null) return new SMTPAlertSink(_config.mailServer, _config.alertAdmin);
+        else if (_config.mailCommand != null) return new SpoolAlertSink(_config.mailCommand, _config.alertAdmin);
+        else return null;
     }
 
     /**
-     * Go through the list of in use Objects and expire() all that have
-     * exceeded their expiration time, and replace them with new objects.
+     * Sets the sink that alerts are sent to.
+     *
+     * @param AlertSink The sink.
      */
-    synchronized protected void inUseClean() throws Exception
+    public void setAlertSink(AlertSink sink)
     {
-        if (_config.debug && _config.debugLevel > 0)
+        _alertSink = sink;
+    }
+
+    /**
+     * Queues the given alert message to be sent. This does not block and does not rate limit, callers
+     * are expected to call reserveAlert() first. Returns a description of the problem if the alert
+     * could not be queued or null if it was.
+     *
+     * @param String The message.
+     * @return String
+     */
+    protected String alert(String msg)
+    {
+        AlertSink sink = _alertSink;
+        if (sink == null) return "No recipients (b) - " + _config.alertAdmin;
+
+        _manager.debug("Sending alert via " + sink, 1);
+        if ( !PoolAlerter.getInstance().post(sink, "Object Pool Alert!", msg) ) return "Alert queue is full";
+        return null;
+    }
+
+    /**
+     * Records the stack trace of where the given item is being borrowed if tracing is enabled or this
+     * borrow is sampled. Otherwise any trace from an earlier borrow is cleared.
+     *
+     * @param ObjectPoolItem The item being borrowed.
+     */
+    protected void markBorrowed(ObjectPoolItem item)
+    {
+        item.leakReported = false;
+        if ( _config.enableTracing || (_config.leakSampleRate > 0 && ThreadLocalRandom.current().nextInt(_config.leakSampleRate) == 0) )
         {
-            _manager.debug
-            (
-                "[" + Thread.currentThread() + ", " + this + "] inUseClean, InUse: " + _inUse.size() +
-                ", free = " + _free.size()
-            );
+            item.trace();
+        }
+        else
+        {
+            item.tracer = null;
         }
+    }
 
-        long now = System.currentTimeMillis();
-        // Expire in use objects
-        Enumeration e2 = _inUse.keys();
-        while ( e2.hasMoreElements() )
+    /**
+     * Returns a copy of the objects that are in use mapped to the time they were borrowed.
+     *
+     * @return Map
+     */
+    protected Map<ObjectPoolItem, Long> getInUseTimes()
+    {
+        _lock.lock();
+        try
         {
-            ObjectPoolItem o = (ObjectPoolItem)e2.nextElement();
-            if ( (now - ((Long)_inUse.get(o)).longValue()) / 1000l > _config.maxUseTime && _config.maxUseTime >= 0 )
+            Map<ObjectPoolItem, Long> ret = new HashMap<ObjectPoolItem, Long>();
+            Enumeration e = _inUse.keys();
+            while ( e.hasMoreElements() )
             {
-                _manager.debug("[" + o.item + "] object has expired", 1);
-                // The connection has expired, re-create it
-                _inUse.remove(o);
-                expireObject(o);
-                _free.put( createObject(), new Long(now) );
+                ObjectPoolItem item = (ObjectPoolItem)e.nextElement();
+                ret.put( item, (Long)_inUse.get(item) );
             }
+            return ret;
+        }
+        finally
+        {
+            _lock.unlock();
         }
-
-        _manager.debug("AfterinUseClean, InUse: " + _inUse.size() + ", free = " + _free.size(), 1);
     }
 
     /**
-     * Goes through the list of free Objects and expires all that have
-     * exceeded their expiration time, and replace them with new objects.
+     * Returns the objects that have been in use longer than the configured leak threshold. The list
+     * is empty if no leak threshold is configured.
+     *
+     * @return List
      */
-    synchronized protected void clean() throws Exception
+    public List<PoolLeak> getLeaks()
     {
-        if (_config.debug && _config.debugLevel > 0)
-        {
-            _manager.debug
-            (
-                "[" + Thread.currentThread() + ", " + this + "] Clean, InUse: " + _inUse.size() +
-                ", free = " + _free.size()
-            );
-        }
+        if (_config.leakThreshold < 0) return new ArrayList<PoolLeak>();
+        return getLeaks(_config.leakThreshold);
+    }
 
+    /**
+     * Returns the objects that have been in use longer than the given number of seconds, longest
+     * held first.
+     *
+     * @param long The number of seconds.
+     * @return List
+     */
+    public List<PoolLeak> getLeaks(long seconds)
+    {
+        List<PoolLeak> ret = new ArrayList<PoolLeak>();
         long now = System.currentTimeMillis();
-        // Expire free objects
-        Enumeration e = _free.keys();
-        while ( e.hasMoreElements() )
+        for ( Map.Entry<ObjectPoolItem, Long> entry : getInUseTimes().entrySet() )
         {
-            ObjectPoolItem o = (ObjectPoolItem)e.nextElement();
-            if ( (now - ((Long)_free.get(o)).longValue()) / 1000l > _config.expirationTime && _config.expirationTime >= 0 )
+            long borrowed = entry.getValue().longValue();
+            if ( (now - borrowed) / 1000l >= seconds )
             {
-                _manager.debug("[" + o.item + "] object has expired", 1);
-                // The connection has expired, re-create it.
-                _free.remove(o);
-                expireObject(o);
-                _free.put( createObject(), new Long(now) );
+                ret.add( createLeak(entry.getKey(), borrowed, now) );
             }
         }
-
-        _manager.debug("AfterClean, InUse: " + _inUse.size() + ", free = " + _free.size(), 1);
+        Collections.sort
+        (
+            ret,
+            new Comparator<PoolLeak>()
+            {
+                public int compare(PoolLeak l1, PoolLeak l2)
+                {
+                    return (l1.borrowed < l2.borrowed ? -1 : (l1.borrowed == l2.borrowed ? 0 : 1));
+                }
+            }
+        );
+        return ret;
     }
 
-    protected void checkAlert()
+    /**
+     * Creates a PoolLeak describing the given item.
+     *
+     * @param ObjectPoolItem The item.
+     * @param long The time the item was borrowed.
+     * @param long The current time.
+     * @return PoolLeak
+     */
+    protected PoolLeak createLeak(ObjectPoolItem item, long borrowed, long now)
     {
-        double percentInUse = ( (double)_inUse.size() ) / ( (double)_config.maxObjects );
-        if (percentInUse*100 >= _config.alertThreshold)
+        PoolLeak leak = new PoolLeak();
+        leak.object = item.item;
+        leak.borrowed = borrowed;
+        leak.heldTime = now - borrowed;
+        Exception tracer = item.tracer;
+        if (tracer != null)
         {
-            if (_config.debug) printInUse( new PrintWriter(System.err) );
-
-            StringBuffer msg = new StringBuffer()
-                .append("Object Pool has reached it's threshold: ").append( (percentInUse*100) )
-                .append("% of max available objects are in use");
-
-            StringWriter msgWriter = new StringWriter();
-            printInUse( new PrintWriter(msgWriter) );
-            msg.append( msgWriter.toString() );
-
-            String alertError = alert( msg.toString() );
-
-            if (alertError != null)
-            {
-                System.err.println("********** Alert cannot be sent (" + alertError + "): " + msg);
-            }
+            StringWriter writer = new StringWriter();
+            tracer.printStackTrace( new PrintWriter(writer) );
+            leak.borrowSite = writer.toString();
         }
+        return leak;
     }
 
-    protected String alert(String msg)
+    /**
+     * Reports objects that have been in use longer than the leak threshold. Each object is only reported
+     * once per borrow. This is run periodically by PoolMaintenance.
+     */
+    protected void checkLeaks()
     {
-        long now = System.currentTimeMillis();
-        if (_lastAlert > 0 && now - _lastAlert < _config.alertInterval*1000) return null;
+        if (_config.leakThreshold < 0) return;
 
-        String alertError = null;
-        if (_config.alertAdmin != null)
+        long now = System.currentTimeMillis();
+        for ( Map.Entry<ObjectPoolItem, Long> entry : getInUseTimes().entrySet() )
         {
-            String recips[] = TextUtils.split(_config.alertAdmin, ';');
-            try
-            {
-                if (recips != null)
-                {
-                    if (_config.mailServer != null)
-                    {
-                        for (int i=0; i<recips.length; i++)
-                        {
-                            _manager.debug("Sending alert to " + recips[i] + " via SMTP Server", 1);
-                            SMTPMail mailer = new SMTPMail();
-                            mailer.setToAddress(recips[i]);
-                            mailer.setSubject("Subject: Object Pool Alert!");
-                            mailer.setMailServer(_config.mailServer);
-                            mailer.setBody(msg);
-                        }
-                    }
-                    else if (_config.mailCommand != null)
-                    {
-                        for (int i=0; i<recips.length; i++)
-                        {
-                            _manager.debug("Sending alert to " + recips[i] + " via " + _config.mailCommand, 1);
-                            SpoolMail mailer = new SpoolMail();
-                            mailer.beginSpool(_config.mailCommand, null);
-                            mailer.spool("To: " + recips[i]);
-                            mailer.spool("Subject: Object Pool Alert!");
-                            mailer.spool(msg);
-                            mailer.endSpool();
-                        }
-                    }
-                }
-                else
-                {
-                    alertError = "No recipients - " + _config.alertAdmin;
-                }
-                _lastAlert = now;
-            }
-            catch(Throwable t)
+            ObjectPoolItem item = entry.getKey();
+            long borrowed = entry.getValue().longValue();
+            if (!item.leakReported && (now - borrowed) / 1000l >= _config.leakThreshold)
             {
-                alertError = t.toString();
+                item.leakReported = true;
+                _metrics.leaked();
+
+                System.err.println( "********** Possible object pool leak: " + createLeak(item, borrowed, now) );
             }
         }
-        else
-        {
-            alertError = "No recipients (b) - " + _config.alertAdmin;
-        }
-
-        return alertError;
     }
 
     public void printInUse(PrintWriter out)
     {
         out.println("******************" + new java.util.Date() + "**********************");
-        Enumeration inuse = _inUse.keys();
+        //Print from a copy taken under the pool lock, since objects may be returned while this runs
         long now = System.currentTimeMillis();
-        Object obj = null;
-        while ( inuse.hasMoreElements() )
+        Iterator<Map.Entry<ObjectPoolItem, Long>> i = getInUseTimes().entrySet().iterator();
+        while ( i.hasNext() )
         {
-            obj = inuse.nextElement();
-            long time = ( (Long)_inUse.get(obj) ).longValue();
-            out.println( "------> (" + ( (now-time)/1000l ) + " s) " + obj.toString() );
+            Map.Entry<ObjectPoolItem, Long> entry = i.next();
+            long time = entry.getValue().longValue();
+            out.println( "------> (" + ( (now-time)/1000l ) + " s) " + entry.getKey().toString() );
         }
         out.println("*******************************************************");
         out.flush();
     }
 
+    /**
+     * Returns the statistics about how this pool is being used.
+     *
+     * @return PoolMetrics
+     */
+    public PoolMetrics getMetrics()
+    {
+        return _metrics;
+    }
+
+    /**
+     * Returns the manager that creates, validates and expires the objects in this pool.
+     *
+     * @return ObjectPoolManager
+     */
+    public ObjectPoolManager getManager()
+    {
+        return _manager;
+    }
+
     public ObjectPoolState getState()
     {
         ObjectPoolState state = new ObjectPoolState();
@@ -627,23 +1518,35 @@ public class ObjectPool
         state.objectsInUse = _inUse.size();
         state.objectsExpired = _expiredObjects;
         state.inUseHash = _inUse;
+        state.metrics = _metrics;
         return state;
     }
 
-    protected class ObjectPoolItem
+    /**
+     * An object in the pool along with what the pool tracks about it.
+     */
+    public class ObjectPoolItem
     {
         public Object item;
         public int usecount = 0;
         public Exception tracer = null;
-
-        ObjectPoolItem(Object object)
+        /** Whether the item has been reported as a possible leak since it was last borrowed. */
+        public volatile boolean leakReported = false;
+        /** The last time the item was returned to the free list. */
+        public volatile long lastReturned = System.currentTimeMillis();
+        /** The last time the item was validated by the manager. 0 if it never has been. */
+        public volatile long lastValidated = 0;
+        /** Anything the user of the pool wants to keep with the object while it is pooled. */
+        public volatile Object attachment;
+
+        public ObjectPoolItem(Object object)
         {
             item = object;
         }
 
         public void trace()
         {
-            tracer = new Exception("[tracer]");
+            tracer = new Exception( "[tracer] borrowed by " + Thread.currentThread().getName() );
         }
 
         public boolean equals(Object obj)
@@ -668,162 +1571,409 @@ public class ObjectPool
             return super.toString();
         }
     }
+
+    /**
+     * A caller waiting in line for an object. Either an object is handed to the waiter with offer(), a
+     * reserved slot to create one in is handed to it with offerSlot() or the waiter gives up its place
+     * with cancel(), whichever happens first.
+     */
+    protected static class Waiter extends AtomicReference<Object>
+    {
+        private static final long serialVersionUID = 1L;
+        private static final Object CANCELLED = new Object();
+        private static final Object SLOT = new Object();
+        private final Thread _thread = Thread.currentThread();
+
+        /**
+         * Hands the given item to the waiter and wakes it up. Returns false if the waiter already
+         * gave up or was handed another item.
+         *
+         * @param ObjectPoolItem The item.
+         * @return boolean
+         */
+        public boolean offer(ObjectPoolItem item)
+        {
+            return hand(item);
+        }
+
+        /**
+         * Hands the waiter a reserved slot to create an object in itself and wakes it up. Returns false
+         * if the waiter already gave up or was handed an item.
+         *
+         * @return boolean
+         */
+        public boolean offerSlot()
+        {
+            return hand(SLOT);
+        }
+
+        private boolean hand(Object o)
+        {
+            if ( compareAndSet(null, o) )
+            {
+                LockSupport.unpark(_thread);
+                return true;
+            }
+            return false;
+        }
+
+        /**
+         * Gives up the waiter's place in line. Returns false if the waiter has already been handed an item.
+         *
+         * @return boolean
+         */
+        public boolean cancel()
+        {
+            return compareAndSet(null, CANCELLED);
+        }
+
+        /**
+         * Returns whether the waiter was handed a reserved slot.
+         *
+         * @return boolean
+         */
+        public boolean hasSlot()
+        {
+            return (get() == SLOT);
+        }
+
+        /**
+         * Returns the item handed to the waiter or null if there is none.
+         *
+         * @return ObjectPoolItem
+         */
+        public ObjectPoolItem getItem()
+        {
+            Object item = get();
+            return (item instanceof ObjectPoolItem ? (ObjectPoolItem)item : null);
+        }
+
+        /**
+         * Waits up to the given number of nanoseconds for an item to be handed to the waiter and returns it.
+         * Returns null if the time runs out first or the waiter was handed a slot. A negative number
+         * waits forever.
+         *
+         * @param long The nanoseconds to wait.
+         * @return ObjectPoolItem
+         * @throws InterruptedException if the thread is interrupted while waiting.
+         */
+        public ObjectPoolItem await(long nanos) throws InterruptedException
+        {
+            long deadline = System.nanoTime() + nanos;
+            while (get() == null)
+            {
+                if (nanos < 0)
+                {
+                    LockSupport.park(this);
+                }
+                else
+                {
+                    long left = deadline - System.nanoTime();
+                    if (left <= 0) break;
+                    LockSupport.parkNanos(this, left);
+                }
+                if ( Thread.interrupted() ) throw new InterruptedException();
+            }
+            return getItem();
+        }
+    }
 }
 
-class ExpireThread extends Thread
+class MaintenanceTask implements Runnable
 {
+    /** Expires objects that have been free too long. */
+    static final int CLEAN = 1;
+    /** Expires objects that have been in use too long. */
+    static final int IN_USE_CLEAN = 2;
+    /** Shrinks the pool. */
+    static final int SHRINK = 3;
+    /** Checks the pool against the alert threshold. */
+    static final int ALERT = 4;
+    /** Reports objects that have been in use longer than the leak threshold. */
+    static final int LEAK_CHECK = 5;
+    /** Grows or shrinks the pool toward the size demand calls for. */
+    static final int ADAPT = 6;
+
     protected ObjectPool _pool;
-    protected long _sleepTime;
-    protected boolean _stop = false;
+    protected int _type;
 
     /**
-     * Create an ExpireThread. This will automatically start the thread.
+     * Creates a MaintenanceTask to be run periodically by PoolMaintenance.
      *
-     * @param ObjectPool The ObjectPool this thread will cleanUp().
-     * @param long The max time in milliseconds that this thread will sleep in between runs.
+     * @param ObjectPool The ObjectPool this task maintains.
+     * @param int The type of maintenance: CLEAN, IN_USE_CLEAN, SHRINK, ALERT, LEAK_CHECK or ADAPT.
      */
-    ExpireThread(ObjectPool pool, long sleepTime)
+    MaintenanceTask(ObjectPool pool, int type)
     {
         _pool = pool;
-        _sleepTime = sleepTime;
-        setDaemon(true);
-        start();
-    }
-
-    public void finalize() throws Throwable
-    {
-        super.finalize();
-        destroy();
-    }
-
-    public void destroy()
-    {
-        _stop = true;
-        super.destroy();
+        _type = type;
     }
 
     /**
-     * Infinite loop that will expire objects in the pool
+     * Runs one pass of maintenance. Errors are printed rather than thrown so that the task keeps
+     * being scheduled.
      */
     public void run()
     {
-        while (!_stop)
+        try
         {
-            try { sleep( _sleepTime ); } catch(InterruptedException e) { }
-            try
-            {
-                _pool.clean();
-            }
-            catch(Exception e)
+            switch (_type)
             {
-                e.printStackTrace(System.err);
+                case CLEAN:
+                    _pool.clean();
+                    break;
+                case IN_USE_CLEAN:
+                    _pool.inUseClean();
+                    break;
+                case SHRINK:
+                    _pool.shrink();
+                    break;
+                case ALERT:
+                    _pool.checkAlert();
+                    break;
+                case LEAK_CHECK:
+                    _pool.checkLeaks();
+                    break;
+                case ADAPT:
+                    _pool.adapt();
+                    break;
             }
         }
+        catch (Throwable t)
+        {
+            t.printStackTrace(System.err);
+        }
     }
 }
 
 
-class MaxUseThread extends Thread
+class PoolFiller
 {
     protected ObjectPool _pool;
-    protected long _sleepTime;
-    protected boolean _stop = false;
+    protected ThreadPoolExecutor _executor;
+    /** The number of objects that have been asked for but not yet created. */
+    protected AtomicInteger _scheduled = new AtomicInteger();
 
     /**
-     * Creates a MaxUseThread. This will automatically start the thread.
+     * Creates a PoolFiller that creates objects for the pool using the given number of threads.
+     * The threads are daemons and are only kept alive while there is work to do.
      *
-     * @param ObjectPool The ObjectPool this thread will cleanUp().
-     * @param long The max time in milliseconds that this thread will sleep in between runs.
+     * @param ObjectPool The ObjectPool this filler will createSpare() for.
+     * @param int The number of threads to create objects with.
      */
-    MaxUseThread(ObjectPool pool, long sleepTime)
+    PoolFiller(ObjectPool pool, int threads)
     {
         _pool = pool;
-        _sleepTime = sleepTime;
-        setDaemon(true);
-        start();
+        _executor = new ThreadPoolExecutor
+        (
+            threads, threads, 60l, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+            new ThreadFactory()
+            {
+                public Thread newThread(Runnable r)
+                {
+                    Thread t = new Thread(r, "PoolFiller");
+                    t.setDaemon(true);
+                    return t;
+                }
+            }
+        );
+        _executor.allowCoreThreadTimeOut(true);
     }
 
-    public void finalize() throws Throwable
+    /**
+     * Creates the given number of objects in parallel and waits for them all to be created.
+     *
+     * @param int The number of objects to create.
+     * @throws Exception the first error that occurred creating an object.
+     */
+    void fillAndWait(int count) throws Exception
     {
-        super.finalize();
-        destroy();
+        List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>();
+        for (int i=0; i<count; i++)
+        {
+            futures.add
+            (
+                _executor.submit
+                (
+                    new Callable<Boolean>()
+                    {
+                        public Boolean call() throws Exception
+                        {
+                            return Boolean.valueOf( _pool.createSpare() );
+                        }
+                    }
+                )
+            );
+        }
+
+        Exception error = null;
+        for (int i=0; i<futures.size(); i++)
+        {
+            try
+            {
+                futures.get(i).get();
+            }
+            catch (ExecutionException ee)
+            {
+                if (error == null)
+                {
+                    Throwable cause = ee.getCause();
+                    error = (cause instanceof Exception ? (Exception)cause : ee);
+                }
+            }
+        }
+        if (error != null) throw error;
     }
 
-    public void destroy()
+    /**
+     * Creates the given number of objects in parallel in the background.
+     *
+     * @param int The number of objects to create.
+     */
+    void fill(int count)
     {
-        _stop = true;
-        super.destroy();
+        _scheduled.addAndGet(count);
+        schedule(count);
     }
 
     /**
-     * Infinite loop that will expire objects in the pool
+     * Submits the given number of object creations that have already been counted as scheduled.
+     *
+     * @param int The number of objects to create.
      */
-    public void run()
+    private void schedule(int count)
     {
-        while (!_stop)
+        for (int i=0; i<count; i++)
         {
-            try { sleep(_sleepTime); } catch (InterruptedException e) { }
             try
             {
-                _pool.inUseClean();
+                _executor.execute
+                (
+                    new Runnable()
+                    {
+                        public void run()
+                        {
+                            try
+                            {
+                                _pool.createSpare();
+                            }
+                            catch (Exception e)
+                            {
+                                e.printStackTrace(System.err);
+                            }
+                            finally
+                            {
+                                _scheduled.decrementAndGet();
+                            }
+                        }
+                    }
+                );
             }
-            catch(Exception e)
+            catch (RejectedExecutionException ree)
             {
-                e.printStackTrace(System.err);
+                // The filler has been halted.
+                _scheduled.decrementAndGet();
             }
         }
     }
-}
-
-
-class ShrinkThread extends Thread
-{
-    protected ObjectPool _pool;
-    protected long _sleepTime;
-    protected boolean _stop = false;
 
     /**
-     * Creates a ShrinkThread. This will automatically start the thread.
+     * Creates enough objects in the background to bring the number of free objects up to the
+     * given number of spares, not counting objects that have already been asked for.
      *
-     * @param ObjectPool The ObjectPool this thread will shrink().
-     * @param long The max time in milliseconds that this thread will sleep in between runs.
+     * @param int The number of objects currently free.
+     * @param int The number of spare objects wanted.
      */
-    ShrinkThread(ObjectPool pool, long sleepTime)
+    void topUp(int free, int spares)
     {
-        _pool = pool;
-        _sleepTime = sleepTime;
-        setDaemon(true);
-        start();
+        while (true)
+        {
+            int scheduled = _scheduled.get();
+            int needed = spares - free - scheduled;
+            if (needed <= 0) return;
+            if ( _scheduled.compareAndSet(scheduled, scheduled+needed) )
+            {
+                schedule(needed);
+                return;
+            }
+        }
     }
 
-    public void finalize() throws Throwable
+    /**
+     * Stops the filler. Objects that are being created are still added to the pool.
+     */
+    void halt()
     {
-        super.finalize();
-        destroy();
+        _executor.shutdown();
     }
+}
 
-    public void destroy()
+/**
+ * Estimates how many objects a pool needs from the demand seen over a sliding window. By Little's
+ * law the average number of objects in use is the borrow rate times the average time an object is
+ * held. The estimate is never less than the number in use right now, and if any callers had to wait
+ * since the last update the pool is grown by an increment.
+ */
+class PoolSizer
+{
+    /** Room kept above the estimated demand for bursts. */
+    static final double HEADROOM = 1.25;
+
+    protected long _window;
+    /** Samples of time, borrows, returns, total time held and borrows that waited or failed, oldest first. */
+    protected LinkedList<long[]> _samples = new LinkedList<long[]>();
+
+    /**
+     * Creates a PoolSizer.
+     *
+     * @param long The span of the window in milliseconds.
+     */
+    PoolSizer(long window)
     {
-        _stop = true;
-        super.destroy();
+        _window = window;
     }
 
     /**
-     * Infinite loop that will expire objects in the pool
+     * Records the current metrics and returns the number of objects the pool should have.
+     *
+     * @param long The current time.
+     * @param PoolMetrics The pool metrics.
+     * @param int The number of objects in use.
+     * @param int The number of objects in the pool.
+     * @param int The pool increment.
+     * @return int
      */
-    public void run()
+    int update(long now, PoolMetrics metrics, int inUse, int total, int step)
     {
-        while (!_stop)
+        PoolMetrics.Histogram held = metrics.getTimeInUse();
+        long[] sample = new long[]
         {
-            try { sleep(_sleepTime); } catch (InterruptedException e) { }
-            try
-            {
-                _pool.shrink();
-            }
-            catch(Exception e)
-            {
-                e.printStackTrace(System.err);
-            }
+            now, metrics.getBorrowCount(), held.getCount(), held.getSum(),
+            metrics.getWaitCount() + metrics.getTimeoutCount() + metrics.getExhaustedCount()
+        };
+
+        // Start over if the metrics were reset.
+        if ( !_samples.isEmpty() && sample[1] < _samples.getLast()[1] ) _samples.clear();
+        long[] last = (_samples.isEmpty() ? sample : _samples.getLast());
+        _samples.addLast(sample);
+        while ( _samples.size() > 2 && now - _samples.get(1)[0] >= _window )
+        {
+            _samples.removeFirst();
         }
+
+        long[] first = _samples.getFirst();
+        double demand = inUse;
+        long elapsed = now - first[0];
+        long returns = sample[2] - first[2];
+        if (elapsed > 0 && returns > 0)
+        {
+            double rate = (double)(sample[1] - first[1]) / (double)elapsed;
+            double holdTime = (double)(sample[3] - first[3]) / (double)returns;
+            demand = Math.max(demand, rate * holdTime);
+        }
+
+        int target = (int)Math.ceil(demand * HEADROOM);
+        if (sample[4] > last[4]) target = Math.max(target, total + step);
+        return target;
     }
 }
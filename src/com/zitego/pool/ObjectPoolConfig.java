@@ -12,6 +12,10 @@ import java.util.StringTokenizer;
  */
 public class ObjectPoolConfig implements Cloneable
 {
+    /** The standard pool engine that synchronizes on the pool. */
+    public static final int STANDARD_ENGINE = 0;
+    /** The concurrent pool engine that borrows and returns without a pool wide lock. */
+    public static final int CONCURRENT_ENGINE = 1;
     /** The maximum number of obejcts that the pool will create. */
     public int maxObjects;
     /** The minimum number of objects that the pool will contain. This is different from the number of objects
@@ -40,11 +44,20 @@ public class ObjectPoolConfig implements Cloneable
     public int shrinkFloor;
     /** Enables stack tracing for in use objects. */
     public boolean enableTracing = false;
+    /** Captures the stack trace of 1 in this many borrows so that leaks can be traced back to where the object was
+      * borrowed. A value of 0 turns sampling off. Every borrow is traced if enableTracing is set. */
+    public int leakSampleRate = 0;
+    /** The amount of time (in seconds) an object can be in use before it is reported as a possible leak, a value
+      * of -1 indicates that leaks are not reported. Each leak is only reported once. */
+    public long leakThreshold = -1l;
     /** Alert threshold. When the pool has reached this percentage of it's max size, the admin specified by
       * <alert email> will be notified. */
     public double alertThreshold = 100;
     /** Alert interval. The interval (in seconds) in which alerts will be sent. Default is 15 minutes (900 seconds). */
     public long alertInterval = 900;
+    /** The interval (in seconds) at which the pool is checked against the alert threshold. The check is done
+      * in the background so that borrowing objects is never slowed down by alerting. Default is 1 second. */
+    public long alertCheckInterval = 1;
     /** Alert admin. The email address to send an alert to when the pool is in trouble. */
     public String alertAdmin = null;
     /** The SMTP mail server to use to send the alert email (either this or mailCommand must be specified for
@@ -58,6 +71,34 @@ public class ObjectPoolConfig implements Cloneable
     public int debugLevel = 0;
     /** Should calls to get an object from the pool block or fail when the pool is maxed out. */
     public boolean block = false;
+    /** The maximum amount of time (in milliseconds) a blocking call to get an object will wait before failing,
+      * a value of -1 indicates wait forever. */
+    public long maxWait = -1l;
+    /** The number of free objects to keep available ahead of demand. Spare objects are created in the background
+      * after an object is taken from the pool, without going over maxObjects. */
+    public int spareObjects = 0;
+    /** The number of threads used to create objects in parallel when the pool is first filled to minObjects,
+      * when spare objects are created, and when the pool is expanded by more than one object. */
+    public int createThreads = 1;
+    /** The amount of time (in milliseconds) since an object was returned to the pool within which it is handed out
+      * again without being validated. A value of 0 indicates that objects are validated on every borrow. */
+    public long validationIdleTime = 0;
+    /** The minimum amount of time (in milliseconds) between validations of the same object. An object that was
+      * validated more recently than this is not validated again. A value of 0 indicates no minimum. */
+    public long validationInterval = 0;
+    /** The pool engine to use. Either STANDARD_ENGINE (the default) or CONCURRENT_ENGINE. */
+    public int engine = STANDARD_ENGINE;
+    /** Whether the pool sizes itself between minObjects and maxObjects based on demand. The demand is estimated
+      * from the borrow rate and how long objects are held over the adaptive window. */
+    public boolean adaptive = false;
+    /** The span of time (in seconds) over which demand is measured when the pool is adaptive. Default is 60 seconds. */
+    public long adaptiveWindow = 60;
+    /** The maximum number of objects a KeyedObjectPool will create across all of its keys, a value of -1
+      * indicates no limit. maxObjects and minObjects apply to each key. */
+    public int maxTotal = -1;
+    /** The amount of time (in seconds) a key in a KeyedObjectPool can go without any objects in use before
+      * its objects are destroyed, a value of -1 indicates that keys are only removed to make room. */
+    public long keyIdleTime = -1l;
 
     /**
      * Creates a config object by parsing the supplied string. The string should be a comma or space
@@ -124,6 +165,7 @@ public class ObjectPoolConfig implements Cloneable
                 else if ( "shrinkfloor".equals(name) ) oconfig.shrinkFloor = Integer.parseInt( nv.nextToken() );
                 else if ( "alertthreshold".equals(name) ) oconfig.alertThreshold = Double.parseDouble( nv.nextToken() );
                 else if ( "alertinterval".equals(name) ) oconfig.alertInterval = Long.parseLong( nv.nextToken() );
+                else if ( "alertcheckinterval".equals(name) ) oconfig.alertCheckInterval = Long.parseLong( nv.nextToken() );
                 else if ( "alertadmin".equals(name) ) oconfig.alertAdmin = nv.nextToken();
                 else if ( "mailserver".equals(name) ) oconfig.mailServer = nv.nextToken();
                 else if ( "mailcommand".equals(name) ) oconfig.mailCommand = nv.nextToken();
@@ -132,6 +174,16 @@ public class ObjectPoolConfig implements Cloneable
                     String d = nv.nextToken();
                     if ( "1".equals(d) || "true".equals(d) ) oconfig.enableTracing = true;
                 }
+                else if ( "adaptive".equals(name) )
+                {
+                    String d = nv.nextToken();
+                    if ( "1".equals(d) || "true".equals(d) ) oconfig.adaptive = true;
+                }
+                else if ( "adaptivewindow".equals(name) ) oconfig.adaptiveWindow = Long.parseLong( nv.nextToken() );
+                else if ( "maxtotal".equals(name) ) oconfig.maxTotal = Integer.parseInt( nv.nextToken() );
+                else if ( "keyidletime".equals(name) ) oconfig.keyIdleTime = Long.parseLong( nv.nextToken() );
+                else if ( "leaksample".equals(name) ) oconfig.leakSampleRate = Integer.parseInt( nv.nextToken() );
+                else if ( "leakthreshold".equals(name) ) oconfig.leakThreshold = Long.parseLong( nv.nextToken() );
                 else if ( "alertonexpand".equals(name) )
                 {
                     String d = nv.nextToken();
@@ -143,6 +195,17 @@ public class ObjectPoolConfig implements Cloneable
                     String d = nv.nextToken();
                     if ( "1".equals(d) || "true".equals(d) ) oconfig.block = true;
                 }
+                else if ( "maxWait".equals(name) ) oconfig.maxWait = Long.parseLong( nv.nextToken() );
+                else if ( "spare".equals(name) ) oconfig.spareObjects = Integer.parseInt( nv.nextToken() );
+                else if ( "createthreads".equals(name) ) oconfig.createThreads = Integer.parseInt( nv.nextToken() );
+                else if ( "validationidle".equals(name) ) oconfig.validationIdleTime = Long.parseLong( nv.nextToken() );
+                else if ( "validationinterval".equals(name) ) oconfig.validationInterval = Long.parseLong( nv.nextToken() );
+                else if ( "engine".equals(name) )
+                {
+                    String d = nv.nextToken();
+                    if ( "concurrent".equals(d) ) oconfig.engine = CONCURRENT_ENGINE;
+                    else oconfig.engine = STANDARD_ENGINE;
+                }
             }
         }
         return oconfig;
@@ -154,6 +217,7 @@ public class ObjectPoolConfig implements Cloneable
         {
             StringBuffer out = new StringBuffer()
             .append("ObjectPoolConfig->[alertAdmin=").append(alertAdmin)
+            .append(";alertCheckInterval=").append(alertCheckInterval)
             .append(";alertInterval=").append(alertInterval)
             .append(";alertOnExpand=").append(alertOnExpand)
             .append(";alertThreshold=").append(alertThreshold)
@@ -163,6 +227,8 @@ public class ObjectPoolConfig implements Cloneable
             .append(";debug=").append(debug)
             .append(";debugLevel=").append(debugLevel)
             .append(";enableTracing=").append(enableTracing)
+            .append(";leakSampleRate=").append(leakSampleRate)
+            .append(";leakThreshold=").append(leakThreshold)
             .append(";expirationTime=").append(expirationTime)
             .append(";maxUseTime=").append(maxUseTime)
             .append(";increment=").append(increment)
@@ -171,7 +237,17 @@ public class ObjectPoolConfig implements Cloneable
             .append(";maxObjects=").append(maxObjects)
             .append(";minObjects=").append(minObjects)
             .append(";useCount=").append(usecount)
-            .append(";block=").append(usecount);
+            .append(";block=").append(usecount)
+            .append(";maxWait=").append(maxWait)
+            .append(";spareObjects=").append(spareObjects)
+            .append(";createThreads=").append(createThreads)
+            .append(";validationIdleTime=").append(validationIdleTime)
+            .append(";validationInterval=").append(validationInterval)
+            .append(";engine=").append(engine)
+            .append(";adaptive=").append(adaptive)
+            .append(";adaptiveWindow=").append(adaptiveWindow)
+            .append(";maxTotal=").append(maxTotal)
+            .append(";keyIdleTime=").append(keyIdleTime);
             return out.toString();
         }
         return super.toString();
@@ -0,0 +1,36 @@
+package com.zitego.pool;
+
+/**
+ * A factory for building object pools. The type of pool returned is determined by the
+ * engine specified in the ObjectPoolConfig.
+ *
+ * @author John Glorioso
+ * @version $Id$
+ */
+public class ObjectPoolFactory
+{
+    /**
+     * Returns a new object pool for the given manager and configuration. If the configuration
+     * is null, then a default configuration is used with the standard engine.
+     *
+     * @param mgr The object pool manager.
+     * @param config The configuration.
+     * @return ObjectPool
+     * @throws IllegalArgumentException if the config specifies an unsupported engine.
+     * @throws Exception if an error occurs creating the pool.
+     */
+    public static ObjectPool getObjectPool(ObjectPoolManager mgr, ObjectPoolConfig config) throws Exception
+    {
+        if (config == null) config = new ObjectPoolConfig();
+
+        switch (config.engine)
+        {
+            case ObjectPoolConfig.STANDARD_ENGINE:
+                return new ObjectPool(mgr, config);
+            case ObjectPoolConfig.CONCURRENT_ENGINE:
+                return new ConcurrentObjectPool(mgr, config);
+            default:
+                throw new IllegalArgumentException("the requested pool engine is not supported by ObjectPoolFactory");
+        }
+    }
+}
@@ -0,0 +1,222 @@
+package com.zitego.pool;
+
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Exposes the state and metrics of an object pool as a JMX MBean. Pools are registered under the
+ * name com.zitego.pool:type=ObjectPool,name=&lt;pool name&gt; in the platform MBean server.
+ *
+ * @author John Glorioso
+ * @version $Id$
+ */
+public class ObjectPoolMonitor implements ObjectPoolMonitorMBean
+{
+    /** The pool being monitored. */
+    protected ObjectPool _pool;
+
+    /**
+     * Creates a new monitor for the given pool.
+     *
+     * @param ObjectPool The pool to monitor.
+     */
+    public ObjectPoolMonitor(ObjectPool pool)
+    {
+        _pool = pool;
+    }
+
+    /**
+     * Returns the JMX object name for the pool with the given name.
+     *
+     * @param String The name of the pool.
+     * @return ObjectName
+     * @throws Exception if the name is not valid.
+     */
+    public static ObjectName getObjectName(String name) throws Exception
+    {
+        return new ObjectName( "com.zitego.pool:type=ObjectPool,name=" + ObjectName.quote(name) );
+    }
+
+    /**
+     * Registers a monitor for the given pool in the platform MBean server under the given name,
+     * replacing any monitor already registered under that name.
+     *
+     * @param String The name of the pool.
+     * @param ObjectPool The pool.
+     * @throws Exception if the monitor cannot be registered.
+     */
+    public static void register(String name, ObjectPool pool) throws Exception
+    {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName oname = getObjectName(name);
+        synchronized (ObjectPoolMonitor.class)
+        {
+            if ( server.isRegistered(oname) ) server.unregisterMBean(oname);
+            server.registerMBean(new ObjectPoolMonitor(pool), oname);
+        }
+    }
+
+    /**
+     * Removes the monitor for the pool with the given name from the platform MBean server if there is one.
+     *
+     * @param String The name of the pool.
+     * @throws Exception if the monitor cannot be unregistered.
+     */
+    public static void unregister(String name) throws Exception
+    {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName oname = getObjectName(name);
+        synchronized (ObjectPoolMonitor.class)
+        {
+            if ( server.isRegistered(oname) ) server.unregisterMBean(oname);
+        }
+    }
+
+    public long getObjectsInUse()
+    {
+        return _pool.getState().objectsInUse;
+    }
+
+    public long getObjectsAvailable()
+    {
+        return _pool.getState().objectsAvailable;
+    }
+
+    public long getObjectsExpired()
+    {
+        return _pool.getState().objectsExpired;
+    }
+
+    public int getMinObjects()
+    {
+        return _pool.getState().poolConfig.minObjects;
+    }
+
+    public int getMaxObjects()
+    {
+        return _pool.getState().poolConfig.maxObjects;
+    }
+
+    public int getTargetSize()
+    {
+        return _pool.getTargetSize();
+    }
+
+    public long getBorrowCount()
+    {
+        return _pool.getMetrics().getBorrowCount();
+    }
+
+    public long getWaitCount()
+    {
+        return _pool.getMetrics().getWaitCount();
+    }
+
+    public long getTimeoutCount()
+    {
+        return _pool.getMetrics().getTimeoutCount();
+    }
+
+    public long getExhaustedCount()
+    {
+        return _pool.getMetrics().getExhaustedCount();
+    }
+
+    public long getValidationFailureCount()
+    {
+        return _pool.getMetrics().getValidationFailureCount();
+    }
+
+    public long getCreateCount()
+    {
+        return _pool.getMetrics().getCreateCount();
+    }
+
+    public long getCreateFailureCount()
+    {
+        return _pool.getMetrics().getCreateFailureCount();
+    }
+
+    public long getExpansionCount()
+    {
+        return _pool.getMetrics().getExpansionCount();
+    }
+
+    public long getLeakCount()
+    {
+        return _pool.getMetrics().getLeakCount();
+    }
+
+    public double getBorrowWaitMean()
+    {
+        return _pool.getMetrics().getBorrowWait().getMean();
+    }
+
+    public long getBorrowWait50thPercentile()
+    {
+        return _pool.getMetrics().getBorrowWait().getPercentile(50);
+    }
+
+    public long getBorrowWait99thPercentile()
+    {
+        return _pool.getMetrics().getBorrowWait().getPercentile(99);
+    }
+
+    public long getBorrowWaitMax()
+    {
+        return _pool.getMetrics().getBorrowWait().getMax();
+    }
+
+    public double getTimeInUseMean()
+    {
+        return _pool.getMetrics().getTimeInUse().getMean();
+    }
+
+    public long getTimeInUse50thPercentile()
+    {
+        return _pool.getMetrics().getTimeInUse().getPercentile(50);
+    }
+
+    public long getTimeInUse99thPercentile()
+    {
+        return _pool.getMetrics().getTimeInUse().getPercentile(99);
+    }
+
+    public long getTimeInUseMax()
+    {
+        return _pool.getMetrics().getTimeInUse().getMax();
+    }
+
+    public double getCreateTimeMean()
+    {
+        return _pool.getMetrics().getCreateTime().getMean();
+    }
+
+    public long getCreateTime99thPercentile()
+    {
+        return _pool.getMetrics().getCreateTime().getPercentile(99);
+    }
+
+    public long getCreateTimeMax()
+    {
+        return _pool.getMetrics().getCreateTime().getMax();
+    }
+
+    public void resetMetrics()
+    {
+        _pool.getMetrics().reset();
+    }
+
+    public String[] leakReport()
+    {
+        List<PoolLeak> leaks = _pool.getLeaks();
+        String[] ret = new String[leaks.size()];
+        for (int i=0; i<ret.length; i++)
+        {
+            ret[i] = leaks.get(i).toString();
+        }
+        return ret;
+    }
+}
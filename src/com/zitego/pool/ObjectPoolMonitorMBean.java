@@ -0,0 +1,40 @@
+package com.zitego.pool;
+
+/**
+ * The JMX management interface of an ObjectPoolMonitor. Borrow wait and create times are in
+ * microseconds, and time in use is in milliseconds.
+ *
+ * @author John Glorioso
+ * @version $Id$
+ */
+public interface ObjectPoolMonitorMBean
+{
+    public long getObjectsInUse();
+    public long getObjectsAvailable();
+    public long getObjectsExpired();
+    public int getMinObjects();
+    public int getMaxObjects();
+    public int getTargetSize();
+    public long getBorrowCount();
+    public long getWaitCount();
+    public long getTimeoutCount();
+    public long getExhaustedCount();
+    public long getValidationFailureCount();
+    public long getCreateCount();
+    public long getCreateFailureCount();
+    public long getExpansionCount();
+    public long getLeakCount();
+    public double getBorrowWaitMean();
+    public long getBorrowWait50thPercentile();
+    public long getBorrowWait99thPercentile();
+    public long getBorrowWaitMax();
+    public double getTimeInUseMean();
+    public long getTimeInUse50thPercentile();
+    public long getTimeInUse99thPercentile();
+    public long getTimeInUseMax();
+    public double getCreateTimeMean();
+    public long getCreateTime99thPercentile();
+    public long getCreateTimeMax();
+    public void resetMetrics();
+    public String[] leakReport();
+}
@@ -20,6 +20,8 @@ public class ObjectPoolState
     public ObjectPoolConfig poolConfig;
     /** The hashtable to contain those objects that are in use. */
     public Hashtable inUseHash;
+    /** Statistics about how the pool has been used. */
+    public PoolMetrics metrics;
 
     public String toString()
     {
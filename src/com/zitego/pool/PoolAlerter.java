@@ -0,0 +1,108 @@
+package com.zitego.pool;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Delivers object pool alerts for every pool in the JVM from a single daemon thread. Alerts are
+ * queued and posting never blocks. If the queue is full the alert is dropped, since a pool that is
+ * in trouble should not be slowed down further by a slow mail server.
+ *
+ * @author John Glorioso
+ * @version $Id$
+ */
+public class PoolAlerter
+{
+    /** The most alerts that can be waiting to be sent. */
+    public static final int QUEUE_SIZE = 100;
+    /** A private instance. */
+    private static PoolAlerter _instance;
+    /** The executor that sends the alerts. */
+    protected ThreadPoolExecutor _executor;
+    /** The number of alerts dropped because the queue was full. */
+    protected AtomicLong _dropped = new AtomicLong();
+
+    /**
+     * Creates a new pool alerter.
+     */
+    protected PoolAlerter()
+    {
+        _executor = new ThreadPoolExecutor
+        (
+            1, 1, 0l, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(QUEUE_SIZE),
+            new ThreadFactory()
+            {
+                public Thread newThread(Runnable r)
+                {
+                    Thread t = new Thread(r, "PoolAlerter");
+                    t.setDaemon(true);
+                    return t;
+                }
+            }
+        );
+    }
+
+    /**
+     * Returns an instance of PoolAlerter.
+     *
+     * @return PoolAlerter
+     */
+    public synchronized static PoolAlerter getInstance()
+    {
+        if (_instance == null) _instance = new PoolAlerter();
+        return _instance;
+    }
+
+    /**
+     * Queues an alert to be sent to the given sink. Returns false if the alert was dropped because
+     * the queue is full.
+     *
+     * @param sink The sink to send the alert to.
+     * @param subject The subject of the alert.
+     * @param msg The alert message.
+     * @return boolean
+     */
+    public boolean post(final AlertSink sink, final String subject, final String msg)
+    {
+        try
+        {
+            _executor.execute
+            (
+                new Runnable()
+                {
+                    public void run()
+                    {
+                        try
+                        {
+                            sink.send(subject, msg);
+                        }
+                        catch (Throwable t)
+                        {
+                            System.err.println("********** Alert cannot be sent to " + sink + " (" + t + "): " + msg);
+                        }
+                    }
+                }
+            );
+            return true;
+        }
+        catch (RejectedExecutionException ree)
+        {
+            _dropped.incrementAndGet();
+            return false;
+        }
+    }
+
+    /**
+     * Returns the number of alerts that were dropped because the queue was full.
+     *
+     * @return long
+     */
+    public long getDroppedCount()
+    {
+        return _dropped.get();
+    }
+}
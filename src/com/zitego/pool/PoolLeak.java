@@ -0,0 +1,28 @@
+package com.zitego.pool;
+
+/**
+ * A simple data structure describing an object that has been in use longer than the pool's leak
+ * threshold and so has probably not been returned.
+ *
+ * @author John Glorioso
+ * @version $Id$
+ */
+public class PoolLeak
+{
+    /** The object that has not been returned. */
+    public Object object;
+    /** The time the object was borrowed. */
+    public long borrowed;
+    /** How long (in milliseconds) the object has been in use. */
+    public long heldTime;
+    /** The stack trace of where the object was borrowed. Null if the borrow was not sampled. */
+    public String borrowSite;
+
+    public String toString()
+    {
+        StringBuffer ret = new StringBuffer()
+            .append("Object ").append(object).append(" has been in use for ").append(heldTime / 1000l).append(" s, borrowed ")
+            .append( (borrowSite != null ? "at:\n" + borrowSite : "from an unsampled call site") );
+        return ret.toString();
+    }
+}
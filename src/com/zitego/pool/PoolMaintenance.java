@@ -0,0 +1,83 @@
+package com.zitego.pool;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the periodic maintenance (expiration, max use cleaning and shrinking) for every object pool
+ * in the JVM on a small, shared set of daemon threads instead of each pool running its own threads.
+ *
+ * @author John Glorioso
+ * @version $Id$
+ */
+public class PoolMaintenance
+{
+    /** The number of threads that run maintenance for all pools. */
+    public static final int THREADS = 2;
+    /** The shortest interval (in milliseconds) that a task will be run at. */
+    public static final long MIN_INTERVAL = 1000l;
+    /** A private instance. */
+    private static PoolMaintenance _instance;
+    /** The executor that runs the tasks. */
+    protected ScheduledThreadPoolExecutor _executor;
+
+    /**
+     * Creates a new pool maintenance service.
+     */
+    protected PoolMaintenance()
+    {
+        _executor = new ScheduledThreadPoolExecutor
+        (
+            THREADS,
+            new ThreadFactory()
+            {
+                public Thread newThread(Runnable r)
+                {
+                    Thread t = new Thread(r, "PoolMaintenance");
+                    t.setDaemon(true);
+                    return t;
+                }
+            }
+        );
+        _executor.setRemoveOnCancelPolicy(true);
+    }
+
+    /**
+     * Returns an instance of PoolMaintenance.
+     *
+     * @return PoolMaintenance
+     */
+    public synchronized static PoolMaintenance getInstance()
+    {
+        if (_instance == null) _instance = new PoolMaintenance();
+        return _instance;
+    }
+
+    /**
+     * Schedules the given task to be run repeatedly with the given interval (in milliseconds) between
+     * the end of one run and the start of the next. Intervals shorter than MIN_INTERVAL are raised to it.
+     * The task should not throw exceptions as that stops it from being run again. Cancel the returned
+     * future to stop the task.
+     *
+     * @param task The task.
+     * @param interval The interval in milliseconds.
+     * @return ScheduledFuture
+     */
+    public ScheduledFuture<?> schedule(Runnable task, long interval)
+    {
+        if (interval < MIN_INTERVAL) interval = MIN_INTERVAL;
+        return _executor.scheduleWithFixedDelay(task, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Returns the number of tasks that are scheduled.
+     *
+     * @return int
+     */
+    public int getTaskCount()
+    {
+        return _executor.getQueue().size();
+    }
+}
@@ -0,0 +1,325 @@
+package com.zitego.pool;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Running statistics about how an object pool is being used. This records how long callers wait to
+ * borrow an object, how long objects are held, how long objects take to create, and counts of waits,
+ * timeouts, exhausted pools, validation failures, expansions and leaks. All recording is lock free so
+ * that it can be done on every borrow and return.
+ *
+ * @author John Glorioso
+ * @version $Id$
+ */
+public class PoolMetrics
+{
+    /** The time callers waited to borrow an object in microseconds. */
+    protected Histogram _borrowWait = new Histogram();
+    /** The time objects were held before being returned in milliseconds. */
+    protected Histogram _timeInUse = new Histogram();
+    /** The time taken to create an object in microseconds. */
+    protected Histogram _createTime = new Histogram();
+    /** The number of objects borrowed. */
+    protected AtomicLong _borrows = new AtomicLong();
+    /** The number of borrows that had to wait in line. */
+    protected AtomicLong _waits = new AtomicLong();
+    /** The number of borrows that timed out waiting. */
+    protected AtomicLong _timeouts = new AtomicLong();
+    /** The number of non blocking borrows that failed because the pool was maxed out. */
+    protected AtomicLong _exhausted = new AtomicLong();
+    /** The number of objects that failed validation. */
+    protected AtomicLong _validationFailures = new AtomicLong();
+    /** The number of objects that could not be created. */
+    protected AtomicLong _createFailures = new AtomicLong();
+    /** The number of times the pool was expanded. */
+    protected AtomicLong _expansions = new AtomicLong();
+    /** The number of objects reported as possible leaks. */
+    protected AtomicLong _leaks = new AtomicLong();
+
+    /**
+     * Records that an object was borrowed after the given number of nanoseconds.
+     *
+     * @param nanos The time it took to borrow the object.
+     * @param waited Whether the caller had to wait in line.
+     */
+    public void borrowed(long nanos, boolean waited)
+    {
+        _borrows.incrementAndGet();
+        if (waited) _waits.incrementAndGet();
+        _borrowWait.record(nanos / 1000l);
+    }
+
+    /**
+     * Records that an object was returned after being held the given number of milliseconds.
+     *
+     * @param millis The time the object was in use.
+     */
+    public void returned(long millis)
+    {
+        _timeInUse.record(millis);
+    }
+
+    /**
+     * Records that an object was created in the given number of nanoseconds.
+     *
+     * @param nanos The time it took to create the object.
+     */
+    public void created(long nanos)
+    {
+        _createTime.record(nanos / 1000l);
+    }
+
+    /**
+     * Records that an object could not be created.
+     */
+    public void createFailed()
+    {
+        _createFailures.incrementAndGet();
+    }
+
+    /**
+     * Records that a caller timed out waiting for an object.
+     */
+    public void timedOut()
+    {
+        _timeouts.incrementAndGet();
+    }
+
+    /**
+     * Records that a caller could not get an object because the pool was maxed out.
+     */
+    public void exhausted()
+    {
+        _exhausted.incrementAndGet();
+    }
+
+    /**
+     * Records that an object failed validation.
+     */
+    public void validationFailed()
+    {
+        _validationFailures.incrementAndGet();
+    }
+
+    /**
+     * Records that the pool was expanded.
+     */
+    public void expanded()
+    {
+        _expansions.incrementAndGet();
+    }
+
+    /**
+     * Records that an object was reported as a possible leak.
+     */
+    public void leaked()
+    {
+        _leaks.incrementAndGet();
+    }
+
+    /**
+     * Returns the borrow wait times in microseconds.
+     *
+     * @return Histogram
+     */
+    public Histogram getBorrowWait()
+    {
+        return _borrowWait;
+    }
+
+    /**
+     * Returns the times objects were in use in milliseconds.
+     *
+     * @return Histogram
+     */
+    public Histogram getTimeInUse()
+    {
+        return _timeInUse;
+    }
+
+    /**
+     * Returns the object create times in microseconds.
+     *
+     * @return Histogram
+     */
+    public Histogram getCreateTime()
+    {
+        return _createTime;
+    }
+
+    public long getBorrowCount()
+    {
+        return _borrows.get();
+    }
+
+    public long getWaitCount()
+    {
+        return _waits.get();
+    }
+
+    public long getTimeoutCount()
+    {
+        return _timeouts.get();
+    }
+
+    public long getExhaustedCount()
+    {
+        return _exhausted.get();
+    }
+
+    public long getValidationFailureCount()
+    {
+        return _validationFailures.get();
+    }
+
+    public long getCreateCount()
+    {
+        return _createTime.getCount();
+    }
+
+    public long getCreateFailureCount()
+    {
+        return _createFailures.get();
+    }
+
+    public long getExpansionCount()
+    {
+        return _expansions.get();
+    }
+
+    public long getLeakCount()
+    {
+        return _leaks.get();
+    }
+
+    /**
+     * Resets all of the statistics.
+     */
+    public void reset()
+    {
+        _borrowWait.reset();
+        _timeInUse.reset();
+        _createTime.reset();
+        _borrows.set(0);
+        _waits.set(0);
+        _timeouts.set(0);
+        _exhausted.set(0);
+        _validationFailures.set(0);
+        _createFailures.set(0);
+        _expansions.set(0);
+        _leaks.set(0);
+    }
+
+    public String toString()
+    {
+        StringBuffer ret = new StringBuffer()
+            .append("[Borrows: ").append( getBorrowCount() ).append(", Waits: ").append( getWaitCount() )
+            .append(", Timeouts: ").append( getTimeoutCount() ).append(", Exhausted: ").append( getExhaustedCount() )
+            .append(", Validation Failures: ").append( getValidationFailureCount() )
+            .append(", Creates: ").append( getCreateCount() ).append(", Create Failures: ").append( getCreateFailureCount() )
+            .append(", Expansions: ").append( getExpansionCount() ).append(", Leaks: ").append( getLeakCount() )
+            .append(", Borrow Wait (us): ").append(_borrowWait)
+            .append(", Time In Use (ms): ").append(_timeInUse)
+            .append(", Create Time (us): ").append(_createTime).append("]");
+        return ret.toString();
+    }
+
+    /**
+     * A histogram of non negative values with buckets that double in size. Bucket 0 holds 0, and
+     * bucket n holds values from 2^(n-1) up to 2^n - 1. Percentiles are reported as the upper
+     * bound of the bucket they fall in, so they are accurate to within a factor of 2.
+     */
+    public static class Histogram
+    {
+        /** The number of buckets. */
+        public static final int BUCKETS = 64;
+        protected AtomicLongArray _buckets = new AtomicLongArray(BUCKETS);
+        protected AtomicLong _count = new AtomicLong();
+        protected AtomicLong _sum = new AtomicLong();
+        protected AtomicLong _max = new AtomicLong();
+
+        /**
+         * Records a value. Negative values are recorded as 0.
+         *
+         * @param value The value.
+         */
+        public void record(long value)
+        {
+            if (value < 0) value = 0;
+            _buckets.incrementAndGet( 64 - Long.numberOfLeadingZeros(value) );
+            _count.incrementAndGet();
+            _sum.addAndGet(value);
+            long max = _max.get();
+            while ( value > max && !_max.compareAndSet(max, value) )
+            {
+                max = _max.get();
+            }
+        }
+
+        public long getCount()
+        {
+            return _count.get();
+        }
+
+        public long getSum()
+        {
+            return _sum.get();
+        }
+
+        public long getMax()
+        {
+            return _max.get();
+        }
+
+        public double getMean()
+        {
+            long count = _count.get();
+            return (count == 0 ? 0d : (double)_sum.get() / (double)count);
+        }
+
+        /**
+         * Returns the value below which the given percent of the recorded values fall.
+         *
+         * @param percent The percentile from 0 to 100.
+         * @return long
+         */
+        public long getPercentile(double percent)
+        {
+            long count = _count.get();
+            if (count == 0) return 0;
+
+            long target = (long)Math.ceil(count * percent / 100d);
+            long seen = 0;
+            for (int i=0; i<BUCKETS; i++)
+            {
+                seen += _buckets.get(i);
+                if (seen >= target) return Math.min( (i == 0 ? 0l : (1l << i) - 1l), getMax() );
+            }
+            return getMax();
+        }
+
+        /**
+         * Resets the histogram.
+         */
+        public void reset()
+        {
+            for (int i=0; i<BUCKETS; i++)
+            {
+                _buckets.set(i, 0);
+            }
+            _count.set(0);
+            _sum.set(0);
+            _max.set(0);
+        }
+
+        public String toString()
+        {
+            StringBuffer ret = new StringBuffer()
+                .append("[Count: ").append( getCount() ).append(", Mean: ").append( (long)getMean() )
+                .append(", 50%: ").append( getPercentile(50) ).append(", 99%: ").append( getPercentile(99) )
+                .append(", Max: ").append( getMax() ).append("]");
+            return ret.toString();
+        }
+    }
+}
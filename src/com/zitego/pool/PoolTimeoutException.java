@@ -0,0 +1,30 @@
+package com.zitego.pool;
+
+/**
+ * An exception for when a caller has waited the maximum allowed time for an object from the pool.
+ *
+ * @author John Glorioso
+ * @version $Id$
+ */
+public class PoolTimeoutException extends ObjectPoolException
+{
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Creates a new <code>PoolTimeoutException</code>.
+	 */
+	public PoolTimeoutException()
+	{
+		super();
+	}
+
+	/**
+	 * Creates a new <code>PoolTimeoutException</code> with the specified error message.
+	 *
+	 * @param String The error message.
+	 */
+	public PoolTimeoutException(String err)
+	{
+		super(err);
+	}
+}
@@ -0,0 +1,49 @@
+package com.zitego.pool;
+
+import com.zitego.mail.SMTPMail;
+import com.zitego.util.TextUtils;
+
+/**
+ * Sends object pool alerts as email through an SMTP server.
+ *
+ * @author John Glorioso
+ * @version $Id$
+ */
+public class SMTPAlertSink implements AlertSink
+{
+    /** The SMTP server. */
+    protected String _mailServer;
+    /** The email addresses to send alerts to. */
+    protected String[] _recipients;
+
+    /**
+     * Creates a new SMTP alert sink.
+     *
+     * @param String The SMTP server.
+     * @param String The email addresses to send alerts to separated by semi-colons.
+     */
+    public SMTPAlertSink(String mailServer, String recipients)
+    {
+        _mailServer = mailServer;
+        _recipients = TextUtils.split(recipients, ';');
+    }
+
+    public void send(String subject, String msg) throws Exception
+    {
+        if (_recipients == null) return;
+        for (int i=0; i<_recipients.length; i++)
+        {
+            SMTPMail mailer = new SMTPMail();
+            mailer.setToAddress(_recipients[i]);
+            mailer.setSubject(subject);
+            mailer.setMailServer(_mailServer);
+            mailer.setBody(msg);
+            mailer.sendMail();
+        }
+    }
+
+    public String toString()
+    {
+        return "SMTP server " + _mailServer;
+    }
+}
@@ -0,0 +1,49 @@
+package com.zitego.pool;
+
+import com.zitego.mail.SpoolMail;
+import com.zitego.util.TextUtils;
+
+/**
+ * Sends object pool alerts as email by spooling them to a mail command such as sendmail.
+ *
+ * @author John Glorioso
+ * @version $Id$
+ */
+public class SpoolAlertSink implements AlertSink
+{
+    /** The mail command. */
+    protected String _mailCommand;
+    /** The email addresses to send alerts to. */
+    protected String[] _recipients;
+
+    /**
+     * Creates a new spool alert sink.
+     *
+     * @param String The command line to spool mail to.
+     * @param String The email addresses to send alerts to separated by semi-colons.
+     */
+    public SpoolAlertSink(String mailCommand, String recipients)
+    {
+        _mailCommand = mailCommand;
+        _recipients = TextUtils.split(recipients, ';');
+    }
+
+    public void send(String subject, String msg) throws Exception
+    {
+        if (_recipients == null) return;
+        for (int i=0; i<_recipients.length; i++)
+        {
+            SpoolMail mailer = new SpoolMail();
+            mailer.beginSpool(_mailCommand, null);
+            mailer.spool("To: " + _recipients[i]);
+            mailer.spool("Subject: " + subject);
+            mailer.spool(msg);
+            mailer.endSpool();
+        }
+    }
+
+    public String toString()
+    {
+        return _mailCommand;
+    }
+}
@@ -0,0 +1,203 @@
+package com.zitego.sql;
+
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.Arrays;
+
+/**
+ * An immutable copy of the rows of a query result. It holds no database resources, so it can be kept
+ * in a QueryCache and read by any number of threads at once. Dates and byte arrays are copied when they
+ * are read so that callers cannot change the cached values.
+ *
+ * @author John Glorioso
+ * @version $Id$
+ * @see QueryCache
+ */
+public class CachedResult
+{
+    /** The column labels. */
+    private final String[] _columns;
+    /** The rows. */
+    private final Object[][] _rows;
+    /** The estimated size of the result in bytes. */
+    private final long _size;
+
+    /**
+     * Copies the rest of the rows in the given result set.
+     *
+     * @param ResultSet The result set.
+     * @throws SQLException if the rows cannot be read.
+     */
+    public CachedResult(ResultSet rs) throws SQLException
+    {
+        ResultSetMetaData md = rs.getMetaData();
+        int count = md.getColumnCount();
+        _columns = new String[count];
+        for (int i=0; i<count; i++)
+        {
+            String label = md.getColumnLabel(i + 1);
+            if (label == null || label.length() == 0) label = md.getColumnName(i + 1);
+            _columns[i] = label;
+        }
+
+        java.util.ArrayList<Object[]> rows = new java.util.ArrayList<Object[]>();
+        long size = 64;
+        while ( rs.next() )
+        {
+            Object[] row = new Object[count];
+            size += 16 + 8 * count;
+            for (int i=0; i<count; i++)
+            {
+                row[i] = copy( rs.getObject(i + 1) );
+                size += sizeOf(row[i]);
+            }
+            rows.add(row);
+        }
+        _rows = rows.toArray( new Object[rows.size()][] );
+        _size = size;
+    }
+
+    /**
+     * Returns the number of rows.
+     *
+     * @return int
+     */
+    public int getRowCount()
+    {
+        return _rows.length;
+    }
+
+    /**
+     * Returns the number of columns.
+     *
+     * @return int
+     */
+    public int getColumnCount()
+    {
+        return _columns.length;
+    }
+
+    /**
+     * Returns the label of the given column, starting at 1.
+     *
+     * @param int The column.
+     * @return String
+     */
+    public String getColumnName(int column)
+    {
+        return _columns[column - 1];
+    }
+
+    /**
+     * Returns the index of the column with the given label, starting at 1, or -1 if there is not one.
+     *
+     * @param String The label.
+     * @return int
+     */
+    public int findColumn(String label)
+    {
+        for (int i=0; i<_columns.length; i++)
+        {
+            if ( _columns[i].equalsIgnoreCase(label) ) return i + 1;
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the value in the given row, starting at 0, and column, starting at 1. Returns null for sql nulls.
+     *
+     * @param int The row.
+     * @param int The column.
+     * @return Object
+     */
+    public Object getObject(int row, int column)
+    {
+        return copy( _rows[row][column - 1] );
+    }
+
+    /**
+     * Returns the value in the given row, starting at 0, and the column with the given label.
+     *
+     * @param int The row.
+     * @param String The column label.
+     * @return Object
+     * @throws IllegalArgumentException if there is no column with the label.
+     */
+    public Object getObject(int row, String label)
+    {
+        int column = findColumn(label);
+        if (column == -1) throw new IllegalArgumentException("No column named " + label);
+        return getObject(row, column);
+    }
+
+    /**
+     * Returns the value in the given row and column as a String or null.
+     *
+     * @param int The row.
+     * @param String The column label.
+     * @return String
+     */
+    public String getString(int row, String label)
+    {
+        Object value = getObject(row, label);
+        return (value == null ? null : value.toString());
+    }
+
+    /**
+     * Returns the value in the given row and column as a long, or 0 if it is null.
+     *
+     * @param int The row.
+     * @param String The column label.
+     * @return long
+     */
+    public long getLong(int row, String label)
+    {
+        Object value = getObject(row, label);
+        if (value == null) return 0;
+        else if (value instanceof Number) return ( (Number)value ).longValue();
+        else return Long.parseLong( value.toString() );
+    }
+
+    /**
+     * Returns the value in the given row and column as an int, or 0 if it is null.
+     *
+     * @param int The row.
+     * @param String The column label.
+     * @return int
+     */
+    public int getInt(int row, String label)
+    {
+        return (int)getLong(row, label);
+    }
+
+    /**
+     * Returns the estimated size of the result in bytes.
+     *
+     * @return long
+     */
+    public long getSize()
+    {
+        return _size;
+    }
+
+    private static Object copy(Object value)
+    {
+        if (value instanceof java.util.Date) return ( (java.util.Date)value ).clone();
+        else if (value instanceof byte[]) return ( (byte[])value ).clone();
+        else return value;
+    }
+
+    private static long sizeOf(Object value)
+    {
+        if (value == null) return 0;
+        else if (value instanceof String) return 40 + 2 * ( (String)value ).length();
+        else if (value instanceof byte[]) return 16 + ( (byte[])value ).length;
+        else return 24;
+    }
+
+    public String toString()
+    {
+        return "[Columns: " + Arrays.asList(_columns) + ", Rows: " + _rows.length + "]";
+    }
+}
@@ -1,5 +1,7 @@
 package com.zitego.sql;
 
+import com.zitego.pool.ObjectPool;
+import com.zitego.pool.ObjectPoolManager;
 import java.sql.*;
 import java.util.Properties;
 import java.util.concurrent.Executor;
@@ -21,6 +23,10 @@ public class Connection implements java.sql.Connection
     protected boolean _beenClosed = false;
     /** The connection factory. */
     protected ConnectionFactory _factory;
+    /** The pool the connection came from. */
+    protected ObjectPool _pool;
+    /** The pool item holding the connection. */
+    protected ObjectPool.ObjectPoolItem _item;
 
     /**
      * Wrap the supplied connection.
@@ -44,6 +50,19 @@ public class Connection implements java.sql.Connection
         _factory = factory;
     }
 
+    /**
+     * Wrap the connection in the supplied pool item. Closing this returns the item directly to the pool.
+     *
+     * @param pool The pool the item came from.
+     * @param item The pool item holding the connection.
+     */
+    public Connection(ObjectPool pool, ObjectPool.ObjectPoolItem item)
+    {
+        _conn = (java.sql.Connection)item.item;
+        _pool = pool;
+        _item = item;
+    }
+
     @Override
     public boolean isClosed()
     {
@@ -69,13 +88,13 @@ public class Connection implements java.sql.Connection
     }
 
     @Override
-    public java.util.Map getTypeMap() throws SQLException
+    public java.util.Map<String, Class<?>> getTypeMap() throws SQLException
     {
         return _conn.getTypeMap();
     }
 
     @Override
-    public void setTypeMap(java.util.Map map) throws SQLException
+    public void setTypeMap(java.util.Map<String, Class<?>> map) throws SQLException
     {
         _conn.setTypeMap(map);
     }
@@ -83,13 +102,42 @@ public class Connection implements java.sql.Connection
     @Override
     public PreparedStatement prepareStatement(String stmt) throws SQLException
     {
-        return new PreparedStatement( _conn.prepareStatement(stmt) );
+        return prepareStatement(stmt, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
     }
 
     @Override
     public PreparedStatement prepareStatement(String sql, int resultSetType, int resultSetConcurrency) throws SQLException
     {
-        return new PreparedStatement( _conn.prepareStatement(sql, resultSetType, resultSetConcurrency) );
+        StatementCache cache = getStatementCache();
+        if (cache == null) return new PreparedStatement( _conn.prepareStatement(sql, resultSetType, resultSetConcurrency) );
+
+        StatementCache.Key key = new StatementCache.Key(sql, resultSetType, resultSetConcurrency);
+        java.sql.PreparedStatement pst = cache.take(key);
+        if (pst == null) pst = _conn.prepareStatement(sql, resultSetType, resultSetConcurrency);
+        return new PreparedStatement(pst, cache, key);
+    }
+
+    /**
+     * Returns the prepared statement cache of the pooled connection this wraps, creating it the first time
+     * if the pool was configured with a statementcache size. Returns null if statements are not cached.
+     *
+     * @return StatementCache
+     */
+    public StatementCache getStatementCache()
+    {
+        if (_item == null) return null;
+        StatementCache cache = (StatementCache)_item.attachment;
+        if (cache == null)
+        {
+            // DBCP pools statements itself.
+            if (_pool instanceof DBCPObjectPool) return null;
+            ObjectPoolManager mgr = _pool.getManager();
+            int size = (mgr instanceof ConnectionPoolManager ? ( (ConnectionPoolManager)mgr ).getStatementCacheSize() : 0);
+            if (size <= 0) return null;
+            cache = new StatementCache(size);
+            _item.attachment = cache;
+        }
+        return cache;
     }
 
     @Override
@@ -174,6 +222,8 @@ public class Connection implements java.sql.Connection
     @Override
     public void close() throws SQLException
     {
+        // Closing twice must not return the connection again, as someone else may have it by now.
+        if (_beenClosed) return;
         try
         {
             try
@@ -182,10 +232,17 @@ public class Connection implements java.sql.Connection
             }
             catch(SQLException ignored) { }
 
-            ConnectionFactory factory = _factory;
-            if (factory == null) factory = ConnectionFactory.getInstance();
-            if (factory != null) factory.returnConnection(this);
             _beenClosed = true;
+            if (_pool != null)
+            {
+                _pool.returnItem(_item);
+            }
+            else
+            {
+                ConnectionFactory factory = _factory;
+                if (factory == null) factory = ConnectionFactory.getInstance();
+                if (factory != null) factory.returnConnection(this);
+            }
         }
         catch (Exception e)
         {
@@ -3,7 +3,7 @@ package com.zitego.sql;
 import com.zitego.util.StaticProperties;
 import com.zitego.util.PropertyStore;
 import com.zitego.pool.*;
-import java.util.Hashtable;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.StringTokenizer;
 import java.io.IOException;
 import java.sql.*;
@@ -25,9 +25,13 @@ import java.sql.*;
  * so obvious follows:<br>
  * <ul>
  *  <li> testtable - testtable is an optional argument that specifies a table to use to test
- *                   connections from the pool before they are returned to the caller. The table
- *                   is tested by performing a <code>SELECT 1 FROM <i>testtable</i> WHERE 1=2</code>,
- *                   so choosing the smallest table as possible is best for performance.
+ *                   connections from the pool before they are returned to the caller. Connections
+ *                   are tested with <code>Connection.isValid</code> when the driver supports it and
+ *                   otherwise by performing a <code>SELECT 1 FROM <i>testtable</i> WHERE 1=2</code>,
+ *                   so choosing the smallest table as possible is best for performance. testtimeout
+ *                   sets how many seconds a test can take (5 by default). Setting validationidle
+ *                   (in milliseconds) in the pool config skips the test for connections returned
+ *                   to the pool that recently.
  *  <li> testinterval - testinterval is an optional argument that specifies how often (in seconds)
  *                      to test the connections from the pool using <code>testtable</code>. The connection
  *                      will not be tested more often that the interval specified. It can, however, be
@@ -109,7 +113,7 @@ import java.sql.*;
 public class ConnectionFactory
 {
     /** A private instance. */
-    private static ConnectionFactory _instance;
+    private static volatile ConnectionFactory _instance;
 
     static
     {
@@ -122,17 +126,17 @@ public class ConnectionFactory
     }
 
     /** Pools hashed by pool name. */
-    protected Hashtable _pools;
-    /** A hash that maps a reserved connection to a pool. */
-    protected Hashtable _reservedConnections;
+    protected ConcurrentHashMap<String, ObjectPool> _pools;
+    /** Routing pools hashed by name. */
+    protected ConcurrentHashMap<String, RoutingPool> _routers;
 
     /**
      * Creates a new connection factory.
      */
     protected ConnectionFactory()
     {
-        _pools = new Hashtable();
-        _reservedConnections = new Hashtable();
+        _pools = new ConcurrentHashMap<String, ObjectPool>();
+        _routers = new ConcurrentHashMap<String, RoutingPool>();
     }
 
     /**
@@ -140,39 +144,80 @@ public class ConnectionFactory
      *
      * @return ConnectionFactory
      */
-    public synchronized static ConnectionFactory getInstance()
+    public static ConnectionFactory getInstance()
     {
-        if (_instance == null) _instance = new ConnectionFactory();
-        return _instance;
+        //Only lock the first time, this is called on every connect
+        ConnectionFactory ret = _instance;
+        if (ret == null)
+        {
+            synchronized (ConnectionFactory.class)
+            {
+                if (_instance == null) _instance = new ConnectionFactory();
+                ret = _instance;
+            }
+        }
+        return ret;
     }
 
     /**
-     * Returns a connection out the pool with the supplied name.
+     * Returns a connection out the pool with the supplied name. The connection carries its pool and
+     * pool item so that closing it hands it straight back without any lookups.
      *
      * @param poolName The pool name.
      * @return Connection
      */
     public java.sql.Connection getConnection(String poolName) throws Exception
+    {
+        return getConnection(poolName, false);
+    }
+
+    /**
+     * Returns a connection out the pool with the supplied name. If the name is of a routing pool and
+     * readOnly is true, the connection starts out on a replica. readOnly is ignored for other pools.
+     *
+     * @param poolName The pool name.
+     * @param readOnly Whether the connection is for read only work.
+     * @return Connection
+     */
+    public java.sql.Connection getConnection(String poolName, boolean readOnly) throws Exception
     {
         if (poolName == null) return null;
-        ObjectPool pool = (ObjectPool)_pools.get(poolName);
-        java.sql.Connection connection = (java.sql.Connection)pool.getObject();
-        _reservedConnections.put(connection, pool);
-        return new Connection(connection, this);
+        ObjectPool pool = _pools.get(poolName);
+        if (pool != null) return new Connection( pool, pool.getItem() );
+
+        RoutingPool router = _routers.get(poolName);
+        if (router == null) throw new IllegalArgumentException("There is no connection pool named " + poolName);
+        return router.getConnection(readOnly);
     }
 
     /**
-     * Returns the state of the specified connetion pool.
+     * Returns the state of the specified connetion pool. For a routing pool, this is the state of the primary.
      *
      * @return ObjectPoolState
      */
     public ObjectPoolState getState(String poolName)
     {
         if (poolName == null) return null;
-        ObjectPool pool = (ObjectPool)_pools.get(poolName);
+        ObjectPool pool = _pools.get(poolName);
+        if (pool == null)
+        {
+            RoutingPool router = _routers.get(poolName);
+            if (router != null) pool = router.getPrimary();
+        }
         return pool.getState();
     }
 
+    /**
+     * Returns the routing pool with the given name, or null if there is not one.
+     *
+     * @param name The routing pool name.
+     * @return RoutingPool
+     */
+    public RoutingPool getRoutingPool(String name)
+    {
+        return _routers.get(name);
+    }
+
     /**
      * Returns the supplied connection to the pool.
      *
@@ -180,11 +225,114 @@ public class ConnectionFactory
      */
     public void returnConnection(Connection connection)
     {
-        if (connection != null && connection._conn != null)
+        if (connection instanceof RoutingConnection)
         {
-            ObjectPool pool = (ObjectPool)_reservedConnections.get(connection._conn);
-            _reservedConnections.remove(connection._conn);
-            if (pool != null) pool.returnObject(connection._conn);
+            try { connection.close(); } catch (SQLException sqle) { }
+        }
+        else if (connection != null && connection._pool != null)
+        {
+            connection._pool.returnItem(connection._item);
+        }
+    }
+
+    /**
+     * Parses a comma delimited configuration string and creates a routing pool that sends read only work to
+     * replica pools and everything else to a primary pool. The pools must already have been created. The
+     * configuration string must contain: primary, the name of the primary pool, and replicas, the names of
+     * the replica pools separated by |. It can optionally include: balance, either roundrobin (the default)
+     * or leastoutstanding, and checkinterval, the seconds between replica health checks (10 by default).
+     * Connections are had from the routing pool by name like any other pool.<br>
+     * <br>
+     * For example:<br>
+     * <pre>
+     * primary=main,replicas=replica1|replica2,balance=leastoutstanding,checkinterval=5
+     * </pre>
+     *
+     * @param name The name of the routing pool.
+     * @param configuration The string described above.
+     * @param configPropertyName The property name to store a DBConfig object in StaticProperties. null means none.
+     * @throws Exception if an error occurs.
+     */
+    public void createRoutingPool(String name, String configuration, String configPropertyName) throws Exception
+    {
+        String primary = null;
+        String replicas = "";
+        int balance = RoutingPool.ROUND_ROBIN;
+        long checkInterval = 10;
+
+        StringTokenizer tokens = new StringTokenizer(configuration, ",");
+        while ( tokens.hasMoreTokens() )
+        {
+            String token = tokens.nextToken().trim();
+            int eq = token.indexOf("=");
+            if (eq == -1) continue;
+            String paramname = token.substring(0, eq).trim();
+            String value = token.substring(eq + 1).trim();
+
+            if ( "primary".equals(paramname) ) primary = value;
+            else if ( "replicas".equals(paramname) ) replicas = value;
+            else if ( "balance".equals(paramname) )
+            {
+                if ( "leastoutstanding".equalsIgnoreCase(value) ) balance = RoutingPool.LEAST_OUTSTANDING;
+                else if ( "roundrobin".equalsIgnoreCase(value) ) balance = RoutingPool.ROUND_ROBIN;
+                else throw new IllegalArgumentException("balance must be roundrobin or leastoutstanding in ConnectionFactory");
+            }
+            else if ( "checkinterval".equals(paramname) ) checkInterval = Long.parseLong(value);
+        }
+        if (primary == null) throw new IllegalArgumentException("primary not provided in ConnectionFactory");
+        ObjectPool primaryPool = _pools.get(primary);
+        if (primaryPool == null) throw new IllegalArgumentException("primary pool " + primary + " does not exist");
+
+        StringTokenizer names = new StringTokenizer(replicas, "|");
+        String[] replicaNames = new String[names.countTokens()];
+        ObjectPool[] replicaPools = new ObjectPool[replicaNames.length];
+        for (int i=0; i<replicaNames.length; i++)
+        {
+            replicaNames[i] = names.nextToken().trim();
+            replicaPools[i] = _pools.get(replicaNames[i]);
+        }
+
+        RoutingPool router = new RoutingPool(name, primaryPool, replicaNames, replicaPools, balance, checkInterval);
+        RoutingPool old = _routers.put(name, router);
+        if (old != null) old.destroy();
+
+        ConnectionPoolManager manager = (ConnectionPoolManager)primaryPool.getManager();
+        storeDBConfig(name, manager, configPropertyName, null);
+        manager.debug("Routing Pool " + name + " initialized: " + router, 1);
+    }
+
+    /**
+     * Creates a DBConfig for the pool with the given name and stores it in StaticProperties (or the given store)
+     * under the given property name, unless the property name is null or there is already one stored.
+     *
+     * @param name The name of the pool.
+     * @param manager The manager of the pool.
+     * @param configPropertyName The property name to store the DBConfig object. null means none.
+     * @param store The property store to put the db config in. If null, StaticProperties is used.
+     * @throws Exception if an error occurs.
+     */
+    protected void storeDBConfig(String name, ConnectionPoolManager manager, String configPropertyName, PropertyStore store)
+    throws Exception
+    {
+        if (configPropertyName != null)
+        {
+            //Create the db config object if we are supposed to and it isn't already there
+            boolean createConfig = false;
+            if (store != null) createConfig = (store.getProperty(configPropertyName) == null);
+            else createConfig = (StaticProperties.getProperty(configPropertyName) == null);
+            if (createConfig)
+            {
+                DBConfig dbcfg = new DBConfig
+                (
+                    "jdbc:zitego:pool:"+name,
+                    (java.sql.Driver)Class.forName("com.zitego.sql.Driver").newInstance(),
+                    "", "", DBConfig.MYSQL
+                );
+                dbcfg.setLogSql( (manager.getLogger() != null) );
+                dbcfg.setLogger( manager.getLogger() );
+                if (store == null) StaticProperties.setProperty(configPropertyName, dbcfg);
+                else store.setProperty(configPropertyName, dbcfg);
+            }
         }
     }
 
@@ -313,32 +461,39 @@ public class ConnectionFactory
                            String configPropertyName, PropertyStore store) throws Exception
     {
         manager.debug("Creating connection pool: " + name, 1);
-        ObjectPool pool = new ObjectPool(manager, config);
+        if (manager.getTestInterval() > 0 && config.validationInterval == 0)
+        {
+            config = config.getCopy();
+            config.validationInterval = manager.getTestInterval() * 1000l;
+        }
+        ObjectPool pool = ObjectPoolFactory.getObjectPool(manager, config);
 
         // Clean any existing pool under this name.
-        ObjectPool tmp = (ObjectPool)_pools.get(name);
+        ObjectPool tmp = _pools.get(name);
         if (tmp != null) tmp.flush();
         _pools.put(name, pool);
+        registerMonitor(name, pool, manager);
 
-        if (configPropertyName != null)
+        storeDBConfig(name, manager, configPropertyName, store);
+    }
+
+    /**
+     * Registers a JMX monitor for the given pool so its state and metrics can be watched. Failing to
+     * register is logged and otherwise ignored so that the pool can still be used.
+     *
+     * @param name The name of the pool.
+     * @param pool The pool.
+     * @param manager The ConnectionPoolManager.
+     */
+    protected void registerMonitor(String name, ObjectPool pool, ConnectionPoolManager manager)
+    {
+        try
         {
-            //Create the db config object if we are supposed to and it isn't already there
-            boolean createConfig = false;
-            if (store != null) createConfig = (store.getProperty(configPropertyName) == null);
-            else createConfig = (StaticProperties.getProperty(configPropertyName) == null);
-            if (createConfig)
-            {
-                DBConfig dbcfg = new DBConfig
-                (
-                    "jdbc:zitego:pool:"+name,
-                    (java.sql.Driver)Class.forName("com.zitego.sql.Driver").newInstance(),
-                    "", "", DBConfig.MYSQL
-                );
-                dbcfg.setLogSql( (manager.getLogger() != null) );
-                dbcfg.setLogger( manager.getLogger() );
-                if (store == null) StaticProperties.setProperty(configPropertyName, dbcfg);
-                else store.setProperty(configPropertyName, dbcfg);
-            }
+            ObjectPoolMonitor.register(name, pool);
+        }
+        catch (Exception e)
+        {
+            manager.debug("Could not register JMX monitor for pool " + name + ": " + e, 1);
         }
     }
 
@@ -360,40 +515,23 @@ public class ConnectionFactory
         ConnectionPoolManager manager = getConnectionPoolManager(configuration);
 
         manager.debug("Creating connection pool: " + name, 1);
-        ObjectPool pool = (ObjectPool)_pools.get(name);
+        ObjectPool pool = _pools.get(name);
         if ( pool == null || !(pool instanceof DBCPObjectPool) )
         {
             pool = new DBCPObjectPool(manager, config);
             _pools.put(name, pool);
+            registerMonitor(name, pool, manager);
         }
  
-        if (configPropertyName != null)
-        {
-            //Create the db config object if we are supposed to and it isn't already there
-            boolean createConfig = false;
-            if (store != null) createConfig = (store.getProperty(configPropertyName) == null);
-            else createConfig = (StaticProperties.getProperty(configPropertyName) == null);
-            if (createConfig)
-            {
-                DBConfig dbcfg = new DBConfig
-                (
-                    "jdbc:zitego:pool:"+name,
-                    (java.sql.Driver)Class.forName("com.zitego.sql.Driver").newInstance(),
-                    "", "", DBConfig.MYSQL
-                );
-                dbcfg.setLogSql( (manager.getLogger() != null) );
-                dbcfg.setLogger( manager.getLogger() );
-                if (store == null) StaticProperties.setProperty(configPropertyName, dbcfg);
-                else store.setProperty(configPropertyName, dbcfg);
-            }
-        }
+        storeDBConfig(name, manager, configPropertyName, store);
         manager.debug("Connection Pool " + name + " initialized", 1);
     }
 
     /**
      * Parses a comma delimited configuration string and creates a connection pool manager
      * using the information contained within. The configuration string must contain
-     * the following fields: driver, url, username, password. It can optionally include: testtable.<br>
+     * the following fields: driver, url, username, password. It can optionally include: testtable and
+     * statementcache, the number of prepared statements to cache for each pooled connection.<br>
      * <br>
      * For example:<br>
      * driver=com.mysql.jdbc.Driver, url=jdbc:mysql@localhost:3306:zitego,username=johnnyg,password=coolio,testtable=status
@@ -429,6 +567,8 @@ public class ConnectionFactory
                sqlLog = null;
         boolean debug = true;
         int debugLevel = -1;
+        int statementCache = -1;
+        int testTimeout = -1;
 
         while ( tokens.hasMoreTokens() )
         {
@@ -460,23 +600,26 @@ public class ConnectionFactory
                 else if ( "debuglevel".equals(paramname) ) debugLevel = Integer.parseInt( nv.nextToken() );
                 else if ( "testinterval".equals(paramname) ) testInterval = nv.nextToken();
                 else if ( "sql_log".equals(paramname) ) sqlLog = nv.nextToken();
+                else if ( "statementcache".equals(paramname) ) statementCache = Integer.parseInt( nv.nextToken().trim() );
+                else if ( "testtimeout".equals(paramname) ) testTimeout = Integer.parseInt( nv.nextToken().trim() );
             }
         }
 
+        ConnectionPoolManager mgr = null;
         if (base == null)
         {
             if (driver==null) throw new IllegalArgumentException("driver not provided in ConnectionFactory");
             if (url==null) throw new IllegalArgumentException("url not provided in ConnectionFactory");
             if (username==null) throw new IllegalArgumentException("username not provided in ConnectionFactory");
             if (password==null) throw new IllegalArgumentException("password not provided in ConnectionFactory");
-            return new ConnectionPoolManager
+            mgr = new ConnectionPoolManager
             (
                 driver, url, username, password, testTable, testInterval, debug, debugLevel, sqlLog
             );
         }
         else
         {
-            return new ConnectionPoolManager
+            mgr = new ConnectionPoolManager
             (
                 (driver == null ? base.getDriver() : driver),
                 (url == null ? base.getURL() : url),
@@ -488,6 +631,11 @@ public class ConnectionFactory
                 (debugLevel == -1 ? base.getDebugLevel() : debugLevel),
                 sqlLog
             );
+            if (statementCache == -1) statementCache = base.getStatementCacheSize();
+            if (testTimeout == -1) testTimeout = base.getTestTimeout();
         }
+        if (statementCache > 0) mgr.setStatementCacheSize(statementCache);
+        if (testTimeout >= 0) mgr.setTestTimeout(testTimeout);
+        return mgr;
     }
 }
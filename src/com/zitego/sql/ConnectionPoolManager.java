@@ -3,6 +3,7 @@ package com.zitego.sql;
 import com.zitego.logging.Logger;
 import com.zitego.pool.ObjectPoolManager;
 import java.io.IOException;
+import java.sql.SQLFeatureNotSupportedException;
 import java.util.*;
 
 /**
@@ -24,8 +25,12 @@ public class ConnectionPoolManager implements ObjectPoolManager, Cloneable
     private String _password;
     /** The table to use to test dbhandle's before returning them. */
     private String _testTable;
-    /** The maximum interval (in milliseconds) to test connections. */
+    /** The maximum interval (in milliseconds) to test connections. The pool enforces it. */
     private long _testInterval;
+    /** The number of seconds to wait for a connection to be validated. */
+    private int _testTimeout = 5;
+    /** Whether the driver supports Connection.isValid. Null until it is first tried. */
+    private volatile Boolean _isValidSupported;
     /** Whether to print debug messages. */
     private boolean _debug = false;
     /** The level of debugging we want. If debug is on and the level is > 0, then we debug all pool
@@ -33,8 +38,8 @@ public class ConnectionPoolManager implements ObjectPoolManager, Cloneable
     private int _debugLevel = -1;
     /** The sql log to use. */
     private Logger _logger;
-    /** Hashtable of last test times of connections. */
-    private Hashtable _lastTest;
+    /** The number of prepared statements to cache for each connection. 0 means none. */
+    private int _statementCacheSize = 0;
 
     /**
      * Creates a new jdbc connection pool.
@@ -87,7 +92,6 @@ public class ConnectionPoolManager implements ObjectPoolManager, Cloneable
         {
             _testInterval = 0;
         }
-        _lastTest = new Hashtable();
     }
 
     public Object createPoolObject() throws Exception
@@ -96,50 +100,64 @@ public class ConnectionPoolManager implements ObjectPoolManager, Cloneable
         return java.sql.DriverManager.getConnection(_url, _username, _password);
     }
 
+    /**
+     * Validates the connection if there is a test table. Connection.isValid is used when the driver
+     * supports it. Otherwise <code>SELECT 1 FROM <i>testtable</i> WHERE 1=2</code> is run. How often
+     * a connection is validated is up to the pool. See getTestInterval().
+     *
+     * @param Object The connection.
+     * @return boolean
+     */
     public boolean validate(Object o)
     {
         if (o instanceof java.sql.Connection)
         {
-            if (_testTable == null)
-            {
-                return true;
-            }
-            else
-            {
-                // Check the test interval.
-                long currentTime = System.currentTimeMillis();
-                long lastTest = -1;
-                Object timeStamp = _lastTest.get(o);
-                if (timeStamp != null) lastTest = ( (Long)timeStamp ).longValue();
+            if (_testTable == null) return true;
 
-                if ( lastTest == -1 || (currentTime - lastTest > _testInterval) )
+            java.sql.Connection conn = (java.sql.Connection)o;
+            try
+            {
+                if ( conn.isClosed() ) return false;
+                if (_isValidSupported != Boolean.FALSE)
                 {
-                    java.sql.Connection conn = (java.sql.Connection)o;
-                    lastTest = currentTime;
-                    _lastTest.put( o, new Long(lastTest) );
                     try
                     {
-                        if ( conn == null || conn.isClosed() ) return false;
-                        java.sql.Statement stmt = conn.createStatement();
-                        stmt.executeQuery("SELECT 1 FROM " + _testTable + " WHERE 1=2");
-                        stmt.close();
-                        return true;
+                        boolean valid = conn.isValid(_testTimeout);
+                        _isValidSupported = Boolean.TRUE;
+                        return valid;
                     }
-                    catch(java.sql.SQLException e)
+                    catch (SQLFeatureNotSupportedException fnse)
                     {
-                        e.printStackTrace();
-                        return false;
+                        _isValidSupported = Boolean.FALSE;
                     }
-                    catch(Throwable t)
+                    catch (AbstractMethodError ame)
                     {
-                        t.printStackTrace();
-                        return false;
+                        //Pre JDBC 4 driver
+                        _isValidSupported = Boolean.FALSE;
                     }
                 }
-                else
+
+                java.sql.Statement stmt = conn.createStatement();
+                try
+                {
+                    if (_testTimeout > 0) stmt.setQueryTimeout(_testTimeout);
+                    stmt.executeQuery("SELECT 1 FROM " + _testTable + " WHERE 1=2");
+                }
+                finally
                 {
-                    return true;
+                    stmt.close();
                 }
+                return true;
+            }
+            catch(java.sql.SQLException e)
+            {
+                e.printStackTrace();
+                return false;
+            }
+            catch(Throwable t)
+            {
+                t.printStackTrace();
+                return false;
             }
         }
 
@@ -152,7 +170,6 @@ public class ConnectionPoolManager implements ObjectPoolManager, Cloneable
         {
             debug("Expire Connection to " + _url + " for user " + _username, 1);
             if (o instanceof java.sql.Connection) ( (java.sql.Connection)o ).close();
-            _lastTest.remove(o);
         }
         catch (java.sql.SQLException ignore) { }
     }
@@ -218,7 +235,8 @@ public class ConnectionPoolManager implements ObjectPoolManager, Cloneable
     }
 
     /**
-     * Returns the test interval (in seconds) used by the manager to connect to the database.
+     * Returns the test interval (in seconds). Connections are not validated more often than this.
+     * ConnectionFactory passes it to the pool as the validation interval.
      *
      * @return String
      */
@@ -227,6 +245,26 @@ public class ConnectionPoolManager implements ObjectPoolManager, Cloneable
         return _testInterval / 1000l;
     }
 
+    /**
+     * Sets the number of seconds to wait for a connection to be validated. 0 means no limit.
+     *
+     * @param int The timeout.
+     */
+    public void setTestTimeout(int timeout)
+    {
+        _testTimeout = timeout;
+    }
+
+    /**
+     * Returns the number of seconds to wait for a connection to be validated.
+     *
+     * @return int
+     */
+    public int getTestTimeout()
+    {
+        return _testTimeout;
+    }
+
     /**
      * Returns whether or not debug is on. If this is true, then getLogger is guaranteed
      * to be not null and will at least log to the console. If the sql_log property was
@@ -259,6 +297,26 @@ public class ConnectionPoolManager implements ObjectPoolManager, Cloneable
         return _logger;
     }
 
+    /**
+     * Sets the number of prepared statements to cache for each connection. 0 turns caching off.
+     *
+     * @param int The cache size.
+     */
+    public void setStatementCacheSize(int size)
+    {
+        _statementCacheSize = size;
+    }
+
+    /**
+     * Returns the number of prepared statements cached for each connection.
+     *
+     * @return int
+     */
+    public int getStatementCacheSize()
+    {
+        return _statementCacheSize;
+    }
+
     /**
      * Returns the driver used by the manager to connect to the database.
      *
@@ -295,8 +353,10 @@ public class ConnectionPoolManager implements ObjectPoolManager, Cloneable
             .append(";password=").append("******")
             .append(";testTable=").append(_testTable)
             .append(";testInterval=").append(_testInterval)
+            .append(";testTimeout=").append(_testTimeout)
             .append(";debug=").append(_debug)
             .append(";debugLevel=").append(_debugLevel)
+            .append(";statementCacheSize=").append(_statementCacheSize)
             .append(";logger=").append(_logger);
         return out.toString();
     }
@@ -4,9 +4,15 @@ import com.zitego.pool.ObjectPool;
 import com.zitego.pool.ObjectPoolConfig;
 import com.zitego.pool.ObjectPoolManager;
 import com.zitego.pool.PoolInUseException;
+import com.zitego.pool.PoolTimeoutException;
 import com.zitego.pool.ObjectPoolState;
 import java.io.PrintWriter;
 import java.sql.SQLException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 import org.apache.tomcat.dbcp.dbcp.datasources.SharedPoolDataSource;
 import org.apache.tomcat.dbcp.dbcp.cpdsadapter.DriverAdapterCPDS;
 
@@ -20,7 +26,16 @@ import org.apache.tomcat.dbcp.dbcp.cpdsadapter.DriverAdapterCPDS;
  */
 public class DBCPObjectPool extends ObjectPool
 {
+    /** The milliseconds a pool that does not block waits for a connection if maxWait is not set. */
+    public static final long NON_BLOCKING_WAIT = 50l;
     private SharedPoolDataSource _dataSource;
+    /**
+     * Limits the connections borrowed at once to maxObjects. Callers wait for a permit rather than in
+     * SharedDataSource, which only knows one maxWait, so that each call can have its own timeout.
+     */
+    private Semaphore _permits;
+    /** The connections that are holding a permit. */
+    private Set<Object> _borrowed;
 
     /**
      * Creates a new DBCPObjectPool with a connection pool manager and an
@@ -62,15 +77,32 @@ public class DBCPObjectPool extends ObjectPool
         cpds.setUrl( mgr.getURL() );
         cpds.setUser( mgr.getUsername() );
         cpds.setPassword( mgr.getPassword() );
+        if (mgr.getStatementCacheSize() > 0)
+        {
+            cpds.setPoolPreparedStatements(true);
+            cpds.setMaxPreparedStatements( mgr.getStatementCacheSize() );
+        }
         _dataSource = new SharedPoolDataSource();
         _dataSource.setConnectionPoolDataSource(cpds);
         if (mgr.getTestTable() != null)
         {
             _dataSource.setValidationQuery("SELECT 1 FROM " + mgr.getTestTable() + " LIMIT 1");
-            _dataSource.setTestOnBorrow(true);
+            if (mgr.getTestInterval() > 0)
+            {
+                // Validate idle connections in the background every test interval instead of on each borrow.
+                _dataSource.setTestWhileIdle(true);
+                _dataSource.setTimeBetweenEvictionRunsMillis( (int)(mgr.getTestInterval() * 1000l) );
+                _dataSource.setNumTestsPerEvictionRun(_config.maxObjects);
+            }
+            else
+            {
+                _dataSource.setTestOnBorrow(true);
+            }
         }
         _dataSource.setMaxActive(_config.maxObjects);
-        _dataSource.setMaxWait(50);
+        _dataSource.setMaxWait( (int)getMaxWait() );
+        _permits = new Semaphore(_config.maxObjects, true);
+        _borrowed = Collections.newSetFromMap( new ConcurrentHashMap<Object, Boolean>() );
     }
 
     protected ObjectPoolItem createObject() throws Exception
@@ -90,49 +122,114 @@ public class DBCPObjectPool extends ObjectPool
         //SharedDataSource handles this
     }
 
-    synchronized public Object getObject() throws Exception
+    public Object getObject() throws Exception
+    {
+        return getObject(getMaxWait(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Returns the milliseconds getObject() waits for a connection. A pool that blocks waits maxWait, or
+     * forever (-1) if it is negative. A pool that does not block waits maxWait, or NON_BLOCKING_WAIT if it
+     * is negative, so that it fails quickly when it is maxed out.
+     *
+     * @return long
+     */
+    protected long getMaxWait()
+    {
+        if (_config.maxWait >= 0) return _config.maxWait;
+        return (_config.block ? -1l : NON_BLOCKING_WAIT);
+    }
+
+    /**
+     * Returns a connection from the SharedDataSource, waiting up to the given amount of time for one if
+     * maxObjects are already borrowed. A negative timeout waits forever.
+     *
+     * @param timeout The longest time to wait.
+     * @param unit The unit of the timeout.
+     * @return Object
+     * @throws PoolTimeoutException if no connection became available in time.
+     * @throws InterruptedException if the thread is interrupted while waiting.
+     * @throws SQLException if the SharedDataSource cannot get a connection.
+     */
+    public Object getObject(long timeout, TimeUnit unit) throws Exception
     {
         if (_config.debug && _config.debugLevel > 0)
         {
             _manager.debug("GetObject, InUse: " + _dataSource.getNumActive() + ", free = " + _dataSource.getNumIdle(), 1);
         }
-        return _dataSource.getConnection();
+        long start = System.nanoTime();
+        boolean waited = !_permits.tryAcquire();
+        if (waited)
+        {
+            if (timeout < 0)
+            {
+                _permits.acquire();
+            }
+            else if ( !_permits.tryAcquire(timeout, unit) )
+            {
+                _metrics.timedOut();
+                throw new PoolTimeoutException
+                (
+                    "Timed out after " + timeout + " " + unit.toString().toLowerCase() + " waiting for a connection"
+                );
+            }
+        }
+
+        Object conn = null;
+        try
+        {
+            conn = _dataSource.getConnection();
+            _borrowed.add(conn);
+        }
+        finally
+        {
+            if (conn == null) _permits.release();
+        }
+        _metrics.borrowed(System.nanoTime() - start, waited);
+        return conn;
     }
 
-    protected synchronized ObjectPoolItem replace(ObjectPoolItem object) throws Exception
+    public ObjectPoolItem getItem() throws Exception
     {
-        //SharedDataSource handles this
-        return object;
+        //SharedDataSource tracks its own connections, so the item only carries the connection
+        return new ObjectPoolItem( getObject() );
     }
 
-    protected synchronized boolean expand() throws Exception
+    public ObjectPoolItem getItem(long timeout, TimeUnit unit) throws Exception
     {
-        //SharedDataSource handles this
-        return true;
+        return new ObjectPoolItem( getObject(timeout, unit) );
     }
 
-    synchronized public void returnObject(Object obj)
+    public void returnObject(Object obj)
     {
         //SharedDataSource handles this
         java.sql.Connection conn = (java.sql.Connection)obj;
         if (conn != null)
         {
+            //Only give the permit back once, and after the connection is back in the SharedDataSource
+            boolean held = _borrowed.remove(conn);
             try { conn.close(); } catch (SQLException sqle) {}
+            if (held) _permits.release();
             conn = null;
         }
     }
 
-    protected synchronized void shrink()
+    public void returnItem(ObjectPoolItem item)
+    {
+        if (item != null) returnObject(item.item);
+    }
+
+    protected void shrink()
     {
         //SharedDataSource handles this
     }
 
-    synchronized public void flush()
+    public void flush()
     {
         //SharedDataSource handles this
     }
 
-    synchronized public void close() throws PoolInUseException
+    public void close() throws PoolInUseException
     {
         if (_dataSource != null)
         {
@@ -147,12 +244,12 @@ public class DBCPObjectPool extends ObjectPool
         }
     }
 
-    synchronized protected void inUseClean() throws Exception
+    protected void inUseClean() throws Exception
     {
         //SharedDataSource handles this
     }
 
-    synchronized protected void clean() throws Exception
+    protected void clean() throws Exception
     {
         //SharedDataSource handles this
     }
@@ -170,6 +267,12 @@ public class DBCPObjectPool extends ObjectPool
         out.flush();
     }
 
+    protected java.util.Map<ObjectPoolItem, Long> getInUseTimes()
+    {
+        //SharedDataSource handles this
+        return new java.util.HashMap<ObjectPoolItem, Long>();
+    }
+
     public ObjectPoolState getState()
     {
         ObjectPoolState state = new ObjectPoolState();
@@ -178,6 +281,7 @@ public class DBCPObjectPool extends ObjectPool
         state.objectsInUse = _dataSource.getNumActive();
         state.objectsExpired = 0;
         state.inUseHash = new java.util.Hashtable();
+        state.metrics = _metrics;
         return state;
     }
 }
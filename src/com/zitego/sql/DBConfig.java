@@ -31,6 +31,24 @@ public class DBConfig implements java.io.Serializable
     private boolean _logSql = false;
     /** Seconds to allow a query to run. */
     private int _callTimeLimit = 0;
+    /** The most rows to send to the database at once in a batch. */
+    private int _batchSize = 500;
+    /** Whether batched inserts can be rewritten as one multi-row insert. */
+    private boolean _rewriteBatchedInserts = false;
+    /** Whether Pipeline statements can be sent as one multi-statement. */
+    private boolean _multiStatements = false;
+    /** The number of rows to fetch at a time when streaming a query. */
+    private int _streamFetchSize = 1000;
+    /** The query result cache shared by handles with this config. Null means results are not cached. */
+    private transient QueryCache _queryCache;
+    /** The entity cache shared by entities with this config. Null means entities are not cached. */
+    private transient EntityCache _entityCache;
+    /** The stats for statements run by handles with this config. Null means none are kept. */
+    private transient QueryStats _queryStats;
+    /** The generator for DBHandle.getNextId. */
+    private transient IdGenerator _idGenerator;
+    /** Runs queries in the background for DBHandle.queryAsync and updateAsync. */
+    private transient QueryExecutor _queryExecutor;
 
     /**
      * Creates a new DBConfig object with the supplied attributes.
@@ -293,6 +311,190 @@ public class DBConfig implements java.io.Serializable
         return _callTimeLimit;
     }
 
+    /**
+     * Sets the most rows to send to the database at once when executing a batch.
+     *
+     * @param batchSize The batch size.
+     */
+    public void setBatchSize(int batchSize)
+    {
+        _batchSize = batchSize;
+    }
+
+    /**
+     * Returns the most rows to send to the database at once when executing a batch.
+     *
+     * @return int
+     */
+    public int getBatchSize()
+    {
+        return _batchSize;
+    }
+
+    /**
+     * Sets whether a batch of single row inserts can be sent as one multi-row insert for
+     * databases that support it.
+     *
+     * @param flag true or false.
+     */
+    public void setRewriteBatchedInserts(boolean flag)
+    {
+        _rewriteBatchedInserts = flag;
+    }
+
+    /**
+     * Returns whether a batch of single row inserts can be sent as one multi-row insert.
+     *
+     * @return boolean
+     */
+    public boolean rewriteBatchedInserts()
+    {
+        return _rewriteBatchedInserts;
+    }
+
+    /**
+     * Sets whether the statements in a Pipeline can be sent as one multi-statement for databases that
+     * support it. For MySQL, the url must also have allowMultiQueries=true.
+     *
+     * @param flag true or false.
+     */
+    public void setMultiStatements(boolean flag)
+    {
+        _multiStatements = flag;
+    }
+
+    /**
+     * Returns whether the statements in a Pipeline can be sent as one multi-statement.
+     *
+     * @return boolean
+     */
+    public boolean multiStatements()
+    {
+        return _multiStatements;
+    }
+
+    /**
+     * Sets the number of rows to fetch from the database at a time when streaming a query. Databases
+     * that can only stream one row at a time ignore this.
+     *
+     * @param size The fetch size.
+     */
+    public void setStreamFetchSize(int size)
+    {
+        _streamFetchSize = size;
+    }
+
+    /**
+     * Returns the number of rows to fetch from the database at a time when streaming a query.
+     *
+     * @return int
+     */
+    public int getStreamFetchSize()
+    {
+        return _streamFetchSize;
+    }
+
+    /**
+     * Sets the cache for DBHandle.cachedQuery results. Null turns caching off.
+     *
+     * @param cache The query cache.
+     */
+    public void setQueryCache(QueryCache cache)
+    {
+        _queryCache = cache;
+    }
+
+    /**
+     * Returns the cache for DBHandle.cachedQuery results, or null if results are not cached.
+     *
+     * @return QueryCache
+     */
+    public QueryCache getQueryCache()
+    {
+        return _queryCache;
+    }
+
+    /**
+     * Sets the cache that saved and loaded DatabaseEntities are kept in. Null turns caching off.
+     *
+     * @param cache The entity cache.
+     */
+    public void setEntityCache(EntityCache cache)
+    {
+        _entityCache = cache;
+    }
+
+    /**
+     * Returns the cache that saved and loaded DatabaseEntities are kept in, or null if they are not cached.
+     *
+     * @return EntityCache
+     */
+    public EntityCache getEntityCache()
+    {
+        return _entityCache;
+    }
+
+    /**
+     * Sets the stats that statements prepared by handles with this config are timed into. Null turns
+     * the stats and the slow query log off.
+     *
+     * @param stats The query stats.
+     */
+    public void setQueryStats(QueryStats stats)
+    {
+        _queryStats = stats;
+    }
+
+    /**
+     * Returns the stats that statements prepared by handles with this config are timed into, or null.
+     *
+     * @return QueryStats
+     */
+    public QueryStats getQueryStats()
+    {
+        return _queryStats;
+    }
+
+    /**
+     * Sets the generator that DBHandle.getNextId gets ids from. Null means getNextId fails.
+     *
+     * @param generator The id generator.
+     */
+    public void setIdGenerator(IdGenerator generator)
+    {
+        _idGenerator = generator;
+    }
+
+    /**
+     * Returns the generator that DBHandle.getNextId gets ids from, or null.
+     *
+     * @return IdGenerator
+     */
+    public IdGenerator getIdGenerator()
+    {
+        return _idGenerator;
+    }
+
+    /**
+     * Sets the executor that DBHandle.queryAsync and updateAsync run queries on. Null means they fail.
+     *
+     * @param executor The query executor.
+     */
+    public void setQueryExecutor(QueryExecutor executor)
+    {
+        _queryExecutor = executor;
+    }
+
+    /**
+     * Returns the executor that DBHandle.queryAsync and updateAsync run queries on, or null.
+     *
+     * @return QueryExecutor
+     */
+    public QueryExecutor getQueryExecutor()
+    {
+        return _queryExecutor;
+    }
+
     /**
      * Returns a String representation of this object.
      *
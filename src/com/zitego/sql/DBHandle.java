@@ -2,9 +2,15 @@ package com.zitego.sql;
 
 import java.sql.SQLException;
 import java.sql.DriverManager;
+import java.sql.ResultSet;
 import java.sql.Statement;
 import java.sql.DatabaseMetaData;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
 import java.util.Vector;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * This is an abstract class that defines how a database handle should operate. All specific database
@@ -23,9 +29,16 @@ public abstract class DBHandle implements java.io.Serializable
     private String _handleId;
     private Vector<Statement> _statements;
     private boolean _transaction = false;
+    /** Whether a nested call ended the transaction with a rollback. */
+    private boolean _rollbackOnly = false;
+    /** The transaction context whose connection this handle is using, if any. */
+    private transient TransactionContext _context;
+    private boolean _readOnly = false;
     private long _lastConnectionTime = 0;
     private long _lastExecuteTime = 0;
     private long _lastRetrieveTime = 0;
+    /** Guards connecting and disconnecting. A lock, not a monitor, so virtual threads are not pinned. */
+    private final ReentrantLock _lock = new ReentrantLock();
 
     /**
      * Constructs a new DBHandle with a configuration.
@@ -79,32 +92,67 @@ public abstract class DBHandle implements java.io.Serializable
     }
 
     /**
-     * Connects to the database.
+     * Connects to the database. If a TransactionContext is open for the database on this thread, the
+     * handle uses its connection and joins its transaction. A handle that is already connected only
+     * counts the call, and stays connected until disconnect() has been called as many times.
      *
      * @throws SQLException if a DB error occurs.
      */
     public void connect() throws SQLException
     {
+        connect(true);
+    }
+
+    /**
+     * Connects to the database, joining the TransactionContext open on this thread only if asked to.
+     * Handles that must work outside of the caller's transaction, such as the ones IdGenerator and
+     * QueryExecutor use, connect with false so that they always get a connection of their own.
+     *
+     * @param boolean Whether to use the connection of an open TransactionContext.
+     * @throws SQLException if a DB error occurs.
+     */
+    void connect(boolean joinContext) throws SQLException
+    {
+        _lock.lock();
         try
         {
             //Only connect if we are not connected already
-            if ( _conn == null || _conn.isClosed() )
+            TransactionContext context = null;
+            if ( joinContext && (_conn == null || _conn.isClosed()) ) context = TransactionContext.current(_config);
+            if ( context != null && context.getHandle() != this )
             {
-                _conn = DriverManager.getConnection( _config.getUrl(), _config.getUsername(), _config.getPassword() );
-                if (_transaction) _conn.setAutoCommit(false);
+                _conn = context.getConnection();
+                _context = context;
             }
-            _numConnects++;
-            if (_numConnects > 1)
+            else if ( _conn == null || _conn.isClosed() )
             {
-                try { throw new Exception("NUMCONNECTS > 1: "+_numConnects); }
-                catch (Exception e) { e.printStackTrace(); }
+                long start = System.currentTimeMillis();
+                if (_readOnly)
+                {
+                    Properties props = new Properties();
+                    if (_config.getUsername() != null) props.setProperty( "user", _config.getUsername() );
+                    if (_config.getPassword() != null) props.setProperty( "password", _config.getPassword() );
+                    props.setProperty(Driver.READ_ONLY, "true");
+                    _conn = DriverManager.getConnection( _config.getUrl(), props );
+                }
+                else
+                {
+                    _conn = DriverManager.getConnection( _config.getUrl(), _config.getUsername(), _config.getPassword() );
+                }
+                _lastConnectionTime = System.currentTimeMillis() - start;
+                if (_transaction) _conn.setAutoCommit(false);
             }
+            _numConnects++;
         }
         catch (Throwable t)
         {
             t.printStackTrace();
             throw new SQLException( t.toString() + " in connect()" );
         }
+        finally
+        {
+            _lock.unlock();
+        }
     }
 
     /**
@@ -121,6 +169,30 @@ public abstract class DBHandle implements java.io.Serializable
         connect();
     }
 
+    /**
+     * Sets whether the handle is only used for reads. When the config url names a routing pool (see
+     * ConnectionFactory.createRoutingPool), reads run on a replica while the handle is read only and not
+     * in a transaction. Transactions always run on the primary. This can be changed while connected.
+     *
+     * @param boolean Whether the handle is read only.
+     * @throws SQLException if the connection could not be moved.
+     */
+    public void setReadOnly(boolean flag) throws SQLException
+    {
+        _readOnly = flag;
+        if ( _context == null && _conn instanceof RoutingConnection && !_conn.isClosed() ) _conn.setReadOnly(flag);
+    }
+
+    /**
+     * Returns whether the handle is only used for reads.
+     *
+     * @return boolean
+     */
+    public boolean isReadOnly()
+    {
+        return _readOnly;
+    }
+
     /**
      * Checks to see whether the db handle is currently connected to the database or not.
      *
@@ -151,13 +223,23 @@ public abstract class DBHandle implements java.io.Serializable
      */
     public void disconnect() throws SQLException
     {
-        if (_conn != null)
+        _lock.lock();
+        try
         {
-            synchronized(_conn)
+            if (_conn != null)
             {
                 _numConnects--;
+                if (_context != null && _numConnects <= 0)
+                {
+                    //The connection belongs to the transaction context, so only let go of it
+                    if (_transaction) endTransaction(false);
+                    clean();
+                    _conn = null;
+                    _context = null;
+                    _numConnects = 0;
+                }
                 //Only close if we are open
-                if (_conn != null && !_conn.isClosed() && _numConnects <= 0)
+                else if (_conn != null && !_conn.isClosed() && _numConnects <= 0)
                 {
                     if (_transaction) endTransaction(false);
                     clean();
@@ -166,10 +248,14 @@ public abstract class DBHandle implements java.io.Serializable
                     _numConnects = 0;
                 }
             }
+            else
+            {
+                _numConnects = 0;
+            }
         }
-        else
+        finally
         {
-            _numConnects = 0;
+            _lock.unlock();
         }
     }
 
@@ -200,12 +286,35 @@ public abstract class DBHandle implements java.io.Serializable
     }
 
     /**
-     * Returns the next id available for a specific table, sequence, property, etc.
+     * Returns the next id available for a specific table, sequence, property, etc. The id comes from
+     * the IdGenerator of the config, which reserves ids in blocks. The handle does not need to be
+     * connected.
      *
      * @param String Then name of the next id to get.
-     * @throws SQLException when a DB error occurs.
+     * @throws SQLException when a DB error occurs or the config has no IdGenerator.
      */
-    public abstract long getNextId(String name) throws SQLException;
+    public long getNextId(String name) throws SQLException
+    {
+        IdGenerator ids = _config.getIdGenerator();
+        if (ids == null) throw new SQLException("getNextId() requires an IdGenerator to be set in the DBConfig.");
+        return ids.next(name, _config);
+    }
+
+    /**
+     * Moves the named sequence in the given sequence table forward by the given number of ids, creating
+     * it if it does not exist, and returns its new next id. The ids from the returned value minus count
+     * up to the returned value are reserved for the caller. This must be atomic. Used by IdGenerator.
+     *
+     * @param String The sequence table.
+     * @param String The sequence name.
+     * @param int The number of ids to reserve.
+     * @return long
+     * @throws SQLException when a DB error occurs or the database does not support sequences.
+     */
+    protected long reserveIds(String table, String name, int count) throws SQLException
+    {
+        throw new SQLException(getDBType() + " handles do not support reserving ids.");
+    }
 
     /**
      * Returns the last id inserted into a table.
@@ -227,7 +336,7 @@ public abstract class DBHandle implements java.io.Serializable
         if (_conn == null) throw new SQLException("Connection has not yet been obtained.");
 
         if ( _config.logSql() ) logSql(sql);
-        java.sql.PreparedStatement rtn = new PreparedStatement( _conn.prepareStatement(sql) );
+        java.sql.PreparedStatement rtn = new PreparedStatement( _conn.prepareStatement(sql), sql, this );
         if (_config.getCallTimeLimit() > 0) rtn.setQueryTimeout( _config.getCallTimeLimit() );
         _statements.add(rtn);
         return rtn;
@@ -250,7 +359,10 @@ public abstract class DBHandle implements java.io.Serializable
         if (_conn == null) throw new SQLException("Connection has not yet been obtained.");
 
         if ( _config.logSql() ) logSql(sql);
-        java.sql.PreparedStatement rtn = new PreparedStatement( _conn.prepareStatement(sql, resultSetType, resultSetConcurrency) );
+        java.sql.PreparedStatement rtn = new PreparedStatement
+        (
+            _conn.prepareStatement(sql, resultSetType, resultSetConcurrency), sql, this
+        );
         _statements.add(rtn);
         return rtn;
     }
@@ -267,6 +379,459 @@ public abstract class DBHandle implements java.io.Serializable
         return prepareStatement( sql.toString() );
     }
 
+    /**
+     * Prepares a SQL statement to be executed that returns the keys it generates when autoGeneratedKeys
+     * is Statement.RETURN_GENERATED_KEYS.
+     *
+     * @param String The SQL to prepare.
+     * @param int Statement.RETURN_GENERATED_KEYS or Statement.NO_GENERATED_KEYS.
+     * @return java.sql.PreparedStatement
+     * @throws SQLException when a DB error occurs.
+     */
+    public java.sql.PreparedStatement prepareStatement(String sql, int autoGeneratedKeys) throws SQLException
+    {
+        if (_conn == null) throw new SQLException("Connection has not yet been obtained.");
+
+        if ( _config.logSql() ) logSql(sql);
+        java.sql.PreparedStatement rtn = new PreparedStatement( _conn.prepareStatement(sql, autoGeneratedKeys), sql, this );
+        if (_config.getCallTimeLimit() > 0) rtn.setQueryTimeout( _config.getCallTimeLimit() );
+        _statements.add(rtn);
+        return rtn;
+    }
+
+    /**
+     * Prepares a forward only, read only statement whose results are fetched from the database as they
+     * are read rather than all at once.
+     *
+     * @param String The SQL to prepare.
+     * @return java.sql.PreparedStatement
+     * @throws SQLException when a DB error occurs.
+     */
+    public java.sql.PreparedStatement prepareStreamingStatement(String sql) throws SQLException
+    {
+        java.sql.PreparedStatement pst = prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+        if (_config.getCallTimeLimit() > 0) pst.setQueryTimeout( _config.getCallTimeLimit() );
+        setStreaming(pst);
+        return pst;
+    }
+
+    /**
+     * Sets the given statement to fetch its results as they are read. By default, this sets the fetch size
+     * to DBConfig.getStreamFetchSize().
+     *
+     * @param java.sql.PreparedStatement The statement.
+     * @throws SQLException when a DB error occurs.
+     */
+    protected void setStreaming(java.sql.PreparedStatement pst) throws SQLException
+    {
+        pst.setFetchSize( _config.getStreamFetchSize() );
+    }
+
+    /**
+     * Executes the given query and returns its rows as a stream that reads them from the database as they
+     * are needed, so that the whole result is never held in memory. The stream must be closed if it is not
+     * read to the end. Depending on the database, no other statements can be run on this handle until
+     * the stream is closed.
+     *
+     * @param PreparedStatementSupport The query.
+     * @return ResultStream
+     * @throws SQLException when a DB error occurs.
+     */
+    public ResultStream stream(PreparedStatementSupport query) throws SQLException
+    {
+        if (query.getSql() == null) throw new SQLException("SQL statement not set.");
+
+        java.sql.PreparedStatement pst = prepareStreamingStatement( query.getSql() );
+        try
+        {
+            query.bindValues(pst, 0);
+            return new ResultStream(pst);
+        }
+        catch (SQLException sqle)
+        {
+            pst.close();
+            throw sqle;
+        }
+    }
+
+    /**
+     * Streams the results of the given query to the given visitor one row at a time until there are no more
+     * rows or the visitor returns false. The statement is closed before this returns. Returns the number of
+     * rows visited.
+     *
+     * @param PreparedStatementSupport The query.
+     * @param RowVisitor The visitor.
+     * @return int
+     * @throws SQLException when a DB error occurs.
+     */
+    public int stream(PreparedStatementSupport query, RowVisitor visitor) throws SQLException
+    {
+        ResultStream rows = stream(query);
+        int count = 0;
+        try
+        {
+            while ( rows.nextRow() )
+            {
+                count++;
+                if ( !visitor.visit(rows.getResultSet()) ) break;
+            }
+        }
+        finally
+        {
+            rows.close();
+        }
+        return count;
+    }
+
+    /**
+     * Returns the results of the given query from the config's QueryCache, running the query and caching
+     * the results if they are not there. The tables are the ones the query reads from, so that saving an
+     * entity in one of them drops the results. If the config has no cache, or the handle is in a transaction,
+     * the query is always run and its results are not cached, since they may include uncommitted changes.
+     *
+     * @param PreparedStatementSupport The query.
+     * @param String[] The tables the query reads from.
+     * @return CachedResult
+     * @throws SQLException when a DB error occurs.
+     */
+    public CachedResult cachedQuery(PreparedStatementSupport query, String... tables) throws SQLException
+    {
+        if (_conn == null) throw new SQLException("Connection has not yet been obtained.");
+        if (query.getSql() == null) throw new SQLException("SQL statement not set.");
+
+        QueryCache cache = _config.getQueryCache();
+        if ( cache != null && !_conn.getAutoCommit() ) cache = null;
+        QueryCache.Key key = null;
+        long sequence = 0;
+        if (cache != null)
+        {
+            key = new QueryCache.Key(query);
+            CachedResult ret = cache.get(key);
+            if (ret != null) return ret;
+            sequence = cache.getSequence();
+        }
+
+        CachedResult ret = null;
+        java.sql.PreparedStatement pst = query.bindValues(this);
+        try
+        {
+            ret = new CachedResult( pst.executeQuery() );
+        }
+        finally
+        {
+            pst.close();
+        }
+        if (cache != null) cache.put(key, ret, tables, sequence);
+        return ret;
+    }
+
+    /**
+     * Runs the given query in the background on the config's QueryExecutor, with a connection of its own,
+     * and returns its results as cachedQuery would. The query runs read only if this handle is. Wait for
+     * the results with QueryExecutor.get() or getAll(). This handle does not need to be connected.
+     *
+     * @param PreparedStatementSupport The query.
+     * @param String[] The tables the query reads from.
+     * @return Future
+     * @throws SQLException if the config has no QueryExecutor.
+     */
+    public Future<CachedResult> queryAsync(PreparedStatementSupport query, String... tables) throws SQLException
+    {
+        return getQueryExecutor().query(_config, _readOnly, query, tables);
+    }
+
+    /**
+     * Runs the given update in the background on the config's QueryExecutor, with a connection of its own,
+     * and returns the number of rows it changed. The update is committed on its own, outside of any
+     * transaction on this handle.
+     *
+     * @param PreparedStatementSupport The update.
+     * @return Future
+     * @throws SQLException if the config has no QueryExecutor.
+     */
+    public Future<Integer> updateAsync(PreparedStatementSupport update) throws SQLException
+    {
+        return getQueryExecutor().update(_config, update);
+    }
+
+    private QueryExecutor getQueryExecutor() throws SQLException
+    {
+        QueryExecutor executor = _config.getQueryExecutor();
+        if (executor == null) throw new SQLException("queryAsync() and updateAsync() require a QueryExecutor to be set in the DBConfig.");
+        return executor;
+    }
+
+    /**
+     * Executes the given rows, which must all have the same sql, in batches of up to DBConfig.getBatchSize()
+     * rows at a time. If the config allows it and the database supports it, each batch of inserts is sent
+     * as one multi-row insert. The rows are not run in a transaction unless one has been started.
+     * Returns the number of rows affected.
+     *
+     * @param List The rows.
+     * @return int
+     * @throws SQLException if a DB error occurs.
+     */
+    public int executeBatch(List<PreparedStatementSupport> rows) throws SQLException
+    {
+        return executeBatch(rows, null);
+    }
+
+    /**
+     * Inserts the given rows the same way as executeBatch(List) and returns the keys generated for them
+     * in the order they were inserted.
+     *
+     * @param List The rows.
+     * @return long[]
+     * @throws SQLException if a DB error occurs.
+     */
+    public long[] insertBatch(List<PreparedStatementSupport> rows) throws SQLException
+    {
+        List<Long> keys = new ArrayList<Long>( rows.size() );
+        executeBatch(rows, keys);
+        long[] ret = new long[keys.size()];
+        for (int i=0; i<ret.length; i++)
+        {
+            ret[i] = keys.get(i).longValue();
+        }
+        return ret;
+    }
+
+    /**
+     * Executes the given rows in batches and adds the generated keys to the given list if it is not null.
+     * Returns the number of rows affected.
+     *
+     * @param List The rows.
+     * @param List The list to add generated keys to, or null for none.
+     * @return int
+     * @throws SQLException if a DB error occurs.
+     */
+    protected int executeBatch(List<PreparedStatementSupport> rows, List<Long> keys) throws SQLException
+    {
+        if (rows == null || rows.size() == 0) return 0;
+        String sql = rows.get(0).getSql();
+        if (sql == null) throw new SQLException("SQL statement not set.");
+        int params = rows.get(0).getValueCount();
+        int size = getBatchSize(params);
+        int autoKeys = (keys != null ? Statement.RETURN_GENERATED_KEYS : Statement.NO_GENERATED_KEYS);
+
+        int count = 0;
+        java.sql.PreparedStatement batch = null;
+        try
+        {
+            for (int start=0; start<rows.size(); start+=size)
+            {
+                int end = Math.min( start + size, rows.size() );
+                for (int i=start; i<end; i++)
+                {
+                    PreparedStatementSupport row = rows.get(i);
+                    if ( !sql.equals(row.getSql()) || row.getValueCount() != params )
+                    {
+                        throw new SQLException("Row " + i + " does not match the sql of the batch: " + row.getSql());
+                    }
+                }
+
+                String multi = (end - start > 1 ? rewriteBatch(sql, end - start) : null);
+                if (multi != null)
+                {
+                    java.sql.PreparedStatement pst = prepareStatement(multi, autoKeys);
+                    try
+                    {
+                        for (int i=start; i<end; i++)
+                        {
+                            rows.get(i).bindValues( pst, (i - start) * params );
+                        }
+                        count += pst.executeUpdate();
+                        if (keys != null) addGeneratedKeys(pst, keys);
+                    }
+                    finally
+                    {
+                        pst.close();
+                    }
+                }
+                else
+                {
+                    if (batch == null) batch = prepareStatement(sql, autoKeys);
+                    for (int i=start; i<end; i++)
+                    {
+                        rows.get(i).bindValues(batch, 0);
+                        batch.addBatch();
+                    }
+                    int[] counts = batch.executeBatch();
+                    for (int i=0; i<counts.length; i++)
+                    {
+                        if (counts[i] == Statement.SUCCESS_NO_INFO) count++;
+                        else if (counts[i] > 0) count += counts[i];
+                    }
+                    if (keys != null) addGeneratedKeys(batch, keys);
+                }
+            }
+        }
+        finally
+        {
+            if (batch != null) batch.close();
+        }
+        return count;
+    }
+
+    /**
+     * Returns the most rows to send to the database at once for a statement with the given number of
+     * parameters.
+     *
+     * @param int The number of parameters in one row.
+     * @return int
+     */
+    protected int getBatchSize(int params)
+    {
+        return Math.max( 1, _config.getBatchSize() );
+    }
+
+    /**
+     * Returns the given single row insert rewritten to insert the given number of rows at once, or null if
+     * it cannot be. The rows' parameters are bound one row after another. By default, this returns null.
+     *
+     * @param String The sql for one row.
+     * @param int The number of rows.
+     * @return String
+     */
+    protected String rewriteBatch(String sql, int rows)
+    {
+        return null;
+    }
+
+    /**
+     * Returns a new, empty pipeline that runs its statements on this handle.
+     *
+     * @return Pipeline
+     */
+    public Pipeline pipeline()
+    {
+        return new Pipeline(this);
+    }
+
+    /**
+     * Runs the given statements in order, up to getBatchSize(0) at a time as one multi-statement if
+     * joinStatements allows it and otherwise one at a time, and returns a result for each. Stops at the
+     * first statement that fails.
+     *
+     * @param List The statements.
+     * @return List
+     * @throws SQLException if a DB error occurs.
+     */
+    protected List<Pipeline.Result> executePipeline(List<PreparedStatementSupport> statements) throws SQLException
+    {
+        List<Pipeline.Result> ret = new ArrayList<Pipeline.Result>( statements.size() );
+        for (int i=0; i<statements.size(); i++)
+        {
+            ret.add( new Pipeline.Result(statements.get(i)) );
+        }
+
+        int size = getBatchSize(0);
+        for (int start=0; start<statements.size(); start+=size)
+        {
+            int end = Math.min( start + size, statements.size() );
+            List<String> sql = new ArrayList<String>(end - start);
+            for (int i=start; i<end; i++)
+            {
+                sql.add( statements.get(i).getSql() );
+            }
+
+            String multi = (end - start > 1 ? joinStatements(sql) : null);
+            if ( !(multi != null ? executeJoined(multi, statements, ret, start, end) : executeEach(statements, ret, start, end)) )
+            {
+                break;
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Returns the given statements joined into one multi-statement, or null if they cannot be. The
+     * statements' parameters are bound one statement after another. By default, this returns null.
+     *
+     * @param List The sql of each statement.
+     * @return String
+     */
+    protected String joinStatements(List<String> sql)
+    {
+        return null;
+    }
+
+    private boolean executeJoined(String multi, List<PreparedStatementSupport> statements, List<Pipeline.Result> results,
+                                  int start, int end) throws SQLException
+    {
+        java.sql.PreparedStatement pst = prepareStatement(multi);
+        int i = start;
+        try
+        {
+            int offset = 0;
+            for (; i<end; i++)
+            {
+                statements.get(i).bindValues(pst, offset);
+                offset += statements.get(i).getValueCount();
+            }
+
+            //Each statement has its own result, and an error surfaces when its result is reached
+            i = start;
+            boolean isResultSet = pst.execute();
+            while (true)
+            {
+                results.get(i).setUpdateCount( isResultSet ? -1 : pst.getUpdateCount() );
+                if (++i == end) return true;
+                isResultSet = pst.getMoreResults();
+            }
+        }
+        catch (SQLException sqle)
+        {
+            results.get(i).setError(sqle);
+            return false;
+        }
+        finally
+        {
+            pst.close();
+        }
+    }
+
+    private boolean executeEach(List<PreparedStatementSupport> statements, List<Pipeline.Result> results, int start, int end)
+    throws SQLException
+    {
+        for (int i=start; i<end; i++)
+        {
+            java.sql.PreparedStatement pst = null;
+            try
+            {
+                pst = statements.get(i).bindValues(this);
+                results.get(i).setUpdateCount( pst.execute() ? -1 : pst.getUpdateCount() );
+            }
+            catch (SQLException sqle)
+            {
+                results.get(i).setError(sqle);
+                return false;
+            }
+            finally
+            {
+                if (pst != null) pst.close();
+            }
+        }
+        return true;
+    }
+
+    private void addGeneratedKeys(java.sql.PreparedStatement pst, List<Long> keys) throws SQLException
+    {
+        ResultSet rs = pst.getGeneratedKeys();
+        if (rs == null) return;
+        try
+        {
+            while ( rs.next() )
+            {
+                keys.add( rs.getLong(1) );
+            }
+        }
+        finally
+        {
+            rs.close();
+        }
+    }
+
     /**
      * Logs a sql statement.
      *
@@ -336,13 +901,14 @@ public abstract class DBHandle implements java.io.Serializable
     }
 
     /**
-     * Mark the beginning of a transaction. This turns automatic commit off in the JDBC connection.
+     * Mark the beginning of a transaction. This turns automatic commit off in the JDBC connection. If the
+     * handle is using the connection of a TransactionContext, it is already in the context's transaction.
      *
      * @throws SQLException if a db error occurs turning off autocommit.
      */
     public void beginTransaction() throws SQLException
     {
-        if ( _conn != null && !_conn.isClosed() ) _conn.setAutoCommit(false);
+        if ( _context == null && _conn != null && !_conn.isClosed() ) _conn.setAutoCommit(false);
         _transaction = true;
     }
 
@@ -350,26 +916,44 @@ public abstract class DBHandle implements java.io.Serializable
      * Mark the end of a transaction. A transaction can be ended in 2 ways, by commiting the changes to the
      * database or by canceling the changed (rolling back). The commit parameter control which way the caller
      * would like.
+     * <p>
+     * When the handle has been connected more than once, only the outermost call ends the transaction. A
+     * rollback from a nested call makes the outermost one roll back too. If the handle is using the
+     * connection of a TransactionContext, the context commits, and a rollback marks the context to be
+     * rolled back.
      *
      * @param boolean If true, changes are commited to the database, otherwise changes are rolled back.
-     * @throws SQLException if a db error occurs.
+     * @throws SQLException if a db error occurs, or changes were rolled back instead of committed because
+     *                      a nested call rolled back.
      */
     public void endTransaction(boolean commit) throws SQLException
     {
         if (!_transaction) return;
 
+        if (!commit) _rollbackOnly = true;
         if (_numConnects > 1) return;
 
+        if (_context != null)
+        {
+            if (_rollbackOnly) _context.setRollbackOnly();
+            _transaction = false;
+            _rollbackOnly = false;
+            return;
+        }
+
+        boolean rolledBack = (commit && _rollbackOnly);
+        _transaction = false;
+        _rollbackOnly = false;
         if (_conn != null)
         {
             if ( !_conn.isClosed() )
             {
-                if (commit) _conn.commit();
+                if (commit && !rolledBack) _conn.commit();
                 else _conn.rollback();
                 _conn.setAutoCommit(true);
             }
         }
-        _transaction = false;
+        if (rolledBack) throw new SQLException("The transaction was rolled back because a nested call rolled back.");
     }
 
     /**
@@ -402,6 +986,27 @@ public abstract class DBHandle implements java.io.Serializable
         return _lastRetrieveTime;
     }
 
+    /**
+     * Sets the most recent execution time. Called by the statements this handle prepares.
+     *
+     * @param long The time in nanoseconds.
+     */
+    void executed(long nanos)
+    {
+        _lastExecuteTime = nanos / 1000000l;
+    }
+
+    /**
+     * Sets the most recent retrieval time. Called by the statements this handle prepares when a result
+     * set is closed, if the config has QueryStats.
+     *
+     * @param long The time in nanoseconds.
+     */
+    void retrieved(long nanos)
+    {
+        _lastRetrieveTime = nanos / 1000000l;
+    }
+
     /**
      * Returns the most recent timing info as a formatted string.
      *
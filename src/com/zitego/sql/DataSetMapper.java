@@ -0,0 +1,323 @@
+package com.zitego.sql;
+
+import com.zitego.report.DataSet;
+import com.zitego.report.DataSetCollection;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+
+/**
+ * Copies the rows of a ResultSet into DataSets keyed by column label. The ResultSetMetaData is read once,
+ * when the first row is mapped, to pick a reader for each column by its sql type, so each value is read
+ * by column index with the primitive getter for its type instead of by name with getObject. SQL nulls
+ * are left out of the DataSet, so get() returns null and getInt() and the like return 0 for them.
+ * <p>
+ * For example:<br>
+ * <pre>
+ *  DataSetCollection rows = new DataSetMapper().mapAll( pst.executeQuery() );
+ * </pre>
+ * or, to build a report over a large query a chunk at a time:
+ * <pre>
+ *  new DataSetMapper().stream
+ *  (
+ *      db, query, 1000,
+ *      new DataSetMapper.ChunkVisitor()
+ *      {
+ *          public boolean visit(DataSetCollection chunk) { ...; return true; }
+ *      }
+ *  );
+ * </pre>
+ * A mapper can be reused for any number of result sets that have the same columns.
+ *
+ * @author John Glorioso
+ * @version $Id$
+ */
+public class DataSetMapper
+{
+    /** The readers for each column. Null until the first row is mapped. */
+    protected Column[] _columns;
+
+    /**
+     * Creates a mapper that reads the columns from the first result set it maps.
+     */
+    public DataSetMapper() { }
+
+    /**
+     * Creates a mapper for result sets with the given columns.
+     *
+     * @param ResultSetMetaData The columns.
+     * @throws SQLException if the meta data cannot be read.
+     */
+    public DataSetMapper(ResultSetMetaData md) throws SQLException
+    {
+        _columns = getColumns(md);
+    }
+
+    /**
+     * Returns the row the given result set is positioned on as a DataSet.
+     *
+     * @param ResultSet The result set.
+     * @return DataSet
+     * @throws SQLException if the row cannot be read.
+     */
+    @SuppressWarnings("unchecked") //DataSet is a raw HashMap
+    public DataSet map(ResultSet rs) throws SQLException
+    {
+        Column[] columns = _columns;
+        if (columns == null) columns = _columns = getColumns( rs.getMetaData() );
+
+        DataSet ret = new DataSet();
+        for (int i=0; i<columns.length; i++)
+        {
+            Object value = columns[i].read(rs);
+            if (value != null) ret.put(columns[i].key, value);
+        }
+        return ret;
+    }
+
+    /**
+     * Reads the rest of the rows in the given result set into a new DataSetCollection.
+     *
+     * @param ResultSet The result set.
+     * @return DataSetCollection
+     * @throws SQLException if a row cannot be read.
+     */
+    public DataSetCollection mapAll(ResultSet rs) throws SQLException
+    {
+        DataSetCollection ret = new DataSetCollection();
+        while ( rs.next() )
+        {
+            ret.add( map(rs) );
+        }
+        return ret;
+    }
+
+    /**
+     * Streams the results of the given query and hands them to the given visitor in DataSetCollections
+     * of up to the given number of rows until there are no more rows or the visitor returns false. Only
+     * one chunk is held in memory at a time. Returns the number of rows read.
+     *
+     * @param DBHandle The connected database handle.
+     * @param PreparedStatementSupport The query.
+     * @param int The most rows in a chunk.
+     * @param ChunkVisitor The visitor.
+     * @return int
+     * @throws SQLException if a DB error occurs.
+     */
+    public int stream(DBHandle db, PreparedStatementSupport query, final int chunkSize, final ChunkVisitor visitor)
+    throws SQLException
+    {
+        final DataSetCollection[] chunk = new DataSetCollection[] { new DataSetCollection() };
+        final boolean[] stopped = new boolean[1];
+        int count = db.stream
+        (
+            query,
+            new RowVisitor()
+            {
+                public boolean visit(ResultSet row) throws SQLException
+                {
+                    chunk[0].add( map(row) );
+                    if (chunk[0].size() < chunkSize) return true;
+
+                    DataSetCollection full = chunk[0];
+                    chunk[0] = new DataSetCollection();
+                    stopped[0] = !visitor.visit(full);
+                    return !stopped[0];
+                }
+            }
+        );
+        if ( !stopped[0] && chunk[0].size() > 0 ) visitor.visit(chunk[0]);
+        return count;
+    }
+
+    /**
+     * Returns the readers for the given columns.
+     *
+     * @param ResultSetMetaData The columns.
+     * @return Column[]
+     * @throws SQLException if the meta data cannot be read.
+     */
+    protected Column[] getColumns(ResultSetMetaData md) throws SQLException
+    {
+        Column[] ret = new Column[md.getColumnCount()];
+        for (int i=0; i<ret.length; i++)
+        {
+            int index = i + 1;
+            String key = md.getColumnLabel(index);
+            if (key == null || key.length() == 0) key = md.getColumnName(index);
+            ret[i] = getColumn( key, index, md.getColumnType(index), md.isSigned(index) );
+        }
+        return ret;
+    }
+
+    /**
+     * Returns the reader for a column of the given sql type. Unsigned integers are read as the next
+     * larger type so they do not overflow.
+     *
+     * @param String The key to put the value under.
+     * @param int The column index.
+     * @param int The sql type from java.sql.Types.
+     * @param boolean Whether the column is signed.
+     * @return Column
+     */
+    protected Column getColumn(String key, int index, int type, boolean signed)
+    {
+        switch (type)
+        {
+            case Types.TINYINT:
+            case Types.SMALLINT:
+                return new IntColumn(key, index);
+            case Types.INTEGER:
+                return (signed ? new IntColumn(key, index) : new LongColumn(key, index));
+            case Types.BIGINT:
+                return (signed ? new LongColumn(key, index) : new ObjectColumn(key, index));
+            case Types.REAL:
+            case Types.FLOAT:
+            case Types.DOUBLE:
+                return new DoubleColumn(key, index);
+            case Types.BIT:
+            case Types.BOOLEAN:
+                return new BooleanColumn(key, index);
+            case Types.CHAR:
+            case Types.VARCHAR:
+            case Types.LONGVARCHAR:
+            case Types.NCHAR:
+            case Types.NVARCHAR:
+            case Types.LONGNVARCHAR:
+            case Types.CLOB:
+                return new StringColumn(key, index);
+            case Types.DATE:
+                return new DateColumn(key, index);
+            case Types.TIMESTAMP:
+                return new TimestampColumn(key, index);
+            default:
+                return new ObjectColumn(key, index);
+        }
+    }
+
+    /**
+     * Receives the rows of a streamed query a chunk at a time.
+     */
+    public static interface ChunkVisitor
+    {
+        /**
+         * Handles a chunk of rows.
+         *
+         * @param DataSetCollection The rows.
+         * @return boolean Whether to keep reading rows.
+         * @throws SQLException if an error occurs.
+         */
+        public boolean visit(DataSetCollection chunk) throws SQLException;
+    }
+
+    /**
+     * Reads the value of one column.
+     */
+    protected static abstract class Column
+    {
+        /** The key to put the value under. */
+        public final String key;
+        /** The column index. */
+        public final int index;
+
+        protected Column(String key, int index)
+        {
+            this.key = key;
+            this.index = index;
+        }
+
+        /**
+         * Returns the value of the column in the current row, or null if it is null.
+         *
+         * @param ResultSet The result set.
+         * @return Object
+         * @throws SQLException if the value cannot be read.
+         */
+        public abstract Object read(ResultSet rs) throws SQLException;
+    }
+
+    static class IntColumn extends Column
+    {
+        IntColumn(String key, int index) { super(key, index); }
+
+        public Object read(ResultSet rs) throws SQLException
+        {
+            int value = rs.getInt(index);
+            return ( value == 0 && rs.wasNull() ? null : Integer.valueOf(value) );
+        }
+    }
+
+    static class LongColumn extends Column
+    {
+        LongColumn(String key, int index) { super(key, index); }
+
+        public Object read(ResultSet rs) throws SQLException
+        {
+            long value = rs.getLong(index);
+            return ( value == 0 && rs.wasNull() ? null : Long.valueOf(value) );
+        }
+    }
+
+    static class DoubleColumn extends Column
+    {
+        DoubleColumn(String key, int index) { super(key, index); }
+
+        public Object read(ResultSet rs) throws SQLException
+        {
+            double value = rs.getDouble(index);
+            return ( value == 0d && rs.wasNull() ? null : Double.valueOf(value) );
+        }
+    }
+
+    static class BooleanColumn extends Column
+    {
+        BooleanColumn(String key, int index) { super(key, index); }
+
+        public Object read(ResultSet rs) throws SQLException
+        {
+            boolean value = rs.getBoolean(index);
+            return ( !value && rs.wasNull() ? null : Boolean.valueOf(value) );
+        }
+    }
+
+    static class StringColumn extends Column
+    {
+        StringColumn(String key, int index) { super(key, index); }
+
+        public Object read(ResultSet rs) throws SQLException
+        {
+            return rs.getString(index);
+        }
+    }
+
+    static class DateColumn extends Column
+    {
+        DateColumn(String key, int index) { super(key, index); }
+
+        public Object read(ResultSet rs) throws SQLException
+        {
+            return rs.getDate(index);
+        }
+    }
+
+    static class TimestampColumn extends Column
+    {
+        TimestampColumn(String key, int index) { super(key, index); }
+
+        public Object read(ResultSet rs) throws SQLException
+        {
+            return rs.getTimestamp(index);
+        }
+    }
+
+    static class ObjectColumn extends Column
+    {
+        ObjectColumn(String key, int index) { super(key, index); }
+
+        public Object read(ResultSet rs) throws SQLException
+        {
+            return rs.getObject(index);
+        }
+    }
+}
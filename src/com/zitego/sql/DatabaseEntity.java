@@ -243,7 +243,11 @@ public abstract class DatabaseEntity extends InformationEntity implements Databa
 
 	/**
 	 * Saves the Subscriber's information. If they have an id, it will update. If
-	 * not then it will insert.
+	 * not then it will insert. Afterwards, results read from the tables returned by
+	 * getTableNames() are dropped from the config's QueryCache, once the thread's
+	 * TransactionContext commits if one is open, and the entity is put in the config's
+	 * EntityCache. Inside an open TransactionContext the cached copy is dropped now and
+	 * the entity is only put once the transaction commits.
 	 *
 	 * @throws SQLException
 	 */
@@ -257,6 +261,47 @@ public abstract class DatabaseEntity extends InformationEntity implements Databa
 		{
 			insert();
 		}
+		invalidateCache();
+		EntityCache entities = (_config != null ? _config.getEntityCache() : null);
+		if (entities == null) return;
+		TransactionContext tx = TransactionContext.current(_config);
+		if (tx != null)
+		{
+			//Other threads must not read the change before it commits
+			entities.remove( getClass(), getId() );
+			tx.cacheOnCommit(this);
+		}
+		else
+		{
+			entities.put(this, false);
+		}
+	}
+
+	/**
+	 * Returns the names of the tables that insert() and update() write to. The default is none.
+	 * Entities whose tables are read with DBHandle.cachedQuery should override this.
+	 *
+	 * @return String[]
+	 */
+	protected String[] getTableNames()
+	{
+		return null;
+	}
+
+	/**
+	 * Drops the cached query results read from the tables returned by getTableNames(). If a
+	 * TransactionContext is open for the config on this thread, they are dropped when it
+	 * commits instead. This is called by save() and should be called by anything else that
+	 * writes to them.
+	 */
+	protected void invalidateCache()
+	{
+		QueryCache cache = (_config != null ? _config.getQueryCache() : null);
+		if (cache == null) return;
+
+		TransactionContext tx = TransactionContext.current(_config);
+		if (tx != null) tx.invalidateOnCommit( getTableNames() );
+		else cache.invalidate( getTableNames() );
 	}
 
 	/**
@@ -13,6 +13,8 @@ import java.util.logging.Logger;
  */
 public class Driver implements java.sql.Driver, java.io.Serializable
 {
+    /** The connection property that asks a routing pool for a read only connection when set to true. */
+    public static final String READ_ONLY = "zitego.readonly";
     /** A static copy of itself. */
     private static Driver _default;
 
@@ -52,7 +54,8 @@ public class Driver implements java.sql.Driver, java.io.Serializable
     }
 
     /**
-     * Returns a connection for the supplied url using information in the supplied properties.
+     * Returns a connection for the supplied url using information in the supplied properties. If the
+     * READ_ONLY property is true and the url names a routing pool, the connection starts on a replica.
      *
      * @param properties
      */
@@ -66,7 +69,8 @@ public class Driver implements java.sql.Driver, java.io.Serializable
         String poolName = url.substring(url.lastIndexOf(":") + 1);
         try
         {
-            return ConnectionFactory.getInstance().getConnection(poolName);
+            boolean readOnly = ( properties != null && "true".equals(properties.getProperty(READ_ONLY)) );
+            return ConnectionFactory.getInstance().getConnection(poolName, readOnly);
         }
         catch (Exception e)
         {
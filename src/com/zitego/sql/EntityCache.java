@@ -0,0 +1,384 @@
+package com.zitego.sql;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.sql.SQLException;
+import java.util.Date;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded identity map of loaded DatabaseEntities keyed by class and id, with a second index by name
+ * for UniqueNameDatabaseEntities. The same instance is handed to every caller, so cached entities
+ * should be treated as read only unless they are about to be saved. Lookups and puts do not lock.
+ * When the cache is full, entities are dropped in the order they were added, except that ones read
+ * since they were last passed over get a second chance (the clock algorithm).
+ * <p>
+ * The cache is set with DBConfig.setEntityCache() and loads through it with load() and loadByName().
+ * DatabaseEntity.save() puts the saved entity in the cache of its config. For example:<br>
+ * <pre>
+ *  Account account = config.getEntityCache().load(Account.class, id, config);
+ * </pre>
+ * When an entity is put and the cached one has a later getLastUpdated(), the cached one is kept.
+ * get(Class, long, Date) drops a cached entity that is older than a known last updated date.
+ *
+ * @author John Glorioso
+ * @version $Id$
+ */
+public class EntityCache
+{
+    /** The most entities to keep. */
+    protected int _maxSize;
+    /** The cached entities by class and id. */
+    protected ConcurrentHashMap<Key, Holder> _entities;
+    /** The id keys by class and name. */
+    protected ConcurrentHashMap<Key, Key> _names;
+    /** The cached entities in the order they were added, for eviction. */
+    protected ConcurrentLinkedQueue<Holder> _clock;
+    private final AtomicInteger _clockSize = new AtomicInteger();
+    private final AtomicLong _hits = new AtomicLong();
+    private final AtomicLong _misses = new AtomicLong();
+
+    /**
+     * Creates an entity cache that holds up to the given number of entities.
+     *
+     * @param int The most entities to keep.
+     */
+    public EntityCache(int maxSize)
+    {
+        _maxSize = maxSize;
+        _entities = new ConcurrentHashMap<Key, Holder>();
+        _names = new ConcurrentHashMap<Key, Key>();
+        _clock = new ConcurrentLinkedQueue<Holder>();
+    }
+
+    /**
+     * Returns the cached entity of the given class with the given id, or null if there is not one.
+     *
+     * @param Class The entity class.
+     * @param long The id.
+     * @return DatabaseEntity
+     */
+    public <T extends DatabaseEntity> T get(Class<T> type, long id)
+    {
+        return type.cast( found(_entities.get( new Key(type, Long.valueOf(id)) )) );
+    }
+
+    /**
+     * Returns the cached entity of the given class with the given id, or null if there is not one or the
+     * cached one was last updated before the given date. Out of date entities are dropped.
+     *
+     * @param Class The entity class.
+     * @param long The id.
+     * @param Date When the entity was last updated in the database. Null skips the check.
+     * @return DatabaseEntity
+     */
+    public <T extends DatabaseEntity> T get(Class<T> type, long id, Date lastUpdated)
+    {
+        Key key = new Key( type, Long.valueOf(id) );
+        Holder holder = _entities.get(key);
+        if (holder != null && lastUpdated != null)
+        {
+            Date cached = holder.entity.getLastUpdated();
+            if ( cached == null || cached.before(lastUpdated) )
+            {
+                remove(key, holder);
+                holder = null;
+            }
+        }
+        return type.cast( found(holder) );
+    }
+
+    /**
+     * Returns the cached entity of the given class with the given name, or null if there is not one.
+     *
+     * @param Class The entity class.
+     * @param String The name.
+     * @return UniqueNameDatabaseEntity
+     */
+    public <T extends UniqueNameDatabaseEntity> T getByName(Class<T> type, String name)
+    {
+        Key key = _names.get( new Key(type, name) );
+        return type.cast( found(key == null ? null : _entities.get(key)) );
+    }
+
+    /**
+     * Returns the entity of the given class with the given id from the cache, or creates it with its
+     * (long, DBConfig) constructor, calls init() and caches it if it is not there.
+     *
+     * @param Class The entity class.
+     * @param long The id.
+     * @param DBConfig The config to create the entity with.
+     * @return DatabaseEntity
+     * @throws SQLException if a DB error occurs.
+     * @throws NoDataException if the entity does not exist.
+     * @throws IllegalArgumentException if the class cannot be created that way.
+     */
+    public <T extends DatabaseEntity> T load(Class<T> type, long id, DBConfig config) throws SQLException, NoDataException
+    {
+        T ret = get(type, id);
+        if (ret != null) return ret;
+
+        ret = create( type, new Class<?>[] { Long.TYPE, DBConfig.class }, new Object[] { Long.valueOf(id), config } );
+        ret.init();
+        put(ret, true);
+        return ret;
+    }
+
+    /**
+     * Returns the entity of the given class with the given name from the cache, or creates it with its
+     * (String, DBConfig) constructor, calls init() and caches it if it is not there.
+     *
+     * @param Class The entity class.
+     * @param String The name.
+     * @param DBConfig The config to create the entity with.
+     * @return UniqueNameDatabaseEntity
+     * @throws SQLException if a DB error occurs.
+     * @throws NoDataException if the entity does not exist.
+     * @throws IllegalArgumentException if the class cannot be created that way.
+     */
+    public <T extends UniqueNameDatabaseEntity> T loadByName(Class<T> type, String name, DBConfig config)
+    throws SQLException, NoDataException
+    {
+        T ret = getByName(type, name);
+        if (ret != null) return ret;
+
+        ret = create( type, new Class<?>[] { String.class, DBConfig.class }, new Object[] { name, config } );
+        ret.init();
+        put(ret, true);
+        return ret;
+    }
+
+    /**
+     * Caches the given entity under its class and id, and under its name if it is a
+     * UniqueNameDatabaseEntity. Entities without an id are not cached. If checkVersion is true and
+     * the cached entity was last updated after this one, the cached one is kept. Returns whether the
+     * entity was cached.
+     *
+     * @param DatabaseEntity The entity.
+     * @param boolean Whether to keep a newer cached entity.
+     * @return boolean
+     */
+    public boolean put(DatabaseEntity entity, boolean checkVersion)
+    {
+        if (entity.getId() <= 0) return false;
+
+        Key key = new Key( entity.getClass(), Long.valueOf( entity.getId() ) );
+        String name = (entity instanceof UniqueNameDatabaseEntity ? ( (UniqueNameDatabaseEntity)entity ).getName() : null);
+        Holder holder = new Holder(key, entity, name);
+        Holder old;
+        while (true)
+        {
+            old = _entities.get(key);
+            if (old == null)
+            {
+                if (_entities.putIfAbsent(key, holder) == null) break;
+            }
+            else
+            {
+                if (old.entity == entity && ( name == null ? old.name == null : name.equals(old.name) )) return true;
+                if (checkVersion && isNewer(old.entity, entity)) return false;
+                if ( _entities.replace(key, old, holder) ) break;
+            }
+        }
+
+        if ( old != null && old.name != null && !old.name.equals(name) ) _names.remove( new Key(entity.getClass(), old.name), key );
+        if (name != null) _names.put( new Key(entity.getClass(), name), key );
+        _clock.offer(holder);
+        if (_clockSize.incrementAndGet() > _maxSize) evict();
+        return true;
+    }
+
+    /**
+     * Drops the entity of the given class with the given id.
+     *
+     * @param Class The entity class.
+     * @param long The id.
+     */
+    public void remove(Class<? extends DatabaseEntity> type, long id)
+    {
+        Key key = new Key( type, Long.valueOf(id) );
+        Holder holder = _entities.get(key);
+        if (holder != null) remove(key, holder);
+    }
+
+    /**
+     * Drops all of the cached entities.
+     */
+    public void clear()
+    {
+        _entities.clear();
+        _names.clear();
+    }
+
+    /**
+     * Returns the number of cached entities.
+     *
+     * @return int
+     */
+    public int size()
+    {
+        return _entities.size();
+    }
+
+    /**
+     * Returns the number of times an entity was found in the cache.
+     *
+     * @return long
+     */
+    public long getHitCount()
+    {
+        return _hits.get();
+    }
+
+    /**
+     * Returns the number of times an entity was not found in the cache.
+     *
+     * @return long
+     */
+    public long getMissCount()
+    {
+        return _misses.get();
+    }
+
+    /**
+     * Returns whether the cached entity was last updated after the given one.
+     *
+     * @param DatabaseEntity The cached entity.
+     * @param DatabaseEntity The new entity.
+     * @return boolean
+     */
+    protected boolean isNewer(DatabaseEntity cached, DatabaseEntity entity)
+    {
+        Date cachedDate = cached.getLastUpdated();
+        Date date = entity.getLastUpdated();
+        return (cachedDate != null && date != null && cachedDate.after(date));
+    }
+
+    /**
+     * Drops entities that have not been read since they were last passed over until the cache is back
+     * under its size. Entries left behind for entities that were replaced or removed are discarded along
+     * the way.
+     */
+    protected void evict()
+    {
+        for (int passes=_clockSize.get() * 2; passes > 0 && _clockSize.get() > _maxSize; passes--)
+        {
+            Holder holder = _clock.poll();
+            if (holder == null) return;
+
+            if (_entities.get(holder.key) != holder)
+            {
+                _clockSize.decrementAndGet();
+            }
+            else if (_entities.size() <= _maxSize)
+            {
+                // Only stale entries need to go, so the live ones keep their place.
+                _clock.offer(holder);
+            }
+            else if (holder.referenced)
+            {
+                holder.referenced = false;
+                _clock.offer(holder);
+            }
+            else
+            {
+                _clockSize.decrementAndGet();
+                remove(holder.key, holder);
+            }
+        }
+    }
+
+    private DatabaseEntity found(Holder holder)
+    {
+        if (holder == null)
+        {
+            _misses.incrementAndGet();
+            return null;
+        }
+        if (!holder.referenced) holder.referenced = true;
+        _hits.incrementAndGet();
+        return holder.entity;
+    }
+
+    private void remove(Key key, Holder holder)
+    {
+        if ( _entities.remove(key, holder) && holder.name != null )
+        {
+            _names.remove( new Key(key.type, holder.name), key );
+        }
+    }
+
+    private static <T> T create(Class<T> type, Class<?>[] params, Object[] args)
+    {
+        try
+        {
+            Constructor<T> constructor = type.getConstructor(params);
+            return constructor.newInstance(args);
+        }
+        catch (InvocationTargetException ite)
+        {
+            throw new IllegalArgumentException("Could not create " + type.getName(), ite.getCause());
+        }
+        catch (Exception e)
+        {
+            throw new IllegalArgumentException("Could not create " + type.getName(), e);
+        }
+    }
+
+    public String toString()
+    {
+        StringBuffer ret = new StringBuffer()
+            .append("[Entities: ").append( size() ).append(", Max: ").append(_maxSize)
+            .append(", Hits: ").append( getHitCount() ).append(", Misses: ").append( getMissCount() ).append("]");
+        return ret.toString();
+    }
+
+    /**
+     * Identifies an entity by its class and either its id or its name.
+     */
+    protected static class Key
+    {
+        public final Class<?> type;
+        public final Object value;
+
+        Key(Class<?> type, Object value)
+        {
+            this.type = type;
+            this.value = value;
+        }
+
+        public boolean equals(Object obj)
+        {
+            if (obj == this) return true;
+            if ( !(obj instanceof Key) ) return false;
+            Key key = (Key)obj;
+            return (type == key.type && value.equals(key.value));
+        }
+
+        public int hashCode()
+        {
+            return type.hashCode() * 31 + value.hashCode();
+        }
+    }
+
+    /**
+     * A cached entity along with its key, the name it is indexed under and whether it has been read.
+     */
+    protected static class Holder
+    {
+        public final Key key;
+        public final DatabaseEntity entity;
+        public final String name;
+        public volatile boolean referenced = false;
+
+        Holder(Key key, DatabaseEntity entity, String name)
+        {
+            this.key = key;
+            this.entity = entity;
+            this.name = name;
+        }
+    }
+}
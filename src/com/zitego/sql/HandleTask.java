@@ -0,0 +1,22 @@
+package com.zitego.sql;
+
+import java.sql.SQLException;
+
+/**
+ * Work to be run with a connected handle of its own. See QueryExecutor.submit(DBConfig, boolean, HandleTask).
+ *
+ * @author John Glorioso
+ * @version $Id$
+ */
+public interface HandleTask<T>
+{
+    /**
+     * Does the work with the given handle and returns the result. The handle is connected before this is
+     * called and disconnected after it returns.
+     *
+     * @param DBHandle The connected handle.
+     * @return T
+     * @throws SQLException if a DB error occurs.
+     */
+    public T run(DBHandle db) throws SQLException;
+}
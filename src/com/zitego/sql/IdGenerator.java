@@ -0,0 +1,204 @@
+package com.zitego.sql;
+
+import java.sql.SQLException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Hands out ids for DBHandle.getNextId from blocks reserved in a sequence table (the hi/lo
+ * method). Each reservation moves a named sequence forward by the block size in one statement,
+ * and the ids in the block are then handed out from memory without a lock, so only one in every
+ * block size ids costs a trip to the database. Ids that were reserved but not used when the
+ * application stops are skipped, so there can be gaps.
+ * <p>
+ * The sequence table must have a unique name column and a next_id column that holds the next id
+ * that has not been reserved. Rows are created for new names as they are needed. For example:<br>
+ * <pre>
+ *  CREATE TABLE id_sequence (name VARCHAR(64) NOT NULL PRIMARY KEY, next_id BIGINT NOT NULL)
+ * </pre>
+ * Blocks are reserved on a connection of their own, outside of any transaction of the caller, so
+ * a rollback can never give ids back that were already handed out. A pooled config needs one spare
+ * connection for this. Set the generator with DBConfig.setIdGenerator().
+ *
+ * @author John Glorioso
+ * @version $Id$
+ */
+public class IdGenerator
+{
+    /** The default sequence table. */
+    public static final String DEFAULT_TABLE = "id_sequence";
+    /** The sequence table. */
+    protected String _table;
+    /** The default number of ids to reserve at a time. */
+    protected int _blockSize;
+    /** The number of ids to reserve at a time for specific names. */
+    protected ConcurrentHashMap<String, Integer> _blockSizes;
+    /** The sequences by name. */
+    protected ConcurrentHashMap<String, Sequence> _sequences;
+
+    /**
+     * Creates an id generator that reserves the given number of ids at a time from DEFAULT_TABLE.
+     *
+     * @param int The block size.
+     */
+    public IdGenerator(int blockSize)
+    {
+        this(DEFAULT_TABLE, blockSize);
+    }
+
+    /**
+     * Creates an id generator that reserves the given number of ids at a time from the given table.
+     *
+     * @param String The sequence table.
+     * @param int The block size.
+     * @throws IllegalArgumentException if the block size is less than 1.
+     */
+    public IdGenerator(String table, int blockSize)
+    {
+        if (blockSize < 1) throw new IllegalArgumentException("blockSize must be at least 1 in IdGenerator");
+        _table = table;
+        _blockSize = blockSize;
+        _blockSizes = new ConcurrentHashMap<String, Integer>();
+        _sequences = new ConcurrentHashMap<String, Sequence>();
+    }
+
+    /**
+     * Returns the next id for the given name, reserving a new block with a handle for the given
+     * config when the current one runs out.
+     *
+     * @param String The sequence name.
+     * @param DBConfig The config of the database the sequence table is in.
+     * @return long
+     * @throws SQLException if a block could not be reserved.
+     */
+    public long next(String name, DBConfig config) throws SQLException
+    {
+        Sequence sequence = _sequences.get(name);
+        if (sequence == null)
+        {
+            sequence = new Sequence();
+            Sequence old = _sequences.putIfAbsent(name, sequence);
+            if (old != null) sequence = old;
+        }
+
+        while (true)
+        {
+            Block block = sequence.block;
+            if (block != null)
+            {
+                long id = block.next.getAndIncrement();
+                if (id < block.end) return id;
+            }
+
+            sequence.lock.lock();
+            try
+            {
+                // Only the first thread to find the block used up reserves the next one.
+                if (sequence.block == block) sequence.block = reserve(name, config);
+            }
+            finally
+            {
+                sequence.lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Sets the number of ids to reserve at a time for the given name.
+     *
+     * @param String The sequence name.
+     * @param int The block size.
+     */
+    public void setBlockSize(String name, int blockSize)
+    {
+        if (blockSize < 1) throw new IllegalArgumentException("blockSize must be at least 1 in IdGenerator");
+        _blockSizes.put( name, Integer.valueOf(blockSize) );
+    }
+
+    /**
+     * Returns the number of ids reserved at a time for the given name.
+     *
+     * @param String The sequence name.
+     * @return int
+     */
+    public int getBlockSize(String name)
+    {
+        Integer size = _blockSizes.get(name);
+        return (size == null ? _blockSize : size.intValue());
+    }
+
+    /**
+     * Returns the sequence table.
+     *
+     * @return String
+     */
+    public String getTable()
+    {
+        return _table;
+    }
+
+    /**
+     * Forgets the reserved blocks, so the next ids come from new blocks.
+     */
+    public void reset()
+    {
+        _sequences.clear();
+    }
+
+    /**
+     * Reserves the next block of ids for the given name on a new handle.
+     *
+     * @param String The sequence name.
+     * @param DBConfig The config.
+     * @return Block
+     * @throws SQLException if a DB error occurs.
+     */
+    protected Block reserve(String name, DBConfig config) throws SQLException
+    {
+        int size = getBlockSize(name);
+        DBHandle db = DBHandleFactory.getDBHandle(config);
+        //Never join the caller's TransactionContext, a rollback there must not give ids back
+        db.connect(false);
+        try
+        {
+            long end = db.reserveIds(_table, name, size);
+            return new Block(end - size, end);
+        }
+        finally
+        {
+            db.disconnect();
+        }
+    }
+
+    public String toString()
+    {
+        return "[Table: " + _table + ", Block Size: " + _blockSize + ", Sequences: " + _sequences.keySet() + "]";
+    }
+
+    /**
+     * The current block of a sequence and the lock held while the next one is reserved. This is a lock
+     * rather than the object monitor so that a virtual thread waiting on the reservation does not pin its
+     * carrier thread.
+     */
+    protected static class Sequence
+    {
+        public volatile Block block;
+        public final ReentrantLock lock = new ReentrantLock();
+    }
+
+    /**
+     * A block of reserved ids from next up to, but not including, end.
+     */
+    protected static class Block
+    {
+        public final AtomicLong next;
+        public final long end;
+
+        public Block(long start, long end)
+        {
+            this.next = new AtomicLong(start);
+            this.end = end;
+        }
+    }
+}
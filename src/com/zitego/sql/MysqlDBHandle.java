@@ -3,6 +3,7 @@ package com.zitego.sql;
 import java.sql.SQLException;
 import java.sql.ResultSet;
 import java.sql.PreparedStatement;
+import java.util.List;
 
 /**
  * This class handles DB connectivity to an MySQL Database.
@@ -12,6 +13,9 @@ import java.sql.PreparedStatement;
  */
 public class MysqlDBHandle extends DBHandle
 {
+	/** The most parameters MySQL allows in one prepared statement. */
+	public static final int MAX_PARAMETERS = 65535;
+
 	/**
 	 * Creates a new MysqlDBHandle with the supplied configuration.
 	 *
@@ -44,9 +48,47 @@ public class MysqlDBHandle extends DBHandle
 	public long getLastId(String name) throws SQLException
 	{
 		PreparedStatement pst = prepareStatement("SELECT last_insert_id()");
-		ResultSet rs = pst.executeQuery();
-		if ( !rs.next() ) throw new SQLException("An error occurred retrieving the last id inserted.");
-		return rs.getLong(1);
+		try
+		{
+			ResultSet rs = pst.executeQuery();
+			if ( !rs.next() ) throw new SQLException("An error occurred retrieving the last id inserted.");
+			return rs.getLong(1);
+		}
+		finally
+		{
+			pst.close();
+		}
+	}
+
+	/**
+	 * Reserves ids with one insert that creates the sequence or moves it forward. LAST_INSERT_ID(expr)
+	 * makes the new next id the connection's last insert id, which is then read back.
+	 *
+	 * @param String The sequence table.
+	 * @param String The sequence name.
+	 * @param int The number of ids to reserve.
+	 * @return long
+	 * @throws SQLException when a DB error occurs.
+	 */
+	protected long reserveIds(String table, String name, int count) throws SQLException
+	{
+		PreparedStatement pst = prepareStatement
+		(
+			"INSERT INTO " + table + " (name, next_id) VALUES (?, LAST_INSERT_ID(1 + ?)) " +
+			"ON DUPLICATE KEY UPDATE next_id = LAST_INSERT_ID(next_id + ?)"
+		);
+		try
+		{
+			pst.setString(1, name);
+			pst.setInt(2, count);
+			pst.setInt(3, count);
+			pst.executeUpdate();
+		}
+		finally
+		{
+			pst.close();
+		}
+		return getLastId(table);
 	}
 
 	public int getDBCursorType()
@@ -55,10 +97,147 @@ public class MysqlDBHandle extends DBHandle
 	}
 
 	/**
-	 * This Method can not be utilized for MySQL it is only here as a requirement of implementation.
+	 * Sets the statement to stream rows one at a time, which is the only way the MySQL driver
+	 * reads a result without buffering all of it. While the rows are being read, no other
+	 * statements can be run on the connection.
+	 *
+	 * @param PreparedStatement The statement.
+	 * @throws SQLException when a DB error occurs.
+	 */
+	protected void setStreaming(PreparedStatement pst) throws SQLException
+	{
+		pst.setFetchSize(Integer.MIN_VALUE);
+	}
+
+	/**
+	 * Caps the batch size so that a rewritten multi-row insert stays under the MySQL limit of
+	 * 65535 parameters in one statement.
+	 *
+	 * @param int The number of parameters in one row.
+	 * @return int
+	 */
+	protected int getBatchSize(int params)
+	{
+		int size = super.getBatchSize(params);
+		if ( _config.rewriteBatchedInserts() && params > 0 ) size = Math.max( 1, Math.min(size, MAX_PARAMETERS / params) );
+		return size;
+	}
+
+	/**
+	 * Rewrites an INSERT or REPLACE ... VALUES (...) statement to insert the given number of rows by
+	 * repeating the row after VALUES. Anything after the row, such as ON DUPLICATE KEY UPDATE, is kept.
+	 * Returns null if rewriting is turned off in the config or the statement is not of that form.
+	 *
+	 * @param String The sql for one row.
+	 * @param int The number of rows.
+	 * @return String
+	 */
+	protected String rewriteBatch(String sql, int rows)
+	{
+		if ( !_config.rewriteBatchedInserts() ) return null;
+		int[] row = findValuesRow(sql);
+		if (row == null) return null;
+
+		String values = sql.substring(row[0], row[1]);
+		StringBuilder ret = new StringBuilder( sql.length() + (values.length() + 1) * (rows - 1) );
+		ret.append(sql, 0, row[1]);
+		for (int i=1; i<rows; i++)
+		{
+			ret.append(',').append(values);
+		}
+		ret.append( sql, row[1], sql.length() );
+		return ret.toString();
+	}
+
+	/**
+	 * Joins the given statements into one multi-statement, so that a Pipeline is sent in one round trip.
+	 * Each statement is ended on a new line so that a trailing comment cannot swallow the separator.
+	 * Returns null if multi-statements are turned off in the config.
+	 *
+	 * @param List The sql of each statement.
+	 * @return String
 	 */
-	public long getNextId(String name) throws SQLException
+	protected String joinStatements(List<String> sql)
+	{
+		if ( !_config.multiStatements() ) return null;
+
+		StringBuilder ret = new StringBuilder();
+		for (int i=0; i<sql.size(); i++)
+		{
+			String statement = sql.get(i).trim();
+			while ( statement.endsWith(";") ) statement = statement.substring(0, statement.length() - 1).trim();
+			if (i > 0) ret.append("\n;\n");
+			ret.append(statement);
+		}
+		return ret.toString();
+	}
+
+	/**
+	 * Returns the start and end of the parenthesized row following VALUES in an INSERT or REPLACE
+	 * statement, or null if there is not one. Quoted strings and identifiers are skipped.
+	 *
+	 * @param String The sql.
+	 * @return int[]
+	 */
+	static int[] findValuesRow(String sql)
+	{
+		String upper = sql.toUpperCase();
+		String verb = upper.trim();
+		if ( !verb.startsWith("INSERT") && !verb.startsWith("REPLACE") ) return null;
+
+		int len = sql.length();
+		int depth = 0;
+		int values = -1;
+		int open = -1;
+		for (int i=0; i<len; i++)
+		{
+			char c = sql.charAt(i);
+			if (c == '\'' || c == '"' || c == '`')
+			{
+				i = skipQuoted(sql, i);
+				if (i < 0) return null;
+			}
+			else if (c == '(')
+			{
+				if (values >= 0 && open < 0)
+				{
+					// Only a row directly after VALUES can be repeated.
+					if ( sql.substring(values, i).trim().length() > 0 ) return null;
+					open = i;
+				}
+				depth++;
+			}
+			else if (c == ')')
+			{
+				depth--;
+				if (depth == 0 && open >= 0) return new int[] { open, i + 1 };
+			}
+			else if ( depth == 0 && values < 0 && upper.startsWith("VALUES", i) && isWordBoundary(sql, i - 1) &&
+					  isWordBoundary(sql, i + 6) )
+			{
+				values = i + 6;
+				i += 5;
+			}
+		}
+		return null;
+	}
+
+	private static int skipQuoted(String sql, int start)
+	{
+		char quote = sql.charAt(start);
+		for (int i=start+1; i<sql.length(); i++)
+		{
+			char c = sql.charAt(i);
+			if (c == '\\' && quote != '`') i++;
+			else if (c == quote) return i;
+		}
+		return -1;
+	}
+
+	private static boolean isWordBoundary(String sql, int i)
 	{
-		throw new SQLException("getNextId() can not be called when for a MySQL database.");
+		if ( i < 0 || i >= sql.length() ) return true;
+		char c = sql.charAt(i);
+		return !( Character.isLetterOrDigit(c) || c == '_' || c == '$' );
 	}
 }
\ No newline at end of file
@@ -0,0 +1,184 @@
+package com.zitego.sql;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A queue of independent statements, such as small inserts and updates, that are sent to the database
+ * together when executed. Where the handle supports it (see DBHandle.joinStatements), the statements are
+ * sent as one multi-statement in as few round trips as the batch size allows. Otherwise, they are run
+ * one at a time. Either way, each statement gets a Result with its update count or its error.
+ * <p>
+ * For example:<br>
+ * <pre>
+ *  Pipeline pipeline = db.pipeline();
+ *  pipeline.add(touchSession);
+ *  pipeline.add(logVisit);
+ *  pipeline.add(countHit);
+ *  List&lt;Pipeline.Result&gt; results = pipeline.execute();
+ * </pre>
+ * Like a multi-statement, execution stops at the first statement that fails. The statements after it are
+ * not run, and their results say so. The statements before it are not undone unless the pipeline runs in
+ * a transaction.
+ *
+ * @author John Glorioso
+ * @version $Id$
+ * @see DBHandle#pipeline()
+ */
+public class Pipeline
+{
+    /** The handle the statements run on. */
+    protected DBHandle _db;
+    /** The queued statements. */
+    protected List<PreparedStatementSupport> _statements;
+
+    /**
+     * Creates an empty pipeline for the given handle.
+     *
+     * @param DBHandle The handle.
+     */
+    Pipeline(DBHandle db)
+    {
+        _db = db;
+        _statements = new ArrayList<PreparedStatementSupport>();
+    }
+
+    /**
+     * Queues the given statement and returns its index in the results.
+     *
+     * @param PreparedStatementSupport The statement.
+     * @return int
+     * @throws IllegalArgumentException if the statement has no sql.
+     */
+    public int add(PreparedStatementSupport statement)
+    {
+        if (statement.getSql() == null) throw new IllegalArgumentException("SQL statement not set.");
+        _statements.add(statement);
+        return _statements.size() - 1;
+    }
+
+    /**
+     * Returns the number of queued statements.
+     *
+     * @return int
+     */
+    public int size()
+    {
+        return _statements.size();
+    }
+
+    /**
+     * Runs the queued statements and returns their results in the order they were added. The queue is
+     * emptied. Errors in the statements are returned in their results rather than thrown.
+     *
+     * @return List
+     * @throws SQLException if the statements could not be sent at all.
+     */
+    public List<Result> execute() throws SQLException
+    {
+        List<PreparedStatementSupport> statements = _statements;
+        _statements = new ArrayList<PreparedStatementSupport>();
+        return _db.executePipeline(statements);
+    }
+
+    /**
+     * Returns whether every result succeeded.
+     *
+     * @param List The results.
+     * @return boolean
+     */
+    public static boolean succeeded(List<Result> results)
+    {
+        for (int i=0; i<results.size(); i++)
+        {
+            if ( !results.get(i).succeeded() ) return false;
+        }
+        return true;
+    }
+
+    /**
+     * The outcome of one statement in a pipeline.
+     */
+    public static class Result
+    {
+        private final PreparedStatementSupport _statement;
+        private boolean _executed = false;
+        private int _updateCount = -1;
+        private SQLException _error;
+
+        Result(PreparedStatementSupport statement)
+        {
+            _statement = statement;
+        }
+
+        void setUpdateCount(int count)
+        {
+            _executed = true;
+            _updateCount = count;
+        }
+
+        void setError(SQLException error)
+        {
+            _executed = true;
+            _error = error;
+        }
+
+        /**
+         * Returns the statement.
+         *
+         * @return PreparedStatementSupport
+         */
+        public PreparedStatementSupport getStatement()
+        {
+            return _statement;
+        }
+
+        /**
+         * Returns whether the statement was run. Statements after one that failed are not.
+         *
+         * @return boolean
+         */
+        public boolean isExecuted()
+        {
+            return _executed;
+        }
+
+        /**
+         * Returns the number of rows the statement changed, or -1 if it failed, was not run or was a query.
+         *
+         * @return int
+         */
+        public int getUpdateCount()
+        {
+            return _updateCount;
+        }
+
+        /**
+         * Returns the error the statement failed with, or null.
+         *
+         * @return SQLException
+         */
+        public SQLException getError()
+        {
+            return _error;
+        }
+
+        /**
+         * Returns whether the statement was run without an error.
+         *
+         * @return boolean
+         */
+        public boolean succeeded()
+        {
+            return (_executed && _error == null);
+        }
+
+        public String toString()
+        {
+            if (!_executed) return "[Not Executed: " + _statement.getSql() + "]";
+            else if (_error != null) return "[Error: " + _error.getMessage() + ": " + _statement.getSql() + "]";
+            else return "[Update Count: " + _updateCount + ": " + _statement.getSql() + "]";
+        }
+    }
+}
@@ -6,10 +6,16 @@ import java.math.BigDecimal;
 import java.net.URL;
 import java.io.Reader;
 import java.io.InputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
 import java.sql.*;
 
 /**
- * Wraps a prepared statement for tracking and closing of result sets at a system level.
+ * Wraps a prepared statement for tracking and closing of result sets at a system level. Statements
+ * prepared by a DBHandle are timed. The execute time is reported to the handle and, if its config has
+ * QueryStats, recorded there along with the time spent reading the result set and the number of rows.
  *
  * @author John Glorioso
  * @version $Id: PreparedStatement.java,v 1.3 2011/10/16 17:33:19 jglorioso Exp $
@@ -18,22 +24,77 @@ public class PreparedStatement implements java.sql.PreparedStatement
 {
     private Vector<ResultSet> _resultSets = new Vector<>();
     private java.sql.PreparedStatement _pst;
+    /** The cache to give the statement back to when closed. Null if it is not cached. */
+    private StatementCache _cache;
+    private StatementCache.Key _key;
+    private boolean _closed = false;
+    /** The sql. Only set if the statement is timed. */
+    private String _sql;
+    /** The handle to report times to. Null if the statement is not timed. */
+    private DBHandle _handle;
+    /** The stats to record times in. Null if there are none. */
+    private QueryStats _stats;
+    /** The result set whose fetch time is being measured. */
+    private TimedResultSet _fetching;
 
     PreparedStatement(java.sql.PreparedStatement pst)
     {
         _pst = pst;
     }
 
+    PreparedStatement(java.sql.PreparedStatement pst, String sql, DBHandle handle)
+    {
+        _pst = pst;
+        _sql = sql;
+        _handle = handle;
+        _stats = handle.getConfig().getQueryStats();
+    }
+
+    PreparedStatement(java.sql.PreparedStatement pst, StatementCache cache, StatementCache.Key key)
+    {
+        _pst = pst;
+        _cache = cache;
+        _key = key;
+    }
+
     private ResultSet getResultSet(ResultSet rs)
     {
-        if ( !_resultSets.contains(rs) ) _resultSets.add(rs);
+        if ( rs != null && !_resultSets.contains(rs) ) _resultSets.add(rs);
         return rs;
     }
 
     @Override
     public ResultSet executeQuery() throws SQLException
     {
-        return getResultSet( _pst.executeQuery() );
+        if (_handle == null) return getResultSet( _pst.executeQuery() );
+
+        if (_fetching != null) _fetching.finish();
+        ResultSet rs = null;
+        long start = System.nanoTime();
+        try
+        {
+            rs = _pst.executeQuery();
+        }
+        finally
+        {
+            long elapsed = System.nanoTime() - start;
+            _handle.executed(elapsed);
+            if (rs == null && _stats != null) _stats.record(_sql, elapsed, 0, 0);
+            else if (_stats != null) _fetching = new TimedResultSet(rs, elapsed);
+        }
+        return getResultSet( _fetching == null ? rs : _fetching.proxy );
+    }
+
+    /**
+     * Reports the time an execute call took to the handle and the stats.
+     *
+     * @param long The time in nanoseconds.
+     * @param long The number of rows updated.
+     */
+    private void executed(long nanos, long rows)
+    {
+        _handle.executed(nanos);
+        if (_stats != null) _stats.record(_sql, nanos, 0, rows);
     }
 
     @Override
@@ -57,6 +118,8 @@ public class PreparedStatement implements java.sql.PreparedStatement
     @Override
     public void close() throws SQLException
     {
+        if (_closed) return;
+        _closed = true;
         while (_resultSets.size() > 0)
         {
             ResultSet rs = _resultSets.get(0);
@@ -66,7 +129,8 @@ public class PreparedStatement implements java.sql.PreparedStatement
                 _resultSets.remove(0);
             }
         }
-        _pst.close();
+        if (_cache != null) _cache.release(_key, _pst);
+        else _pst.close();
     }
 
     @Override
@@ -151,7 +215,17 @@ public class PreparedStatement implements java.sql.PreparedStatement
     @Override
     public boolean execute() throws SQLException
     {
-        return _pst.execute();
+        if (_handle == null) return _pst.execute();
+
+        long start = System.nanoTime();
+        try
+        {
+            return _pst.execute();
+        }
+        finally
+        {
+            executed(System.nanoTime() - start, 0);
+        }
     }
 
     @Override
@@ -288,7 +362,19 @@ public class PreparedStatement implements java.sql.PreparedStatement
     @Override
     public int executeUpdate() throws SQLException
     {
-        return _pst.executeUpdate();
+        if (_handle == null) return _pst.executeUpdate();
+
+        int ret = 0;
+        long start = System.nanoTime();
+        try
+        {
+            ret = _pst.executeUpdate();
+            return ret;
+        }
+        finally
+        {
+            executed(System.nanoTime() - start, ret);
+        }
     }
 
     @Override
@@ -348,7 +434,24 @@ public class PreparedStatement implements java.sql.PreparedStatement
     @Override
     public int[] executeBatch() throws SQLException
     {
-        return _pst.executeBatch();
+        if (_handle == null) return _pst.executeBatch();
+
+        int[] ret = null;
+        long start = System.nanoTime();
+        try
+        {
+            ret = _pst.executeBatch();
+            return ret;
+        }
+        finally
+        {
+            long rows = 0;
+            for (int i=0; ret != null && i<ret.length; i++)
+            {
+                if (ret[i] > 0) rows += ret[i];
+            }
+            executed(System.nanoTime() - start, rows);
+        }
     }
 
     @Override
@@ -615,7 +718,7 @@ public class PreparedStatement implements java.sql.PreparedStatement
     @Override
     public boolean isClosed() throws SQLException
     {
-        return _pst.isClosed();
+        return (_closed || _pst.isClosed());
     }
 
     @Override
@@ -641,4 +744,79 @@ public class PreparedStatement implements java.sql.PreparedStatement
     {
         return _pst.isCloseOnCompletion();
     }
+
+    /**
+     * Stands in for a result set to time the calls to next() and count the rows. The times are
+     * recorded when the result set is closed.
+     */
+    private class TimedResultSet implements InvocationHandler
+    {
+        final ResultSet proxy;
+        private ResultSet _rs;
+        private long _executeNanos;
+        private long _fetchNanos = 0;
+        private long _rows = 0;
+        private boolean _done = false;
+
+        TimedResultSet(ResultSet rs, long executeNanos)
+        {
+            _rs = rs;
+            _executeNanos = executeNanos;
+            proxy = (ResultSet)Proxy.newProxyInstance
+            (
+                PreparedStatement.class.getClassLoader(), new Class<?>[] { ResultSet.class }, this
+            );
+        }
+
+        public Object invoke(Object p, Method method, Object[] args) throws Throwable
+        {
+            String name = method.getName();
+            if ( "next".equals(name) )
+            {
+                long start = System.nanoTime();
+                boolean ret = _rs.next();
+                _fetchNanos += System.nanoTime() - start;
+                if (ret) _rows++;
+                return Boolean.valueOf(ret);
+            }
+            else if ( "close".equals(name) )
+            {
+                try
+                {
+                    _rs.close();
+                }
+                finally
+                {
+                    finish();
+                }
+                return null;
+            }
+            else if ( "equals".equals(name) )
+            {
+                return Boolean.valueOf(p == args[0]);
+            }
+            else if ( "hashCode".equals(name) )
+            {
+                return Integer.valueOf( System.identityHashCode(p) );
+            }
+
+            try
+            {
+                return method.invoke(_rs, args);
+            }
+            catch (InvocationTargetException ite)
+            {
+                throw ite.getCause();
+            }
+        }
+
+        void finish()
+        {
+            if (_done) return;
+            _done = true;
+            if (_fetching == this) _fetching = null;
+            _stats.record(_sql, _executeNanos, _fetchNanos, _rows);
+            _handle.retrieved(_fetchNanos);
+        }
+    }
 }
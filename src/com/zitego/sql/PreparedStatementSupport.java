@@ -153,24 +153,47 @@ public class PreparedStatementSupport
 		if (_sql == null) throw new SQLException("SQL statement not set.");
 
 		PreparedStatement pst = db.prepareStatement(_sql);
+		bindValues(pst, 0);
+		return pst;
+	}
+
+	/**
+	 * Binds the parameters to the given PreparedStatement starting after the given number of
+	 * parameters. This is used to bind several rows to one multi-row statement.
+	 *
+	 * @param PreparedStatement The statement.
+	 * @param int The number of parameters before these.
+	 * @throws SQLException if an error occurs.
+	 */
+	public void bindValues(PreparedStatement pst, int offset) throws SQLException
+	{
 		int count = _values.size();
 		for (int i=0; i<count; i++)
 		{
 			Object obj = _values.get(i);
-			if (obj instanceof Integer) pst.setInt( i+1, ((Integer)obj).intValue() );
-			else if (obj instanceof Double) pst.setDouble( i+1, ((Double)obj).doubleValue() );
-			else if (obj instanceof Float) pst.setFloat( i+1, ((Float)obj).floatValue() );
-			else if (obj instanceof Short) pst.setShort( i+1, ((Short)obj).shortValue() );
-			else if (obj instanceof Long) pst.setLong( i+1, ((Long)obj).longValue() );
-			else if (obj instanceof String) pst.setString( i+1, (String)obj );
-			else if (obj instanceof java.sql.Date) pst.setDate( i+1, (java.sql.Date)obj );
-			else if (obj instanceof java.util.Date) pst.setTimestamp( i+1, new Timestamp(((java.util.Date)obj).getTime()) );
-			else if (obj instanceof java.sql.Timestamp) pst.setTimestamp( i+1, (java.sql.Timestamp)obj );
-			else if (obj instanceof NullValue) pst.setNull( i+1, ((NullValue)obj).type );
+			int idx = offset + i + 1;
+			if (obj instanceof Integer) pst.setInt( idx, ((Integer)obj).intValue() );
+			else if (obj instanceof Double) pst.setDouble( idx, ((Double)obj).doubleValue() );
+			else if (obj instanceof Float) pst.setFloat( idx, ((Float)obj).floatValue() );
+			else if (obj instanceof Short) pst.setShort( idx, ((Short)obj).shortValue() );
+			else if (obj instanceof Long) pst.setLong( idx, ((Long)obj).longValue() );
+			else if (obj instanceof String) pst.setString( idx, (String)obj );
+			else if (obj instanceof java.sql.Date) pst.setDate( idx, (java.sql.Date)obj );
+			else if (obj instanceof java.util.Date) pst.setTimestamp( idx, new Timestamp(((java.util.Date)obj).getTime()) );
+			else if (obj instanceof java.sql.Timestamp) pst.setTimestamp( idx, (java.sql.Timestamp)obj );
+			else if (obj instanceof NullValue) pst.setNull( idx, ((NullValue)obj).type );
 			else throw new SQLException("Unsupported bind value: " + obj);
 		}
+	}
 
-		return pst;
+	/**
+	 * Returns the number of parameters added.
+	 *
+	 * @return int
+	 */
+	public int getValueCount()
+	{
+	    return _values.size();
 	}
 
 	private class NullValue
@@ -187,5 +210,15 @@ public class PreparedStatementSupport
 		{
 			this.type = type;
 		}
+
+		public boolean equals(Object obj)
+		{
+			return ( obj instanceof NullValue && ((NullValue)obj).type == type );
+		}
+
+		public int hashCode()
+		{
+			return type;
+		}
 	}
 }
\ No newline at end of file
@@ -0,0 +1,323 @@
+package com.zitego.sql;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A read through cache of query results keyed by sql and bound values. Results are kept as immutable
+ * CachedResults for up to a time to live, and the least recently used ones are dropped when the
+ * estimated size of all the results goes over a limit. Each result is tagged with the tables it was
+ * read from, and invalidating a table drops every result read from it. DatabaseEntity.save() invalidates
+ * the tables returned by DatabaseEntity.getTableNames(), when the thread's TransactionContext commits if
+ * one is open. Queries run in a transaction are not cached.
+ * <p>
+ * A cache is shared by every handle with the same DBConfig. For example:<br>
+ * <pre>
+ *  config.setQueryCache( new QueryCache(60000, 16l * 1024 * 1024) );
+ *  ...
+ *  CachedResult types = db.cachedQuery(query, "status_type");
+ * </pre>
+ * A result loaded while one of its tables is being invalidated is not cached, so a save that finishes
+ * while a query is running is never hidden by the older rows.
+ *
+ * @author John Glorioso
+ * @version $Id$
+ */
+public class QueryCache
+{
+    /** The time (in milliseconds) a result is kept. */
+    protected long _timeToLive;
+    /** The most bytes of results to keep. */
+    protected long _maxSize;
+    /** The cached results in least recently used order. */
+    protected LinkedHashMap<Key, Entry> _entries;
+    /** The keys of the results read from each table. */
+    protected HashMap<String, Set<Key>> _tables;
+    /** The sequence number at which each table was last invalidated. */
+    protected HashMap<String, Long> _invalidated;
+    private long _sequence = 0;
+    private long _size = 0;
+    private long _hits = 0;
+    private long _misses = 0;
+
+    /**
+     * Creates a query cache.
+     *
+     * @param long The time (in milliseconds) a result is kept.
+     * @param long The most bytes of results to keep (estimated).
+     */
+    public QueryCache(long timeToLive, long maxSize)
+    {
+        _timeToLive = timeToLive;
+        _maxSize = maxSize;
+        _entries = new LinkedHashMap<Key, Entry>(64, 0.75f, true);
+        _tables = new HashMap<String, Set<Key>>();
+        _invalidated = new HashMap<String, Long>();
+    }
+
+    /**
+     * Returns the cached result for the given key, or null if there is not one or it has expired.
+     *
+     * @param Key The key.
+     * @return CachedResult
+     */
+    public synchronized CachedResult get(Key key)
+    {
+        Entry entry = _entries.get(key);
+        if ( entry != null && System.currentTimeMillis() - entry.loaded > _timeToLive )
+        {
+            remove(key);
+            entry = null;
+        }
+
+        if (entry == null)
+        {
+            _misses++;
+            return null;
+        }
+        _hits++;
+        return entry.result;
+    }
+
+    /**
+     * Returns the current sequence number. This is read before a result is loaded and handed to put
+     * so that the result is not cached if one of its tables was invalidated while it was loading.
+     *
+     * @return long
+     */
+    public synchronized long getSequence()
+    {
+        return _sequence;
+    }
+
+    /**
+     * Caches the given result, read from the given tables. The result is not cached if it is bigger
+     * than the cache or if one of the tables was invalidated after the given sequence number. Returns
+     * whether the result was cached.
+     *
+     * @param Key The key.
+     * @param CachedResult The result.
+     * @param String[] The tables the result was read from.
+     * @param long The sequence number from before the result was loaded.
+     * @return boolean
+     */
+    public synchronized boolean put(Key key, CachedResult result, String[] tables, long sequence)
+    {
+        if (result.getSize() > _maxSize) return false;
+        String[] names = normalize(tables);
+        for (int i=0; i<names.length; i++)
+        {
+            Long invalidated = _invalidated.get(names[i]);
+            if (invalidated != null && invalidated.longValue() > sequence) return false;
+        }
+
+        remove(key);
+        _entries.put( key, new Entry(result, names) );
+        _size += result.getSize();
+        for (int i=0; i<names.length; i++)
+        {
+            Set<Key> keys = _tables.get(names[i]);
+            if (keys == null)
+            {
+                keys = new HashSet<Key>();
+                _tables.put(names[i], keys);
+            }
+            keys.add(key);
+        }
+
+        Iterator<Map.Entry<Key, Entry>> eldest = _entries.entrySet().iterator();
+        while (_size > _maxSize && eldest.hasNext())
+        {
+            Map.Entry<Key, Entry> e = eldest.next();
+            eldest.remove();
+            unindex( e.getKey(), e.getValue() );
+        }
+        return true;
+    }
+
+    /**
+     * Drops every result read from the given table.
+     *
+     * @param String The table name.
+     */
+    public synchronized void invalidate(String table)
+    {
+        String name = table.toLowerCase();
+        _invalidated.put( name, Long.valueOf(++_sequence) );
+        Set<Key> keys = _tables.remove(name);
+        if (keys == null) return;
+        for (Iterator<Key> i=keys.iterator(); i.hasNext();)
+        {
+            remove( i.next() );
+        }
+    }
+
+    /**
+     * Drops every result read from any of the given tables.
+     *
+     * @param String[] The table names.
+     */
+    public void invalidate(String[] tables)
+    {
+        if (tables == null) return;
+        for (int i=0; i<tables.length; i++)
+        {
+            invalidate(tables[i]);
+        }
+    }
+
+    /**
+     * Drops all of the cached results.
+     */
+    public synchronized void clear()
+    {
+        _entries.clear();
+        _tables.clear();
+        _size = 0;
+        _sequence++;
+    }
+
+    /**
+     * Returns the number of cached results.
+     *
+     * @return int
+     */
+    public synchronized int size()
+    {
+        return _entries.size();
+    }
+
+    /**
+     * Returns the estimated size (in bytes) of the cached results.
+     *
+     * @return long
+     */
+    public synchronized long getSize()
+    {
+        return _size;
+    }
+
+    /**
+     * Returns the number of times a result was found in the cache.
+     *
+     * @return long
+     */
+    public synchronized long getHitCount()
+    {
+        return _hits;
+    }
+
+    /**
+     * Returns the number of times a result was not found in the cache.
+     *
+     * @return long
+     */
+    public synchronized long getMissCount()
+    {
+        return _misses;
+    }
+
+    private void remove(Key key)
+    {
+        Entry entry = _entries.remove(key);
+        if (entry != null) unindex(key, entry);
+    }
+
+    private void unindex(Key key, Entry entry)
+    {
+        _size -= entry.result.getSize();
+        for (int i=0; i<entry.tables.length; i++)
+        {
+            Set<Key> keys = _tables.get(entry.tables[i]);
+            if (keys != null)
+            {
+                keys.remove(key);
+                if ( keys.isEmpty() ) _tables.remove(entry.tables[i]);
+            }
+        }
+    }
+
+    private static String[] normalize(String[] tables)
+    {
+        if (tables == null) return new String[0];
+        String[] ret = new String[tables.length];
+        for (int i=0; i<tables.length; i++)
+        {
+            ret[i] = tables[i].toLowerCase();
+        }
+        return ret;
+    }
+
+    public String toString()
+    {
+        StringBuffer ret = new StringBuffer()
+            .append("[Results: ").append( size() ).append(", Bytes: ").append( getSize() ).append(", Max: ").append(_maxSize)
+            .append(", Hits: ").append( getHitCount() ).append(", Misses: ").append( getMissCount() ).append("]");
+        return ret.toString();
+    }
+
+    /**
+     * A cached result along with when it was loaded and the tables it was read from.
+     */
+    protected static class Entry
+    {
+        public final CachedResult result;
+        public final String[] tables;
+        public final long loaded = System.currentTimeMillis();
+
+        Entry(CachedResult result, String[] tables)
+        {
+            this.result = result;
+            this.tables = tables;
+        }
+    }
+
+    /**
+     * Identifies a query by its sql and bound values.
+     */
+    public static class Key
+    {
+        private String _sql;
+        private Object[] _values;
+        private int _hash;
+
+        /**
+         * Creates a key for the given query.
+         *
+         * @param PreparedStatementSupport The query.
+         */
+        public Key(PreparedStatementSupport query)
+        {
+            _sql = query.getSql();
+            _values = query._values.toArray();
+            for (int i=0; i<_values.length; i++)
+            {
+                if (_values[i] instanceof java.util.Date) _values[i] = ( (java.util.Date)_values[i] ).clone();
+            }
+            _hash = _sql.hashCode() * 31 + Arrays.hashCode(_values);
+        }
+
+        public boolean equals(Object obj)
+        {
+            if (obj == this) return true;
+            if ( !(obj instanceof Key) ) return false;
+            Key key = (Key)obj;
+            return (_hash == key._hash && _sql.equals(key._sql) && Arrays.equals(_values, key._values));
+        }
+
+        public int hashCode()
+        {
+            return _hash;
+        }
+
+        public String toString()
+        {
+            return _sql + " " + Arrays.asList(_values);
+        }
+    }
+}
@@ -0,0 +1,269 @@
+package com.zitego.sql;
+
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs queries and updates in the background so that independent ones can run at the same time. Each
+ * one runs on a handle of its own, with a connection from the pool of the config, on a bounded number
+ * of threads. When the queue of waiting work is full, the caller runs the work itself, so a burst of
+ * submissions slows down instead of failing. The handles never join a TransactionContext, even when
+ * the work runs on the caller's thread.
+ * <p>
+ * Set with DBConfig.setQueryExecutor() and used through DBHandle.queryAsync() and updateAsync(). For
+ * example, to run three lookups at once and wait for all of them:<br>
+ * <pre>
+ *  config.setQueryExecutor( new QueryExecutor(16, 256) );
+ *  ...
+ *  List&lt;Future&lt;CachedResult&gt;&gt; lookups = new ArrayList&lt;Future&lt;CachedResult&gt;&gt;();
+ *  lookups.add( db.queryAsync(accounts, "account") );
+ *  lookups.add( db.queryAsync(users, "user") );
+ *  lookups.add( db.queryAsync(sessions, "session") );
+ *  List&lt;CachedResult&gt; results = config.getQueryExecutor().getAll(lookups, config);
+ * </pre>
+ * get() and getAll() wait no longer than DBConfig.getCallTimeLimit() seconds, if it is set, and cancel
+ * whatever has not finished when it runs out. The statements themselves get the same query timeout.
+ * Since the work runs on other connections, it does not see uncommitted changes made in a transaction
+ * on the calling handle.
+ *
+ * @author John Glorioso
+ * @version $Id$
+ */
+public class QueryExecutor
+{
+    /** The threads the work runs on. */
+    protected ThreadPoolExecutor _executor;
+    private static final AtomicInteger _threadCount = new AtomicInteger();
+
+    /**
+     * Creates a query executor that runs up to the given number of queries at a time and queues up to
+     * the given number more.
+     *
+     * @param int The number of threads.
+     * @param int The most work to queue.
+     * @throws IllegalArgumentException if threads or queueSize is less than 1.
+     */
+    public QueryExecutor(int threads, int queueSize)
+    {
+        if (threads < 1) throw new IllegalArgumentException("threads must be at least 1 in QueryExecutor");
+        if (queueSize < 1) throw new IllegalArgumentException("queueSize must be at least 1 in QueryExecutor");
+        _executor = new ThreadPoolExecutor
+        (
+            threads, threads, 60l, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(queueSize),
+            new ThreadFactory()
+            {
+                public Thread newThread(Runnable r)
+                {
+                    Thread t = new Thread( r, "QueryExecutor-" + _threadCount.incrementAndGet() );
+                    t.setDaemon(true);
+                    return t;
+                }
+            },
+            new ThreadPoolExecutor.CallerRunsPolicy()
+        );
+        _executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Runs the given query on a handle of its own and returns its results as DBHandle.cachedQuery() would.
+     *
+     * @param DBConfig The config of the database to run it on.
+     * @param boolean Whether the handle is read only, so it may run on a replica.
+     * @param PreparedStatementSupport The query.
+     * @param String[] The tables the query reads from.
+     * @return Future
+     */
+    public Future<CachedResult> query(DBConfig config, boolean readOnly, final PreparedStatementSupport query, final String... tables)
+    {
+        return submit
+        (
+            config, readOnly,
+            new HandleTask<CachedResult>()
+            {
+                public CachedResult run(DBHandle db) throws SQLException
+                {
+                    return db.cachedQuery(query, tables);
+                }
+            }
+        );
+    }
+
+    /**
+     * Runs the given update on a handle of its own and returns the number of rows it changed. The update
+     * is committed on its own.
+     *
+     * @param DBConfig The config of the database to run it on.
+     * @param PreparedStatementSupport The update.
+     * @return Future
+     */
+    public Future<Integer> update(DBConfig config, final PreparedStatementSupport update)
+    {
+        return submit
+        (
+            config, false,
+            new HandleTask<Integer>()
+            {
+                public Integer run(DBHandle db) throws SQLException
+                {
+                    if (update.getSql() == null) throw new SQLException("SQL statement not set.");
+                    java.sql.PreparedStatement pst = update.bindValues(db);
+                    try
+                    {
+                        return Integer.valueOf( pst.executeUpdate() );
+                    }
+                    finally
+                    {
+                        pst.close();
+                    }
+                }
+            }
+        );
+    }
+
+    /**
+     * Runs the given task with a connected handle of its own.
+     *
+     * @param DBConfig The config of the database to run it on.
+     * @param boolean Whether the handle is read only, so it may run on a replica.
+     * @param HandleTask The task.
+     * @return Future
+     */
+    public <T> Future<T> submit(final DBConfig config, final boolean readOnly, final HandleTask<T> task)
+    {
+        return _executor.submit
+        (
+            new Callable<T>()
+            {
+                public T call() throws Exception
+                {
+                    DBHandle db = DBHandleFactory.getDBHandle(config);
+                    db.setReadOnly(readOnly);
+                    //The work may run on the caller's thread when the queue is full, so stay out of its context
+                    db.connect(false);
+                    try
+                    {
+                        return task.run(db);
+                    }
+                    finally
+                    {
+                        db.disconnect();
+                    }
+                }
+            }
+        );
+    }
+
+    /**
+     * Waits for the given work to finish and returns its result. Waits no longer than the call time limit
+     * of the given config, if it has one, and cancels the work if it runs out.
+     *
+     * @param Future The work.
+     * @param DBConfig The config with the call time limit.
+     * @return T
+     * @throws SQLTimeoutException if the call time limit ran out.
+     * @throws SQLException if the work failed or the thread was interrupted.
+     */
+    public <T> T get(Future<T> future, DBConfig config) throws SQLException
+    {
+        List<Future<T>> futures = new ArrayList<Future<T>>(1);
+        futures.add(future);
+        return getAll(futures, config).get(0);
+    }
+
+    /**
+     * Waits for all of the given work to finish and returns the results in the same order. Waits no longer
+     * than the call time limit of the given config in all, if it has one. If the time runs out or any of
+     * the work fails, whatever has not finished is cancelled.
+     *
+     * @param List The work.
+     * @param DBConfig The config with the call time limit.
+     * @return List
+     * @throws SQLTimeoutException if the call time limit ran out.
+     * @throws SQLException if any of the work failed or the thread was interrupted.
+     */
+    public <T> List<T> getAll(List<Future<T>> futures, DBConfig config) throws SQLException
+    {
+        long limit = config.getCallTimeLimit();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(limit);
+        List<T> ret = new ArrayList<T>( futures.size() );
+        boolean done = false;
+        try
+        {
+            for (int i=0; i<futures.size(); i++)
+            {
+                Future<T> future = futures.get(i);
+                if (limit > 0) ret.add( future.get(deadline - System.nanoTime(), TimeUnit.NANOSECONDS) );
+                else ret.add( future.get() );
+            }
+            done = true;
+            return ret;
+        }
+        catch (TimeoutException te)
+        {
+            throw new SQLTimeoutException("Query did not finish within the call time limit of " + limit + " seconds");
+        }
+        catch (InterruptedException ie)
+        {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted waiting for a query", ie);
+        }
+        catch (ExecutionException ee)
+        {
+            Throwable cause = ee.getCause();
+            if (cause instanceof SQLException)
+            {
+                SQLException sqle = (SQLException)cause;
+                throw new SQLException( sqle.getMessage(), sqle.getSQLState(), sqle.getErrorCode(), sqle );
+            }
+            else if (cause instanceof RuntimeException)
+            {
+                throw (RuntimeException)cause;
+            }
+            throw new SQLException(cause);
+        }
+        finally
+        {
+            if (!done)
+            {
+                for (int i=0; i<futures.size(); i++)
+                {
+                    futures.get(i).cancel(true);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the number of queries running or waiting to run.
+     *
+     * @return int
+     */
+    public int getPendingCount()
+    {
+        return _executor.getActiveCount() + _executor.getQueue().size();
+    }
+
+    /**
+     * Stops taking new work and lets the threads finish what has been submitted.
+     */
+    public void shutdown()
+    {
+        _executor.shutdown();
+    }
+
+    public String toString()
+    {
+        return "[Threads: " + _executor.getMaximumPoolSize() + ", Pending: " + getPendingCount() + "]";
+    }
+}
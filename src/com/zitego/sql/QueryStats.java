@@ -0,0 +1,326 @@
+package com.zitego.sql;
+
+import com.zitego.logging.Logger;
+import com.zitego.pool.PoolMetrics.Histogram;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+/**
+ * Times the statements prepared through DBHandles and aggregates the times by sql fingerprint: the
+ * sql with literals replaced by ? and white space collapsed, so that the same query with different
+ * values is counted together. For each fingerprint, the number of executions, execute and fetch time
+ * histograms (in microseconds) and the number of rows are kept. Statements that take longer than
+ * the slow threshold are logged.
+ * <p>
+ * Set with DBConfig.setQueryStats(). For example, to log queries slower than half a second and
+ * print the ten that took the most time:<br>
+ * <pre>
+ *  config.setQueryStats( new QueryStats(500, Logger.getInstance("slow_sql")) );
+ *  ...
+ *  System.out.println( config.getQueryStats().getTop(10) );
+ * </pre>
+ * The execute time is how long execute, executeQuery, executeUpdate or executeBatch took. The fetch
+ * time is how long was spent in ResultSet.next() until the result set was closed.
+ *
+ * @author John Glorioso
+ * @version $Id$
+ */
+public class QueryStats
+{
+    /** The most fingerprints to keep. Anything new after that is counted under OTHER. */
+    public static final int MAX_FINGERPRINTS = 1000;
+    /** The fingerprint for queries over MAX_FINGERPRINTS. */
+    public static final String OTHER = "(other)";
+    /** The time (in milliseconds) above which a statement is logged. -1 means never. */
+    protected long _slowThreshold;
+    /** The logger for slow statements. Null means System.out. */
+    protected Logger _logger;
+    /** The stats by fingerprint. */
+    protected ConcurrentHashMap<String, Stat> _stats;
+    /** The stats by sql, so that the same sql is only fingerprinted once. */
+    protected ConcurrentHashMap<String, Stat> _bySql;
+
+    /**
+     * Creates query stats that log statements slower than the given threshold to the given logger.
+     *
+     * @param long The slow threshold in milliseconds. -1 turns logging off.
+     * @param Logger The logger. If null, System.out is used.
+     */
+    public QueryStats(long slowThreshold, Logger logger)
+    {
+        _slowThreshold = slowThreshold;
+        _logger = logger;
+        _stats = new ConcurrentHashMap<String, Stat>();
+        _bySql = new ConcurrentHashMap<String, Stat>();
+    }
+
+    /**
+     * Records one execution of the given sql and logs it if it was slow.
+     *
+     * @param String The sql.
+     * @param long The execute time in nanoseconds.
+     * @param long The fetch time in nanoseconds.
+     * @param long The number of rows read or updated.
+     */
+    public void record(String sql, long executeNanos, long fetchNanos, long rows)
+    {
+        Stat stat = _bySql.get(sql);
+        if (stat == null)
+        {
+            String fingerprint = fingerprint(sql);
+            stat = _stats.get(fingerprint);
+            if (stat == null)
+            {
+                if (_stats.size() >= MAX_FINGERPRINTS) fingerprint = OTHER;
+                stat = new Stat(fingerprint);
+                Stat old = _stats.putIfAbsent(fingerprint, stat);
+                if (old != null) stat = old;
+            }
+            if (_bySql.size() < MAX_FINGERPRINTS * 4) _bySql.put(sql, stat);
+        }
+        stat.record(executeNanos, fetchNanos, rows);
+
+        if ( _slowThreshold >= 0 && (executeNanos + fetchNanos) / 1000000l > _slowThreshold )
+        {
+            String entry = new StringBuffer("Slow query: execute=").append(executeNanos / 1000000l)
+                .append(" ms, fetch=").append(fetchNanos / 1000000l).append(" ms, rows=").append(rows)
+                .append(": ").append(sql).toString();
+            if (_logger == null) System.out.println(entry);
+            else _logger.log(entry, Level.WARNING);
+        }
+    }
+
+    /**
+     * Returns the stats for the given sql, or null if it has not been run.
+     *
+     * @param String The sql.
+     * @return Stat
+     */
+    public Stat getStat(String sql)
+    {
+        return _stats.get( fingerprint(sql) );
+    }
+
+    /**
+     * Returns the stats for every fingerprint.
+     *
+     * @return List
+     */
+    public List<Stat> getStats()
+    {
+        return new ArrayList<Stat>( _stats.values() );
+    }
+
+    /**
+     * Returns the stats for the given number of fingerprints that took the most total time.
+     *
+     * @param int The number to return.
+     * @return List
+     */
+    public List<Stat> getTop(int count)
+    {
+        List<Stat> ret = getStats();
+        Collections.sort
+        (
+            ret,
+            new Comparator<Stat>()
+            {
+                public int compare(Stat a, Stat b)
+                {
+                    long ta = a.getTotalTime();
+                    long tb = b.getTotalTime();
+                    return (ta > tb ? -1 : (ta < tb ? 1 : 0));
+                }
+            }
+        );
+        return (ret.size() > count ? ret.subList(0, count) : ret);
+    }
+
+    /**
+     * Clears all of the stats.
+     */
+    public void reset()
+    {
+        _bySql.clear();
+        _stats.clear();
+    }
+
+    /**
+     * Returns the slow threshold in milliseconds.
+     *
+     * @return long
+     */
+    public long getSlowThreshold()
+    {
+        return _slowThreshold;
+    }
+
+    /**
+     * Sets the slow threshold in milliseconds. -1 turns logging off.
+     *
+     * @param long The threshold.
+     */
+    public void setSlowThreshold(long threshold)
+    {
+        _slowThreshold = threshold;
+    }
+
+    /**
+     * Returns the given sql with quoted strings and numbers replaced by ?, lists of ? in parentheses
+     * collapsed to one, and runs of white space collapsed to one space.
+     *
+     * @param String The sql.
+     * @return String
+     */
+    public static String fingerprint(String sql)
+    {
+        int len = sql.length();
+        StringBuilder ret = new StringBuilder(len);
+        for (int i=0; i<len; i++)
+        {
+            char c = sql.charAt(i);
+            if (c == '\'' || c == '"')
+            {
+                //Skip to the closing quote, allowing doubled and escaped quotes
+                int j = i + 1;
+                while (j < len)
+                {
+                    char d = sql.charAt(j);
+                    if (d == '\\') j++;
+                    else if (d == c && j+1 < len && sql.charAt(j+1) == c) j++;
+                    else if (d == c) break;
+                    j++;
+                }
+                ret.append('?');
+                i = j;
+            }
+            else if ( Character.isDigit(c) && (ret.length() == 0 || !isWordChar(ret.charAt(ret.length()-1))) )
+            {
+                int j = i;
+                while ( j+1 < len && (Character.isDigit(sql.charAt(j+1)) || sql.charAt(j+1) == '.') ) j++;
+                ret.append('?');
+                i = j;
+            }
+            else if ( Character.isWhitespace(c) )
+            {
+                if (ret.length() > 0 && ret.charAt(ret.length()-1) != ' ') ret.append(' ');
+            }
+            else
+            {
+                ret.append(c);
+            }
+        }
+
+        //Collapse (?, ?, ?) lists
+        String out = ret.toString().trim();
+        if (out.indexOf("?,") == -1) return out;
+        return out.replaceAll("\\?(\\s?,\\s?\\?)+", "?+");
+    }
+
+    private static boolean isWordChar(char c)
+    {
+        return ( Character.isLetterOrDigit(c) || c == '_' || c == '.' || c == '`' );
+    }
+
+    public String toString()
+    {
+        return "[Fingerprints: " + _stats.size() + ", Slow Threshold: " + _slowThreshold + " ms]";
+    }
+
+    /**
+     * The stats for one fingerprint.
+     */
+    public static class Stat
+    {
+        private final String _fingerprint;
+        private final Histogram _execute = new Histogram();
+        private final Histogram _fetch = new Histogram();
+        private final AtomicLong _rows = new AtomicLong();
+
+        Stat(String fingerprint)
+        {
+            _fingerprint = fingerprint;
+        }
+
+        void record(long executeNanos, long fetchNanos, long rows)
+        {
+            _execute.record(executeNanos / 1000l);
+            _fetch.record(fetchNanos / 1000l);
+            if (rows > 0) _rows.addAndGet(rows);
+        }
+
+        /**
+         * Returns the fingerprint.
+         *
+         * @return String
+         */
+        public String getFingerprint()
+        {
+            return _fingerprint;
+        }
+
+        /**
+         * Returns the number of executions.
+         *
+         * @return long
+         */
+        public long getCount()
+        {
+            return _execute.getCount();
+        }
+
+        /**
+         * Returns the execute times in microseconds.
+         *
+         * @return Histogram
+         */
+        public Histogram getExecuteTime()
+        {
+            return _execute;
+        }
+
+        /**
+         * Returns the fetch times in microseconds.
+         *
+         * @return Histogram
+         */
+        public Histogram getFetchTime()
+        {
+            return _fetch;
+        }
+
+        /**
+         * Returns the total rows read or updated.
+         *
+         * @return long
+         */
+        public long getRowCount()
+        {
+            return _rows.get();
+        }
+
+        /**
+         * Returns the total execute and fetch time in microseconds.
+         *
+         * @return long
+         */
+        public long getTotalTime()
+        {
+            return _execute.getSum() + _fetch.getSum();
+        }
+
+        public String toString()
+        {
+            StringBuffer ret = new StringBuffer()
+                .append("[").append(_fingerprint).append(" Count: ").append( getCount() )
+                .append(", Rows: ").append( getRowCount() ).append(", Execute (us): ").append(_execute)
+                .append(", Fetch (us): ").append(_fetch).append("]");
+            return ret.toString();
+        }
+    }
+}
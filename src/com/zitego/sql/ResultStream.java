@@ -0,0 +1,159 @@
+package com.zitego.sql;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * The rows of a streamed query, read forward one at a time without holding the whole result in memory.
+ * Each call to next() moves the same ResultSet to the next row. The stream closes its statement when the
+ * last row has been read, and must be closed by the caller if it stops early.
+ * <p>
+ * For example:<br>
+ * <pre>
+ *  ResultStream rows = db.stream(query);
+ *  try
+ *  {
+ *      while ( rows.hasNext() )
+ *      {
+ *          ResultSet rs = rows.next();
+ *          ...
+ *      }
+ *  }
+ *  finally
+ *  {
+ *      rows.close();
+ *  }
+ * </pre>
+ * SQLExceptions thrown while moving to the next row are wrapped in an IllegalStateException by the
+ * Iterator methods. Use nextRow() to get them directly.
+ *
+ * @author John Glorioso
+ * @version $Id$
+ * @see DBHandle#stream(PreparedStatementSupport)
+ */
+public class ResultStream implements Iterator<ResultSet>, AutoCloseable
+{
+    /** The statement being read. */
+    protected java.sql.PreparedStatement _pst;
+    /** The result set being read. Null once closed. */
+    protected ResultSet _rs;
+    /** Whether the result set has been moved to a row that has not been returned yet. */
+    private boolean _ahead = false;
+    /** The number of rows read. */
+    private int _rowCount = 0;
+
+    /**
+     * Executes the given statement and streams its results.
+     *
+     * @param pst The statement with its parameters bound.
+     * @throws SQLException if the query fails.
+     */
+    ResultStream(java.sql.PreparedStatement pst) throws SQLException
+    {
+        _pst = pst;
+        _rs = pst.executeQuery();
+    }
+
+    /**
+     * Moves to the next row and returns whether there was one. The stream is closed after the last row.
+     *
+     * @return boolean
+     * @throws SQLException if an error occurs reading the row.
+     */
+    public boolean nextRow() throws SQLException
+    {
+        if (_ahead)
+        {
+            _ahead = false;
+            return true;
+        }
+        if (_rs == null) return false;
+        try
+        {
+            if ( _rs.next() )
+            {
+                _rowCount++;
+                return true;
+            }
+        }
+        catch (SQLException sqle)
+        {
+            close();
+            throw sqle;
+        }
+        close();
+        return false;
+    }
+
+    public boolean hasNext()
+    {
+        if (!_ahead)
+        {
+            try
+            {
+                _ahead = nextRow();
+            }
+            catch (SQLException sqle)
+            {
+                throw new IllegalStateException("Could not read row " + (_rowCount + 1), sqle);
+            }
+        }
+        return _ahead;
+    }
+
+    public ResultSet next()
+    {
+        if ( !hasNext() ) throw new NoSuchElementException();
+        _ahead = false;
+        return _rs;
+    }
+
+    public void remove()
+    {
+        throw new UnsupportedOperationException("remove is not supported");
+    }
+
+    /**
+     * Returns the result set positioned on the current row.
+     *
+     * @return ResultSet
+     */
+    public ResultSet getResultSet()
+    {
+        return _rs;
+    }
+
+    /**
+     * Returns the number of rows read so far.
+     *
+     * @return int
+     */
+    public int getRowCount()
+    {
+        return _rowCount;
+    }
+
+    /**
+     * Returns whether the stream has been closed.
+     *
+     * @return boolean
+     */
+    public boolean isClosed()
+    {
+        return (_rs == null);
+    }
+
+    /**
+     * Closes the result set and the statement. This does nothing if the stream is already closed.
+     *
+     * @throws SQLException if an error occurs closing the statement.
+     */
+    public void close() throws SQLException
+    {
+        if (_rs == null) return;
+        _rs = null;
+        _pst.close();
+    }
+}
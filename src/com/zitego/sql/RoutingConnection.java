@@ -0,0 +1,154 @@
+package com.zitego.sql;
+
+import com.zitego.pool.ObjectPool;
+import java.sql.SQLException;
+
+/**
+ * A connection from a RoutingPool. While it is read only and not in a transaction, it runs on a
+ * replica. Otherwise, it runs on the primary, so transactions and writes always go to the primary.
+ * The connection moves between the two when setReadOnly or setAutoCommit is called. It borrows a
+ * physical connection from each side the first time it needs one and holds both until it is closed,
+ * so statements prepared before a move stay usable. Read only is not set on the physical connections.
+ *
+ * @author John Glorioso
+ * @version $Id$
+ */
+public class RoutingConnection extends Connection
+{
+    /** The routing pool. */
+    protected RoutingPool _router;
+    /** The pool item of the primary connection. Null until needed. */
+    protected ObjectPool.ObjectPoolItem _primaryItem;
+    /** The replica connection. Null until needed or if no replica could give one. */
+    protected RoutingPool.Lease _replica;
+    /** Whether the connection is read only. */
+    protected boolean _readOnly;
+    /** Whether the connection is in auto commit mode. */
+    protected boolean _autoCommit = true;
+
+    /**
+     * Creates a connection from the given routing pool that starts out on a replica if readOnly is true.
+     *
+     * @param router The routing pool.
+     * @param readOnly Whether the connection is read only.
+     * @throws SQLException if a connection could not be had.
+     */
+    RoutingConnection(RoutingPool router, boolean readOnly) throws SQLException
+    {
+        super( (java.sql.Connection)null );
+        _router = router;
+        _readOnly = readOnly;
+        route();
+    }
+
+    /**
+     * Moves to a replica if the connection is read only and not in a transaction, and to the primary
+     * otherwise. If no replica can give a connection, the primary is used.
+     *
+     * @throws SQLException if a connection could not be had.
+     */
+    protected void route() throws SQLException
+    {
+        if (_readOnly && _autoCommit)
+        {
+            if (_replica == null) _replica = _router.borrowReplica();
+            if (_replica != null)
+            {
+                use(_replica.replica.pool, _replica.item);
+                return;
+            }
+        }
+
+        if (_primaryItem == null)
+        {
+            try
+            {
+                _primaryItem = _router.getPrimary().getItem();
+            }
+            catch (SQLException sqle)
+            {
+                throw sqle;
+            }
+            catch (Exception e)
+            {
+                throw new SQLException("Could not get a connection from the primary pool of " + _router.getName(), e);
+            }
+        }
+        use(_router.getPrimary(), _primaryItem);
+        if ( _conn.getAutoCommit() != _autoCommit ) _conn.setAutoCommit(_autoCommit);
+    }
+
+    private void use(ObjectPool pool, ObjectPool.ObjectPoolItem item)
+    {
+        _pool = pool;
+        _item = item;
+        _conn = (java.sql.Connection)item.item;
+    }
+
+    /**
+     * Returns whether the connection is running on a replica.
+     *
+     * @return boolean
+     */
+    public boolean isOnReplica()
+    {
+        return (_replica != null && _item == _replica.item);
+    }
+
+    @Override
+    public boolean isReadOnly() throws SQLException
+    {
+        return _readOnly;
+    }
+
+    @Override
+    public void setReadOnly(boolean flag) throws SQLException
+    {
+        _readOnly = flag;
+        route();
+    }
+
+    @Override
+    public boolean getAutoCommit() throws SQLException
+    {
+        return _autoCommit;
+    }
+
+    @Override
+    public void setAutoCommit(boolean flag) throws SQLException
+    {
+        // Finish any transaction on the primary before moving off of it.
+        if (flag && _primaryItem != null && _item == _primaryItem) _conn.setAutoCommit(true);
+        _autoCommit = flag;
+        route();
+    }
+
+    @Override
+    public void close() throws SQLException
+    {
+        if (_beenClosed) return;
+        _beenClosed = true;
+        try
+        {
+            if (_primaryItem != null)
+            {
+                java.sql.Connection primary = (java.sql.Connection)_primaryItem.item;
+                try
+                {
+                    primary.commit();
+                }
+                catch (SQLException ignored) { }
+                try
+                {
+                    if ( !primary.getAutoCommit() ) primary.setAutoCommit(true);
+                }
+                catch (SQLException ignored) { }
+                _router.getPrimary().returnItem(_primaryItem);
+            }
+        }
+        finally
+        {
+            if (_replica != null) _router.returnReplica(_replica);
+        }
+    }
+}
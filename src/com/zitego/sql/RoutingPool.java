@@ -0,0 +1,339 @@
+package com.zitego.sql;
+
+import com.zitego.pool.ObjectPool;
+import com.zitego.pool.ObjectPoolManager;
+import com.zitego.pool.PoolTimeoutException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Groups a primary connection pool with any number of replica pools. Connections from a routing pool
+ * are RoutingConnections, which run read only work that is not in a transaction on a replica and
+ * everything else on the primary. Replicas are picked round robin or by the fewest connections out.
+ * <p>
+ * A replica that cannot hand out a connection is ejected until the next health check finds it working.
+ * Health checks run every checkInterval seconds on a thread of the routing pool's own, since they connect
+ * to the replicas and must not hold up the maintenance shared by all pools. Each one opens a connection
+ * to every replica with its ConnectionPoolManager and validates it. When no replica is healthy, read only work
+ * runs on the primary. Replica pools should block, since a replica that times out is only skipped for
+ * that one connection, while any other error ejects it.
+ * <p>
+ * Routing pools are created with ConnectionFactory.createRoutingPool.
+ *
+ * @author John Glorioso
+ * @version $Id$
+ */
+public class RoutingPool
+{
+    /** Pick replicas in turn. */
+    public static final int ROUND_ROBIN = 1;
+    /** Pick the replica with the fewest connections out. */
+    public static final int LEAST_OUTSTANDING = 2;
+    /** The name of the routing pool. */
+    protected String _name;
+    /** The primary pool. */
+    protected ObjectPool _primary;
+    /** The replicas. */
+    protected Replica[] _replicas;
+    /** How replicas are picked. */
+    protected int _balance;
+    /** The next replica for round robin. */
+    protected AtomicInteger _next = new AtomicInteger();
+    /** Runs the health checks. */
+    protected ScheduledThreadPoolExecutor _checker;
+
+    /**
+     * Creates a routing pool.
+     *
+     * @param String The name of the routing pool.
+     * @param ObjectPool The primary pool.
+     * @param String[] The names of the replica pools.
+     * @param ObjectPool[] The replica pools.
+     * @param int ROUND_ROBIN or LEAST_OUTSTANDING.
+     * @param long Seconds between replica health checks. 0 or less turns them off.
+     */
+    public RoutingPool(String name, ObjectPool primary, String[] replicaNames, ObjectPool[] replicas, int balance,
+                       long checkInterval)
+    {
+        if (primary == null) throw new IllegalArgumentException("primary pool cannot be null in RoutingPool " + name);
+        _name = name;
+        _primary = primary;
+        _balance = balance;
+        _replicas = new Replica[replicas.length];
+        for (int i=0; i<replicas.length; i++)
+        {
+            if (replicas[i] == null) throw new IllegalArgumentException("replica pool " + replicaNames[i] + " does not exist");
+            _replicas[i] = new Replica(replicaNames[i], replicas[i]);
+        }
+
+        if (checkInterval > 0 && _replicas.length > 0)
+        {
+            _checker = new ScheduledThreadPoolExecutor
+            (
+                1,
+                new ThreadFactory()
+                {
+                    public Thread newThread(Runnable r)
+                    {
+                        Thread t = new Thread(r, "RoutingPool-" + _name);
+                        t.setDaemon(true);
+                        return t;
+                    }
+                }
+            );
+            _checker.scheduleWithFixedDelay
+            (
+                new Runnable()
+                {
+                    public void run()
+                    {
+                        try
+                        {
+                            checkReplicas();
+                        }
+                        catch (Throwable t)
+                        {
+                            t.printStackTrace(System.err);
+                        }
+                    }
+                },
+                checkInterval, checkInterval, TimeUnit.SECONDS
+            );
+        }
+    }
+
+    /**
+     * Returns a connection that starts out on a replica if readOnly is true, and on the primary otherwise.
+     *
+     * @param boolean Whether the connection is for read only work.
+     * @return RoutingConnection
+     * @throws Exception if a connection could not be had.
+     */
+    public RoutingConnection getConnection(boolean readOnly) throws Exception
+    {
+        return new RoutingConnection(this, readOnly);
+    }
+
+    /**
+     * Returns the primary pool.
+     *
+     * @return ObjectPool
+     */
+    public ObjectPool getPrimary()
+    {
+        return _primary;
+    }
+
+    /**
+     * Returns the replicas.
+     *
+     * @return Replica[]
+     */
+    public Replica[] getReplicas()
+    {
+        return _replicas;
+    }
+
+    /**
+     * Returns the name of the routing pool.
+     *
+     * @return String
+     */
+    public String getName()
+    {
+        return _name;
+    }
+
+    /**
+     * Borrows a connection from a healthy replica. Replicas that fail are ejected and the next one is
+     * tried. Returns null if no replica could give one, in which case the caller should use the primary.
+     *
+     * @return Lease
+     */
+    protected Lease borrowReplica()
+    {
+        for (int tries=0; tries<_replicas.length; tries++)
+        {
+            Replica replica = chooseReplica();
+            if (replica == null) return null;
+
+            replica.outstanding.incrementAndGet();
+            try
+            {
+                return new Lease( replica, replica.pool.getItem() );
+            }
+            catch (PoolTimeoutException pte)
+            {
+                replica.outstanding.decrementAndGet();
+            }
+            catch (Exception e)
+            {
+                replica.outstanding.decrementAndGet();
+                eject(replica, e);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the healthy replica to use next, or null if there are none.
+     *
+     * @return Replica
+     */
+    protected Replica chooseReplica()
+    {
+        Replica ret = null;
+        int count = _replicas.length;
+        if (_balance == LEAST_OUTSTANDING)
+        {
+            int fewest = Integer.MAX_VALUE;
+            // Start at a rotating offset so ties are spread across the replicas.
+            int start = _next.getAndIncrement() & Integer.MAX_VALUE;
+            for (int i=0; i<count; i++)
+            {
+                Replica replica = _replicas[(start + i) % count];
+                int outstanding = replica.outstanding.get();
+                if (replica.healthy && outstanding < fewest)
+                {
+                    ret = replica;
+                    fewest = outstanding;
+                }
+            }
+        }
+        else
+        {
+            for (int i=0; i<count && ret == null; i++)
+            {
+                Replica replica = _replicas[(_next.getAndIncrement() & Integer.MAX_VALUE) % count];
+                if (replica.healthy) ret = replica;
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Returns a connection borrowed with borrowReplica.
+     *
+     * @param Lease The lease.
+     */
+    protected void returnReplica(Lease lease)
+    {
+        lease.replica.outstanding.decrementAndGet();
+        lease.replica.pool.returnItem(lease.item);
+    }
+
+    /**
+     * Stops sending work to the given replica until a health check finds it working.
+     *
+     * @param Replica The replica.
+     * @param Exception Why, or null.
+     */
+    protected void eject(Replica replica, Exception cause)
+    {
+        if (!replica.healthy) return;
+        replica.healthy = false;
+        replica.pool.getManager().debug("Ejected replica " + replica.name + " from " + _name + ": " + cause, 0);
+    }
+
+    /**
+     * Opens a connection to each replica with its manager and validates it, ejecting the replicas that
+     * fail and bringing back the ones that pass.
+     */
+    protected void checkReplicas()
+    {
+        for (int i=0; i<_replicas.length; i++)
+        {
+            Replica replica = _replicas[i];
+            ObjectPoolManager mgr = replica.pool.getManager();
+            Exception cause = null;
+            boolean ok = false;
+            try
+            {
+                Object conn = mgr.createPoolObject();
+                try
+                {
+                    ok = mgr.validate(conn);
+                }
+                finally
+                {
+                    mgr.expire(conn);
+                }
+            }
+            catch (Exception e)
+            {
+                cause = e;
+            }
+
+            if (!ok)
+            {
+                eject(replica, cause);
+            }
+            else if (!replica.healthy)
+            {
+                replica.healthy = true;
+                mgr.debug("Replica " + replica.name + " of " + _name + " is back", 0);
+            }
+        }
+    }
+
+    /**
+     * Stops the health checks. The primary and replica pools are left alone.
+     */
+    public void destroy()
+    {
+        if (_checker != null) _checker.shutdown();
+    }
+
+    public String toString()
+    {
+        StringBuffer ret = new StringBuffer("[Primary: ").append( _primary.getState() );
+        for (int i=0; i<_replicas.length; i++)
+        {
+            ret.append(", ").append(_replicas[i]);
+        }
+        return ret.append("]").toString();
+    }
+
+    /**
+     * A replica pool along with its health and the number of connections out.
+     */
+    public static class Replica
+    {
+        /** The pool name. */
+        public final String name;
+        /** The pool. */
+        public final ObjectPool pool;
+        /** The number of connections borrowed and not yet returned. */
+        public final AtomicInteger outstanding = new AtomicInteger();
+        /** Whether work is being sent to the replica. */
+        public volatile boolean healthy = true;
+
+        Replica(String name, ObjectPool pool)
+        {
+            this.name = name;
+            this.pool = pool;
+        }
+
+        public String toString()
+        {
+            return name + ": " + (healthy ? "healthy" : "ejected") + ", outstanding " + outstanding.get();
+        }
+    }
+
+    /**
+     * A connection borrowed from a replica.
+     */
+    protected static class Lease
+    {
+        public final Replica replica;
+        public final ObjectPool.ObjectPoolItem item;
+
+        Lease(Replica replica, ObjectPool.ObjectPoolItem item)
+        {
+            this.replica = replica;
+            this.item = item;
+        }
+    }
+}
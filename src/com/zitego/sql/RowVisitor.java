@@ -0,0 +1,22 @@
+package com.zitego.sql;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Receives the rows of a streamed query one at a time. See DBHandle.stream(PreparedStatementSupport, RowVisitor).
+ *
+ * @author John Glorioso
+ * @version $Id$
+ */
+public interface RowVisitor
+{
+    /**
+     * Handles the row the given ResultSet is positioned on. The ResultSet must not be moved or closed.
+     *
+     * @param ResultSet The result set positioned on the row.
+     * @return boolean Whether to keep reading rows.
+     * @throws SQLException if an error occurs reading the row.
+     */
+    public boolean visit(ResultSet row) throws SQLException;
+}
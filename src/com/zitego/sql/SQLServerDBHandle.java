@@ -64,10 +64,54 @@ public class SQLServerDBHandle extends DBHandle
     }
 
     /**
-     * This Method can not be utilized for MySQL it is only here as a requirement of implementation.
+     * Reserves ids by moving the sequence forward and reading the new value back in the same update
+     * with an OUTPUT clause. If the sequence does not exist yet, it is inserted. If another caller
+     * inserts it first, the update is tried again.
+     *
+     * @param table The sequence table.
+     * @param name The sequence name.
+     * @param count The number of ids to reserve.
+     * @return long
+     * @throws SQLException if a problem occurs.
      */
-    public long getNextId(String name) throws SQLException
+    protected long reserveIds(String table, String name, int count) throws SQLException
     {
-        throw new SQLException("getNextId() can not be called when for a MySQL database.");
+        for (int tries=0; tries<2; tries++)
+        {
+            PreparedStatement pst = prepareStatement
+            (
+                "UPDATE " + table + " SET next_id = next_id + ? OUTPUT INSERTED.next_id WHERE name = ?"
+            );
+            try
+            {
+                pst.setInt(1, count);
+                pst.setString(2, name);
+                ResultSet rs = pst.executeQuery();
+                if ( rs.next() ) return rs.getLong(1);
+            }
+            finally
+            {
+                pst.close();
+            }
+
+            pst = prepareStatement("INSERT INTO " + table + " (name, next_id) VALUES (?, ?)");
+            try
+            {
+                pst.setString(1, name);
+                pst.setLong(2, 1l + count);
+                pst.executeUpdate();
+                return 1l + count;
+            }
+            catch (SQLException sqle)
+            {
+                //Another caller created the sequence first, so reserve from it
+                if (tries > 0) throw sqle;
+            }
+            finally
+            {
+                pst.close();
+            }
+        }
+        throw new SQLException("Could not reserve ids for " + name);
     }
 }
\ No newline at end of file
@@ -0,0 +1,190 @@
+package com.zitego.sql;
+
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A least recently used cache of prepared statements for a single physical connection. A statement
+ * is taken out of the cache while it is in use and put back when it is closed, so the same statement
+ * is never handed to two callers at once. Statements pushed out of the cache are closed.
+ * <p>
+ * Pooled connections get a cache when the pool is created with statementcache=<size> in its
+ * configuration string. See ConnectionFactory.
+ *
+ * @author John Glorioso
+ * @version $Id$
+ */
+public class StatementCache
+{
+    /** The most statements to keep. */
+    protected int _maxSize;
+    /** The idle statements in least recently used order. */
+    protected LinkedHashMap<Key, java.sql.PreparedStatement> _statements;
+    private long _hits = 0;
+    private long _misses = 0;
+
+    /**
+     * Creates a statement cache that holds up to the given number of statements.
+     *
+     * @param maxSize The most statements to keep.
+     */
+    public StatementCache(int maxSize)
+    {
+        _maxSize = maxSize;
+        _statements = new LinkedHashMap<Key, java.sql.PreparedStatement>(16, 0.75f, true)
+        {
+            protected boolean removeEldestEntry(Map.Entry<Key, java.sql.PreparedStatement> eldest)
+            {
+                if (size() <= _maxSize) return false;
+                closeQuietly( eldest.getValue() );
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Takes the statement for the given key out of the cache. Returns null if there is not one.
+     *
+     * @param key The statement key.
+     * @return java.sql.PreparedStatement
+     */
+    public synchronized java.sql.PreparedStatement take(Key key)
+    {
+        java.sql.PreparedStatement pst = _statements.remove(key);
+        if (pst != null) _hits++;
+        else _misses++;
+        return pst;
+    }
+
+    /**
+     * Puts a statement that is no longer in use back in the cache. Its parameters are cleared and its
+     * fetch size is reset first. The statement is closed instead if it cannot be reset, if it is not
+     * poolable, or if another statement for the same key was put back first.
+     *
+     * @param key The statement key.
+     * @param pst The statement.
+     */
+    public void release(Key key, java.sql.PreparedStatement pst)
+    {
+        try
+        {
+            if ( !pst.isPoolable() )
+            {
+                pst.close();
+                return;
+            }
+            pst.clearParameters();
+            pst.clearWarnings();
+            pst.setFetchSize(0);
+        }
+        catch (SQLException sqle)
+        {
+            closeQuietly(pst);
+            return;
+        }
+
+        synchronized (this)
+        {
+            if ( !_statements.containsKey(key) )
+            {
+                _statements.put(key, pst);
+                return;
+            }
+        }
+        closeQuietly(pst);
+    }
+
+    /**
+     * Closes all of the cached statements.
+     */
+    public synchronized void clear()
+    {
+        for (Iterator<java.sql.PreparedStatement> i=_statements.values().iterator(); i.hasNext();)
+        {
+            closeQuietly( i.next() );
+        }
+        _statements.clear();
+    }
+
+    /**
+     * Returns the number of idle statements in the cache.
+     *
+     * @return int
+     */
+    public synchronized int size()
+    {
+        return _statements.size();
+    }
+
+    /**
+     * Returns the number of times a statement was found in the cache.
+     *
+     * @return long
+     */
+    public synchronized long getHitCount()
+    {
+        return _hits;
+    }
+
+    /**
+     * Returns the number of times a statement had to be prepared.
+     *
+     * @return long
+     */
+    public synchronized long getMissCount()
+    {
+        return _misses;
+    }
+
+    private static void closeQuietly(java.sql.PreparedStatement pst)
+    {
+        try { pst.close(); } catch (SQLException sqle) { }
+    }
+
+    public String toString()
+    {
+        StringBuffer ret = new StringBuffer()
+            .append("[Statements: ").append( size() ).append(", Max: ").append(_maxSize)
+            .append(", Hits: ").append( getHitCount() ).append(", Misses: ").append( getMissCount() ).append("]");
+        return ret.toString();
+    }
+
+    /**
+     * Identifies a prepared statement by its sql, result set type and result set concurrency.
+     */
+    public static class Key
+    {
+        private String _sql;
+        private int _type;
+        private int _concurrency;
+        private int _hash;
+
+        public Key(String sql, int resultSetType, int resultSetConcurrency)
+        {
+            _sql = sql;
+            _type = resultSetType;
+            _concurrency = resultSetConcurrency;
+            _hash = (sql.hashCode() * 31 + resultSetType) * 31 + resultSetConcurrency;
+        }
+
+        public boolean equals(Object obj)
+        {
+            if (obj == this) return true;
+            if ( !(obj instanceof Key) ) return false;
+            Key key = (Key)obj;
+            return (_hash == key._hash && _type == key._type && _concurrency == key._concurrency && _sql.equals(key._sql));
+        }
+
+        public int hashCode()
+        {
+            return _hash;
+        }
+
+        public String toString()
+        {
+            return _sql;
+        }
+    }
+}
@@ -0,0 +1,268 @@
+package com.zitego.sql;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A unit of work that binds one connection and one transaction to the current thread. While a context is
+ * open for a database, every DBHandle for that database that connects on the thread uses its connection
+ * instead of borrowing another one from the pool, and their transactions become part of the context's.
+ * Nested calls to begin() on the same thread join the open context. Only the outermost level commits or
+ * rolls back, so service methods can each begin and commit their own unit of work and still run as one
+ * transaction when called from one another.
+ * <p>
+ * Every begin() must be matched by an end() in a finally block, with commit() called before it if the
+ * work at that level succeeded. For example:<br>
+ * <pre>
+ *  TransactionContext tx = TransactionContext.begin(config);
+ *  try
+ *  {
+ *      account.save();
+ *      billing.charge(account);
+ *      tx.commit();
+ *  }
+ *  finally
+ *  {
+ *      tx.end();
+ *  }
+ * </pre>
+ * If any level ends without committing, or a joined handle ends its transaction with a rollback, the whole
+ * context is rolled back and the outermost commit() throws an SQLException. Handles that were already
+ * connected when the context began keep their own connections.
+ *
+ * @author John Glorioso
+ * @version $Id$
+ */
+public class TransactionContext
+{
+    /** The open contexts of each thread by database. */
+    private static final ThreadLocal<Map<String, TransactionContext>> _contexts = new ThreadLocal<Map<String, TransactionContext>>();
+    /** The database the context is bound to. */
+    protected String _key;
+    /** The handle that owns the connection. */
+    protected DBHandle _db;
+    /** Whether each open level has committed, outermost first. */
+    protected List<Boolean> _levels;
+    /** Whether the context must be rolled back. */
+    protected boolean _rollbackOnly = false;
+    /** The tables written in the transaction, to drop from the QueryCache once it commits. */
+    protected Set<String> _tables;
+    /** The entities saved in the transaction, to put in the EntityCache once it commits. */
+    protected List<DatabaseEntity> _entities;
+
+    /**
+     * Opens a context for the given config on the current thread, or joins the one that is already open.
+     *
+     * @param DBConfig The config of the database.
+     * @return TransactionContext
+     * @throws SQLException if a connection cannot be made.
+     */
+    public static TransactionContext begin(DBConfig config) throws SQLException
+    {
+        TransactionContext ret = current(config);
+        if (ret == null)
+        {
+            ret = new TransactionContext(config);
+            Map<String, TransactionContext> contexts = _contexts.get();
+            if (contexts == null)
+            {
+                contexts = new HashMap<String, TransactionContext>();
+                _contexts.set(contexts);
+            }
+            contexts.put(ret._key, ret);
+        }
+        ret._levels.add(Boolean.FALSE);
+        return ret;
+    }
+
+    /**
+     * Returns the context open for the given config on the current thread, or null if there is none.
+     *
+     * @param DBConfig The config of the database.
+     * @return TransactionContext
+     */
+    public static TransactionContext current(DBConfig config)
+    {
+        Map<String, TransactionContext> contexts = _contexts.get();
+        return (contexts == null ? null : contexts.get( getKey(config) ));
+    }
+
+    /**
+     * Connects a handle for the given config and begins its transaction.
+     *
+     * @param DBConfig The config.
+     * @throws SQLException if a connection cannot be made.
+     */
+    protected TransactionContext(DBConfig config) throws SQLException
+    {
+        _key = getKey(config);
+        _levels = new ArrayList<Boolean>();
+        _tables = new LinkedHashSet<String>();
+        _entities = new ArrayList<DatabaseEntity>();
+        _db = DBHandleFactory.getDBHandle(config);
+        _db.connect();
+        try
+        {
+            _db.beginTransaction();
+        }
+        catch (SQLException sqle)
+        {
+            _db.disconnect();
+            throw sqle;
+        }
+    }
+
+    /**
+     * Marks the work at the current level as successful. At the outermost level, this commits the
+     * transaction, unless it must be rolled back, in which case it is rolled back and an SQLException is
+     * thrown.
+     *
+     * @throws SQLException if the transaction had to be rolled back or the commit fails.
+     * @throws IllegalStateException if the context has ended.
+     */
+    public void commit() throws SQLException
+    {
+        int depth = getDepth();
+        if (depth == 0) throw new IllegalStateException("The transaction context has already ended.");
+        _levels.set(depth - 1, Boolean.TRUE);
+        if (depth > 1) return;
+
+        if (_rollbackOnly)
+        {
+            _db.endTransaction(false);
+            throw new SQLException("The transaction was rolled back because a nested unit of work did not commit.");
+        }
+        _db.endTransaction(true);
+
+        QueryCache cache = _db.getConfig().getQueryCache();
+        if ( cache != null && !_tables.isEmpty() ) cache.invalidate( _tables.toArray(new String[_tables.size()]) );
+        _tables.clear();
+
+        EntityCache entities = _db.getConfig().getEntityCache();
+        for (int i=0; entities != null && i<_entities.size(); i++)
+        {
+            entities.put(_entities.get(i), false);
+        }
+        _entities.clear();
+    }
+
+    /**
+     * Drops the cached query results read from the given tables from the config's QueryCache once the
+     * transaction commits. Dropping them any sooner would let another thread cache the old rows again
+     * before the changes are visible. Nothing is dropped if the transaction is rolled back.
+     *
+     * @param String[] The tables written in the transaction.
+     */
+    public void invalidateOnCommit(String... tables)
+    {
+        if (tables == null) return;
+        for (int i=0; i<tables.length; i++)
+        {
+            _tables.add(tables[i]);
+        }
+    }
+
+    /**
+     * Puts the given entity in the config's EntityCache once the transaction commits. Nothing is put if
+     * the transaction is rolled back.
+     *
+     * @param DatabaseEntity The entity saved in the transaction.
+     */
+    public void cacheOnCommit(DatabaseEntity entity)
+    {
+        _entities.add(entity);
+    }
+
+    /**
+     * Marks the transaction to be rolled back when the outermost level ends.
+     */
+    public void setRollbackOnly()
+    {
+        _rollbackOnly = true;
+    }
+
+    /**
+     * Returns whether the transaction will be rolled back.
+     *
+     * @return boolean
+     */
+    public boolean isRollbackOnly()
+    {
+        return _rollbackOnly;
+    }
+
+    /**
+     * Ends the current level. If the level did not commit, the transaction is marked to be rolled back.
+     * At the outermost level, a transaction that was not committed is rolled back, the connection goes
+     * back to the pool and the context is unbound from the thread.
+     *
+     * @throws SQLException if the rollback fails.
+     */
+    public void end() throws SQLException
+    {
+        int depth = getDepth();
+        if (depth == 0) return;
+        if ( !_levels.remove(depth - 1).booleanValue() ) _rollbackOnly = true;
+        if (depth > 1) return;
+
+        Map<String, TransactionContext> contexts = _contexts.get();
+        if (contexts != null)
+        {
+            contexts.remove(_key);
+            if ( contexts.isEmpty() ) _contexts.remove();
+        }
+        try
+        {
+            _db.endTransaction(false);
+        }
+        finally
+        {
+            _db.disconnect();
+        }
+    }
+
+    /**
+     * Returns the number of open levels.
+     *
+     * @return int
+     */
+    public int getDepth()
+    {
+        return _levels.size();
+    }
+
+    /**
+     * Returns the connection that handles joining the context use.
+     *
+     * @return Connection
+     */
+    java.sql.Connection getConnection()
+    {
+        return _db._conn;
+    }
+
+    /**
+     * Returns the handle that owns the connection.
+     *
+     * @return DBHandle
+     */
+    DBHandle getHandle()
+    {
+        return _db;
+    }
+
+    private static String getKey(DBConfig config)
+    {
+        return config.getUrl() + "|" + config.getUsername();
+    }
+
+    public String toString()
+    {
+        return "[Database: " + _key + ", Depth: " + getDepth() + ", Rollback Only: " + _rollbackOnly + "]";
+    }
+}